@@ -0,0 +1,30 @@
+# ************************************************************
+# Nodes path hash and listing indexes
+#
+# Adds a fixed-width MD5 hash of the container-relative node path.
+# Nodes are looked up by (container_id, path_hash, current_rev)
+# with a unique index; the path itself is still compared to guard
+# against hash collisions.
+# The path is made case-sensitive (utf8_bin) like the hash and the
+# storage object names: A.txt and a.txt are different nodes, a lookup
+# must match the path case exactly. Before, the path comparisons ignored
+# the case.
+# The (container_id, parent_node_id, deleted, path) index serves the
+# container listings ordered by path.
+#
+# The unique index can't be created while a container holds duplicate
+# paths, check with:
+#   SELECT container_id, path, count(*) FROM nodes
+#   GROUP BY container_id, path, current_rev HAVING count(*) > 1;
+# ************************************************************
+
+ALTER TABLE `nodes`
+  MODIFY `path` varchar(128) CHARACTER SET utf8 COLLATE utf8_bin NOT NULL DEFAULT '',
+  ADD COLUMN `path_hash` binary(16) NOT NULL DEFAULT '' AFTER `path`;
+
+UPDATE `nodes` SET `path_hash` = UNHEX(MD5(`path`));
+
+ALTER TABLE `nodes`
+  ADD UNIQUE KEY `container_path_hash` (`container_id`,`path_hash`,`current_rev`),
+  ADD KEY `container_listing` (`container_id`,`parent_node_id`,`deleted`,`path`),
+  DROP KEY `container_id`;
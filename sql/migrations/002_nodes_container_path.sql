@@ -0,0 +1,10 @@
+# ************************************************************
+# Nodes container path index
+#
+# Serves the set-based subtree updates, which select all the nodes
+# of a container with the path equal to the subtree root or starting
+# with the subtree root followed by '/'.
+# ************************************************************
+
+ALTER TABLE `nodes`
+  ADD KEY `container_path` (`container_id`,`path`);
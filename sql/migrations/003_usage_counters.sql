@@ -0,0 +1,31 @@
+# ************************************************************
+# Container and user usage counters
+#
+# Bytes and data objects count of every first-level container and
+# user, maintained by deltas together with the nodes changes. The
+# container node size mirrors the container bytes.
+# The counters are periodically reconciled with the storage by the
+# DB cleaner (usage_reconcile_period).
+# ************************************************************
+
+ALTER TABLE `containers`
+  ADD COLUMN `bytes_used` bigint(20) NOT NULL DEFAULT '0' AFTER `user_id`,
+  ADD COLUMN `object_count` bigint(20) NOT NULL DEFAULT '0' AFTER `bytes_used`;
+
+ALTER TABLE `users`
+  ADD COLUMN `bytes_used` bigint(20) NOT NULL DEFAULT '0' AFTER `service_credentials`,
+  ADD COLUMN `object_count` bigint(20) NOT NULL DEFAULT '0' AFTER `bytes_used`;
+
+UPDATE `containers` SET
+  `bytes_used` = (SELECT COALESCE(SUM(`size`), 0) FROM `nodes`
+    WHERE `nodes`.`container_id` = `containers`.`container_id` AND `type` <> 'CONTAINER_NODE' AND `current_rev` = 1),
+  `object_count` = (SELECT COUNT(*) FROM `nodes`
+    WHERE `nodes`.`container_id` = `containers`.`container_id` AND `type` <> 'CONTAINER_NODE' AND `current_rev` = 1);
+
+UPDATE `users` SET
+  `bytes_used` = (SELECT COALESCE(SUM(`bytes_used`), 0) FROM `containers` WHERE `containers`.`user_id` = `users`.`user_id`),
+  `object_count` = (SELECT COALESCE(SUM(`object_count`), 0) FROM `containers` WHERE `containers`.`user_id` = `users`.`user_id`);
+
+UPDATE `nodes` JOIN `containers` ON `nodes`.`container_id` = `containers`.`container_id`
+  SET `nodes`.`size` = `containers`.`bytes_used`
+  WHERE `nodes`.`path` = '' AND `nodes`.`current_rev` = 1;
@@ -0,0 +1,21 @@
+# ************************************************************
+# Filename search index
+#
+# Case-folded trigrams of the node basenames, maintained together with
+# the nodes and removed with them by the foreign key. Searches within a
+# container look up the query trigrams instead of scanning the paths,
+# the basename LIKE only drops the false positives. Queries of 1-2
+# characters have no trigram: they scan the container paths with LIKE
+# in the path order, stopping at the file limit.
+# The existing nodes are indexed by the DB cleaner in the background
+# when name_index_backfill is enabled.
+# ************************************************************
+
+CREATE TABLE `node_name_grams` (
+  `node_id` int(11) unsigned NOT NULL,
+  `container_id` int(11) unsigned NOT NULL,
+  `gram` varchar(3) CHARACTER SET utf8 COLLATE utf8_bin NOT NULL,
+  PRIMARY KEY (`container_id`,`gram`,`node_id`),
+  KEY `node_id` (`node_id`),
+  CONSTRAINT `node_name_grams_ibfk_1` FOREIGN KEY (`node_id`) REFERENCES `nodes` (`node_id`) ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -0,0 +1,25 @@
+# ************************************************************
+# Node changes journal
+#
+# Append-only log of the node changes, one row per changed or
+# removed node, written in the transaction changing the node.
+# The rows of a user are numbered by users.change_seq without gaps,
+# so the /delta cursor is the last seen sequence number. Rows older
+# than delta_retention_days are removed by the DB cleaner; the clients
+# holding older cursors are reset.
+# ************************************************************
+
+ALTER TABLE `users`
+  ADD COLUMN `change_seq` bigint(20) unsigned NOT NULL DEFAULT '0' AFTER `object_count`;
+
+CREATE TABLE `node_changes` (
+  `user_id` int(11) unsigned NOT NULL,
+  `seq` bigint(20) unsigned NOT NULL,
+  `container_name` varchar(128) NOT NULL DEFAULT '',
+  `path` varchar(128) NOT NULL DEFAULT '',
+  `deleted` tinyint(1) NOT NULL DEFAULT '0',
+  `ctime` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`user_id`,`seq`),
+  KEY `ctime` (`ctime`),
+  CONSTRAINT `node_changes_ibfk_1` FOREIGN KEY (`user_id`) REFERENCES `users` (`user_id`) ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
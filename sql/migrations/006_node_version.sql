@@ -0,0 +1,13 @@
+# ************************************************************
+# Node versions
+#
+# Counter bumped with every change of the node, of its direct
+# children and, for a first-level container, of any node in it.
+# Together with node_id it makes the strong ETag of the node
+# metadata, listings and data, so the conditional GETs are answered
+# with 304 without listing the children or reading the storage.
+# The user root listing is versioned by users.change_seq.
+# ************************************************************
+
+ALTER TABLE `nodes`
+  ADD COLUMN `version` bigint(20) unsigned NOT NULL DEFAULT '0' AFTER `rev`;
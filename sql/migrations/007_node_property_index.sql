@@ -0,0 +1,28 @@
+# ************************************************************
+# Typed node properties index
+#
+# The node property values are kept in node_properties as TEXT, which
+# can not be searched efficiently. The index keeps every writable
+# property value of a node as a string prefix and, when the value
+# parses as one, as a number and as a timestamp, keyed by the owner
+# and the property so the searches are index range scans.
+# The rows are removed with the nodes and properties by the foreign
+# keys. The existing properties are indexed by the DB cleaner in the
+# background when property_index_backfill is enabled.
+# ************************************************************
+
+CREATE TABLE `node_property_index` (
+  `node_id` int(11) unsigned NOT NULL,
+  `property_id` int(11) unsigned NOT NULL,
+  `user_id` int(11) unsigned NOT NULL,
+  `value_string` varchar(255) NOT NULL DEFAULT '',
+  `value_number` double DEFAULT NULL,
+  `value_time` datetime DEFAULT NULL,
+  PRIMARY KEY (`node_id`,`property_id`),
+  KEY `string_value` (`user_id`,`property_id`,`value_string`),
+  KEY `number_value` (`user_id`,`property_id`,`value_number`),
+  KEY `time_value` (`user_id`,`property_id`,`value_time`),
+  KEY `property_id` (`property_id`),
+  CONSTRAINT `node_property_index_ibfk_1` FOREIGN KEY (`node_id`) REFERENCES `nodes` (`node_id`) ON DELETE CASCADE ON UPDATE CASCADE,
+  CONSTRAINT `node_property_index_ibfk_2` FOREIGN KEY (`property_id`) REFERENCES `properties` (`property_id`) ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -0,0 +1,61 @@
+# ************************************************************
+# User shards
+#
+# The users nodes, properties, changes journal, chunked uploads and
+# jobs can be spread over several MySQL instances (db.shards). The
+# database of db.url stays the directory of the users, identities,
+# OAuth and shares, and is the "default" shard of the users having
+# no user_shards row. A shard holds a copy of the users and
+# user_identities rows of its users and the same schema as the
+# directory; the properties are interned in the directory and copied
+# to the shards with the same ids.
+#
+# The shards must generate disjoint auto-increment ids, so a user
+# can be moved between them keeping the node and container ids:
+# set auto_increment_increment to the number of shards (or more) and
+# a distinct auto_increment_offset on each instance.
+#
+# The shares and OAuth accessors are looked up across the users, so
+# they reference the container by owner and name instead of the
+# container_id of a shard.
+# ************************************************************
+
+CREATE TABLE `user_shards` (
+  `user_id` int(11) unsigned NOT NULL,
+  `shard` varchar(64) NOT NULL DEFAULT '',
+  `moving_to` varchar(64) DEFAULT NULL,
+  PRIMARY KEY (`user_id`),
+  KEY `shard` (`shard`),
+  CONSTRAINT `user_shards_ibfk_1` FOREIGN KEY (`user_id`) REFERENCES `users` (`user_id`) ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+ALTER TABLE `container_shares`
+  ADD COLUMN `user_id` int(11) unsigned DEFAULT NULL AFTER `share_id`,
+  ADD COLUMN `container_name` varchar(128) NOT NULL DEFAULT '' AFTER `user_id`;
+
+UPDATE `container_shares` JOIN `containers` ON `container_shares`.`container_id` = `containers`.`container_id`
+  SET `container_shares`.`user_id` = `containers`.`user_id`, `container_shares`.`container_name` = `containers`.`container_name`;
+
+DELETE FROM `container_shares` WHERE `user_id` IS NULL;
+
+ALTER TABLE `container_shares`
+  DROP FOREIGN KEY `container_shares_ibfk_1`,
+  DROP KEY `container_id`,
+  DROP COLUMN `container_id`,
+  MODIFY `user_id` int(11) unsigned NOT NULL,
+  ADD KEY `user_container` (`user_id`,`container_name`),
+  ADD CONSTRAINT `container_shares_ibfk_3` FOREIGN KEY (`user_id`) REFERENCES `users` (`user_id`) ON DELETE CASCADE ON UPDATE CASCADE;
+
+ALTER TABLE `oauth_accessors`
+  ADD COLUMN `user_id` int(11) unsigned DEFAULT NULL AFTER `consumer_id`,
+  ADD COLUMN `container_name` varchar(128) DEFAULT NULL AFTER `user_id`;
+
+UPDATE `oauth_accessors` JOIN `containers` ON `oauth_accessors`.`container_id` = `containers`.`container_id`
+  SET `oauth_accessors`.`user_id` = `containers`.`user_id`, `oauth_accessors`.`container_name` = `containers`.`container_name`;
+
+ALTER TABLE `oauth_accessors`
+  DROP FOREIGN KEY `oauth_accessors_ibfk_1`,
+  DROP KEY `container_id`,
+  DROP COLUMN `container_id`,
+  ADD KEY `user_id` (`user_id`),
+  ADD CONSTRAINT `oauth_accessors_ibfk_3` FOREIGN KEY (`user_id`) REFERENCES `users` (`user_id`) ON DELETE CASCADE ON UPDATE CASCADE;
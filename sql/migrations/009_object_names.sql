@@ -0,0 +1,14 @@
+# ************************************************************
+# Immutable storage object names
+#
+# The data of a node having an object_name (a UUID) is stored in
+# the Swift object of that name in the node container instead of
+# the object named by the node path, so moving or renaming a folder
+# only changes the paths in the nodes table. The nodes having no
+# object_name are read from the path object as before. Set
+# storage.object_names to store the new data nodes with object
+# names and to let the cleaner migrate the existing ones.
+# ************************************************************
+
+ALTER TABLE `nodes`
+  ADD COLUMN `object_name` char(36) DEFAULT NULL AFTER `mimetype`;
@@ -0,0 +1,12 @@
+# ************************************************************
+# Node removal batches
+#
+# A removed node records the node_id of the subtree root removed
+# with it (its own node_id when removed alone), so restoring a
+# folder only restores the nodes removed together with it and not
+# the ones the user removed before. The nodes removed before this
+# migration have no batch and are restored with any ancestor.
+# ************************************************************
+
+ALTER TABLE `nodes`
+  ADD COLUMN `deleted_batch` int(11) unsigned DEFAULT NULL AFTER `deleted`;
@@ -45,15 +45,16 @@ CREATE TABLE `chunked_uploads` (
 CREATE TABLE `container_shares` (
   `share_key` int(11) unsigned NOT NULL AUTO_INCREMENT,
   `share_id` varchar(150) NOT NULL DEFAULT '',
-  `container_id` int(11) unsigned NOT NULL,
+  `user_id` int(11) unsigned NOT NULL,
+  `container_name` varchar(128) NOT NULL DEFAULT '',
   `group_id` int(11) unsigned DEFAULT NULL,
   `share_write_permission` tinyint(1) NOT NULL DEFAULT '0',
   PRIMARY KEY (`share_key`),
   UNIQUE KEY `share_id` (`share_id`),
-  KEY `container_id` (`container_id`),
   KEY `group_id` (`group_id`),
-  CONSTRAINT `container_shares_ibfk_1` FOREIGN KEY (`container_id`) REFERENCES `containers` (`container_id`) ON DELETE CASCADE ON UPDATE CASCADE,
-  CONSTRAINT `container_shares_ibfk_2` FOREIGN KEY (`group_id`) REFERENCES `groups` (`group_id`) ON DELETE CASCADE ON UPDATE CASCADE
+  KEY `user_container` (`user_id`,`container_name`),
+  CONSTRAINT `container_shares_ibfk_2` FOREIGN KEY (`group_id`) REFERENCES `groups` (`group_id`) ON DELETE CASCADE ON UPDATE CASCADE,
+  CONSTRAINT `container_shares_ibfk_3` FOREIGN KEY (`user_id`) REFERENCES `users` (`user_id`) ON DELETE CASCADE ON UPDATE CASCADE
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
 
@@ -65,6 +66,8 @@ CREATE TABLE `containers` (
   `container_id` int(11) unsigned NOT NULL AUTO_INCREMENT,
   `container_name` varchar(128) NOT NULL DEFAULT '',
   `user_id` int(11) unsigned NOT NULL,
+  `bytes_used` bigint(20) NOT NULL DEFAULT '0',
+  `object_count` bigint(20) NOT NULL DEFAULT '0',
   PRIMARY KEY (`container_id`),
   UNIQUE KEY `name` (`container_name`,`user_id`),
   KEY `user_id` (`user_id`),
@@ -106,6 +109,37 @@ CREATE TABLE `jobs` (
 
 
 
+# Dump of table node_changes
+# ------------------------------------------------------------
+
+CREATE TABLE `node_changes` (
+  `user_id` int(11) unsigned NOT NULL,
+  `seq` bigint(20) unsigned NOT NULL,
+  `container_name` varchar(128) NOT NULL DEFAULT '',
+  `path` varchar(128) NOT NULL DEFAULT '',
+  `deleted` tinyint(1) NOT NULL DEFAULT '0',
+  `ctime` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`user_id`,`seq`),
+  KEY `ctime` (`ctime`),
+  CONSTRAINT `node_changes_ibfk_1` FOREIGN KEY (`user_id`) REFERENCES `users` (`user_id`) ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+
+
+# Dump of table node_name_grams
+# ------------------------------------------------------------
+
+CREATE TABLE `node_name_grams` (
+  `node_id` int(11) unsigned NOT NULL,
+  `container_id` int(11) unsigned NOT NULL,
+  `gram` varchar(3) CHARACTER SET utf8 COLLATE utf8_bin NOT NULL,
+  PRIMARY KEY (`container_id`,`gram`,`node_id`),
+  KEY `node_id` (`node_id`),
+  CONSTRAINT `node_name_grams_ibfk_1` FOREIGN KEY (`node_id`) REFERENCES `nodes` (`node_id`) ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+
+
 # Dump of table node_properties
 # ------------------------------------------------------------
 
@@ -121,6 +155,27 @@ CREATE TABLE `node_properties` (
 
 
 
+# Dump of table node_property_index
+# ------------------------------------------------------------
+
+CREATE TABLE `node_property_index` (
+  `node_id` int(11) unsigned NOT NULL,
+  `property_id` int(11) unsigned NOT NULL,
+  `user_id` int(11) unsigned NOT NULL,
+  `value_string` varchar(255) NOT NULL DEFAULT '',
+  `value_number` double DEFAULT NULL,
+  `value_time` datetime DEFAULT NULL,
+  PRIMARY KEY (`node_id`,`property_id`),
+  KEY `string_value` (`user_id`,`property_id`,`value_string`),
+  KEY `number_value` (`user_id`,`property_id`,`value_number`),
+  KEY `time_value` (`user_id`,`property_id`,`value_time`),
+  KEY `property_id` (`property_id`),
+  CONSTRAINT `node_property_index_ibfk_1` FOREIGN KEY (`node_id`) REFERENCES `nodes` (`node_id`) ON DELETE CASCADE ON UPDATE CASCADE,
+  CONSTRAINT `node_property_index_ibfk_2` FOREIGN KEY (`property_id`) REFERENCES `properties` (`property_id`) ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+
+
 # Dump of table nodes
 # ------------------------------------------------------------
 
@@ -128,16 +183,22 @@ CREATE TABLE `nodes` (
   `node_id` int(11) unsigned NOT NULL AUTO_INCREMENT,
   `container_id` int(11) unsigned NOT NULL,
   `parent_node_id` int(11) unsigned DEFAULT NULL,
-  `path` varchar(128) NOT NULL DEFAULT '',
+  `path` varchar(128) CHARACTER SET utf8 COLLATE utf8_bin NOT NULL DEFAULT '',
+  `path_hash` binary(16) NOT NULL DEFAULT '',
   `type` enum('NODE','DATA_NODE','LINK_NODE','CONTAINER_NODE','UNSTRUCTURED_DATA_NODE','STRUCTURED_DATA_NODE') NOT NULL DEFAULT 'NODE',
   `current_rev` tinyint(1) unsigned NOT NULL DEFAULT '1',
   `rev` int(32) unsigned NOT NULL DEFAULT '0',
+  `version` bigint(20) unsigned NOT NULL DEFAULT '0',
   `deleted` tinyint(1) NOT NULL DEFAULT '0',
+  `deleted_batch` int(11) unsigned DEFAULT NULL,
   `mtime` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
   `size` bigint(20) unsigned NOT NULL DEFAULT '0',
   `mimetype` varchar(256) NOT NULL DEFAULT '',
+  `object_name` char(36) DEFAULT NULL,
   PRIMARY KEY (`node_id`),
-  KEY `container_id` (`container_id`),
+  UNIQUE KEY `container_path_hash` (`container_id`,`path_hash`,`current_rev`),
+  KEY `container_listing` (`container_id`,`parent_node_id`,`deleted`,`path`),
+  KEY `container_path` (`container_id`,`path`),
   KEY `parent_node_id` (`parent_node_id`),
   CONSTRAINT `container_id` FOREIGN KEY (`container_id`) REFERENCES `containers` (`container_id`) ON DELETE CASCADE ON UPDATE CASCADE,
   CONSTRAINT `nodes_ibfk_1` FOREIGN KEY (`parent_node_id`) REFERENCES `nodes` (`node_id`) ON DELETE CASCADE ON UPDATE CASCADE
@@ -153,17 +214,18 @@ CREATE TABLE `oauth_accessors` (
   `access_token` varchar(32) DEFAULT NULL,
   `token_secret` varchar(32) NOT NULL,
   `consumer_id` int(11) unsigned NOT NULL,
-  `container_id` int(11) unsigned DEFAULT NULL,
+  `user_id` int(11) unsigned DEFAULT NULL,
+  `container_name` varchar(128) DEFAULT NULL,
   `authorized` tinyint(1) NOT NULL DEFAULT '0',
   `created` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
   `accessor_write_permission` tinyint(1) NOT NULL DEFAULT '1',
   `share_key` int(11) unsigned DEFAULT NULL,
   UNIQUE KEY `request_token` (`request_token`),
   UNIQUE KEY `access_token` (`access_token`),
-  KEY `container_id` (`container_id`),
   KEY `share_key` (`share_key`),
-  CONSTRAINT `oauth_accessors_ibfk_1` FOREIGN KEY (`container_id`) REFERENCES `containers` (`container_id`) ON DELETE CASCADE ON UPDATE CASCADE,
-  CONSTRAINT `oauth_accessors_ibfk_2` FOREIGN KEY (`share_key`) REFERENCES `container_shares` (`share_key`) ON DELETE CASCADE ON UPDATE CASCADE
+  KEY `user_id` (`user_id`),
+  CONSTRAINT `oauth_accessors_ibfk_2` FOREIGN KEY (`share_key`) REFERENCES `container_shares` (`share_key`) ON DELETE CASCADE ON UPDATE CASCADE,
+  CONSTRAINT `oauth_accessors_ibfk_3` FOREIGN KEY (`user_id`) REFERENCES `users` (`user_id`) ON DELETE CASCADE ON UPDATE CASCADE
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
 
@@ -279,6 +341,20 @@ CREATE TABLE `user_identities` (
 
 
 
+# Dump of table user_shards
+# ------------------------------------------------------------
+
+CREATE TABLE `user_shards` (
+  `user_id` int(11) unsigned NOT NULL,
+  `shard` varchar(64) NOT NULL DEFAULT '',
+  `moving_to` varchar(64) DEFAULT NULL,
+  PRIMARY KEY (`user_id`),
+  KEY `shard` (`shard`),
+  CONSTRAINT `user_shards_ibfk_1` FOREIGN KEY (`user_id`) REFERENCES `users` (`user_id`) ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+
+
 # Dump of table users
 # ------------------------------------------------------------
 
@@ -291,6 +367,9 @@ CREATE TABLE `users` (
   `softlimit` int(11) unsigned NOT NULL DEFAULT '1024',
   `hardlimit` int(11) unsigned NOT NULL DEFAULT '2048',
   `service_credentials` blob,
+  `bytes_used` bigint(20) NOT NULL DEFAULT '0',
+  `object_count` bigint(20) NOT NULL DEFAULT '0',
+  `change_seq` bigint(20) unsigned NOT NULL DEFAULT '0',
   PRIMARY KEY (`user_id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
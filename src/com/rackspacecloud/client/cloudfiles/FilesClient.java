@@ -5,6 +5,7 @@
 package com.rackspacecloud.client.cloudfiles;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -3676,6 +3677,77 @@ public String storeObjectAs(String container, String name, HttpEntity entity, Ma
 	    	return null;
 	    }
 	    
+	    /**
+	     * Gets a byte range of the object as a stream
+	     * 
+	     * @param container The name of the container
+	     * @param objName The name of the object
+	     * @param offset The first byte of the range
+	     * @param length The number of bytes in the range
+	     * @return An input stream of the range bytes, empty if the range starts after the end of the object
+	     */
+	    public InputStream getKsObjectAsRangedStream (String container, String objName, long offset, long length) throws IOException, HttpException, FilesAuthorizationException, FilesInvalidNameException, FilesNotFoundException
+	    {
+	    		if (isValidContainerName(container) && isValidObjectName(objName))
+	    		{
+	    			if (objName.length() > FilesConstants.OBJECT_NAME_LENGTH)
+	    			{
+	    				logger.warn ("Object Name supplied was truncated to Max allowed of " + FilesConstants.OBJECT_NAME_LENGTH + " characters !");
+	    				objName = objName.substring(0, FilesConstants.OBJECT_NAME_LENGTH);
+	    				logger.warn ("Truncated Object Name is: " + objName);
+	    			}
+
+	    			String range = "bytes="+offset+"-"+(offset+length-1);
+	    			HttpGet method = new HttpGet(getFileUrl+"/"+sanitizeForURI(container)+"/"+sanitizeForURI(objName));
+	    			method.getParams().setIntParameter("http.socket.timeout", connectionTimeOut);
+	    			method.setHeader(FilesConstants.X_AUTH_TOKEN, strToken);
+	    			method.setHeader("Range", range);
+	    			FilesResponse response = new FilesResponse(client.execute(method));
+
+	      			if (response.getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+	       				method.abort();
+	    				login();
+	    				method = new HttpGet(getFileUrl+"/"+sanitizeForURI(container)+"/"+sanitizeForURI(objName));
+	        			method.getParams().setIntParameter("http.socket.timeout", connectionTimeOut);
+	        			method.setHeader(FilesConstants.X_AUTH_TOKEN, strToken);
+	        			method.setHeader("Range", range);
+	        			response = new FilesResponse(client.execute(method));
+	    			}
+
+	      			if (response.getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT)
+	    			{
+	    				logger.info ("Object data range retreived  : "+objName+" "+range);
+	    				// DO NOT RELEASE THIS CONNECTION
+	    				return response.getResponseBodyAsStream();
+	    			}
+	      			else if (response.getStatusCode() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE)
+	      			{
+	      				method.abort();
+	      				return new ByteArrayInputStream(new byte[]{});
+	      			}
+	    			else if (response.getStatusCode() == HttpStatus.SC_NOT_FOUND)
+	    			{
+	    				method.abort();
+						throw new FilesNotFoundException("Container: " + container + " did not have object " + objName, 
+								 response.getResponseHeaders(), response.getStatusLine());
+	    			}
+	    			else
+	    			{
+	    				method.abort();
+	    				throw new FilesException("Unexpected return from server", response.getResponseHeaders(), response.getStatusLine());
+	    			}
+	    		}
+	    		else
+	    		{
+	    			if (!isValidObjectName(objName)) {
+	    				throw new FilesInvalidNameException(objName);
+	    			}
+	    			else {
+	    				throw new FilesInvalidNameException(container);
+	    			}
+	    		}
+	    }
+	    
 	    public String storeKsStreamedObject(String container, InputStream data, String contentType, String name, Map<String,String> metadata) throws IOException, HttpException, FilesException
 	    {
 	 			String objName	 =  name;
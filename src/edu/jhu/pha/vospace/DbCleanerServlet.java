@@ -22,6 +22,8 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -30,12 +32,19 @@ import javax.servlet.http.HttpServlet;
 
 import org.apache.log4j.Logger;
 
+import edu.jhu.pha.vospace.DbPoolServlet.PrimaryReader;
 import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
-import edu.jhu.pha.vospace.node.ContainerNode;
+import edu.jhu.pha.vospace.meta.ChangeJournal;
+import edu.jhu.pha.vospace.meta.MetaCache;
+import edu.jhu.pha.vospace.meta.NameIndex;
+import edu.jhu.pha.vospace.meta.ObjectNameMigrator;
+import edu.jhu.pha.vospace.meta.PropertyIndex;
 import edu.jhu.pha.vospace.node.Node;
 import edu.jhu.pha.vospace.node.NodeFactory;
+import edu.jhu.pha.vospace.node.NodeInfo;
 import edu.jhu.pha.vospace.node.NodePath;
 import edu.jhu.pha.vospace.node.VospaceId;
+import edu.jhu.pha.vospace.storage.ObjectNames;
 import edu.jhu.pha.vospace.storage.StorageManager;
 import edu.jhu.pha.vospace.storage.StorageManagerFactory;
 
@@ -43,15 +52,21 @@ public class DbCleanerServlet extends HttpServlet {
 	
 	private static final long serialVersionUID = -6837095401346471188L;
 
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(3);
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4, DbPoolServlet.backgroundThreads("dbCleaner"));
 
-    private ScheduledFuture<?> nodesCleanerHandle, dbCleanerHandle, chunksCleanerHandle;
+    private ScheduledFuture<?> nodesCleanerHandle, dbCleanerHandle, chunksCleanerHandle, usageReconcilerHandle, objectNamesHandle;
     
     private final int NODE_EXPIRY_INTERVAL = SettingsServlet.getConfig().getInt("node_expiry", 10);
     private final int NODES_RUN_PERIOD = SettingsServlet.getConfig().getInt("cleaner_period", 1);
     private final int DB_RUN_PERIOD = SettingsServlet.getConfig().getInt("db_cleaner_period", 12);
     private final int CHUNK_EXPIRY_INTERVAL = SettingsServlet.getConfig().getInt("chunk_expiry", 1440);
     private final int CHUNK_RUN_PERIOD = SettingsServlet.getConfig().getInt("chunk_period", 1);
+    private final int USAGE_RUN_PERIOD = SettingsServlet.getConfig().getInt("usage_reconcile_period", 24);
+    private final boolean NAME_INDEX_BACKFILL = SettingsServlet.getConfig().getBoolean("name_index_backfill", true);
+    private final boolean PROPERTY_INDEX_BACKFILL = SettingsServlet.getConfig().getBoolean("property_index_backfill", true);
+    private final int DELTA_RETENTION_DAYS = SettingsServlet.getConfig().getInt("delta_retention_days", 30);
+    private final int OBJECT_NAMES_RUN_PERIOD = SettingsServlet.getConfig().getInt("object_names_migration_period", 10);
+    private final int OBJECT_NAMES_BATCH = SettingsServlet.getConfig().getInt("object_names_migration_batch", 1000);
 
     private static final Logger logger = Logger.getLogger(DbCleanerServlet.class);
     
@@ -63,6 +78,28 @@ public class DbCleanerServlet extends HttpServlet {
         dbCleanerHandle = scheduler.scheduleAtFixedRate(dbcleaner, (long)(Math.random()*DB_RUN_PERIOD), DB_RUN_PERIOD, HOURS);
         final Runnable chunkscleaner = new ChunksRemover();
         chunksCleanerHandle = scheduler.scheduleAtFixedRate(chunkscleaner, (long)(Math.random()*CHUNK_RUN_PERIOD), CHUNK_RUN_PERIOD, HOURS);
+        final Runnable usagereconciler = new UsageReconciler();
+        usageReconcilerHandle = scheduler.scheduleAtFixedRate(usagereconciler, (long)(Math.random()*USAGE_RUN_PERIOD), USAGE_RUN_PERIOD, HOURS);
+        if(ObjectNames.isEnabled()) {
+        	final Runnable objectNamesMigrator = new ObjectNameMigrator(scheduler, OBJECT_NAMES_BATCH);
+        	objectNamesHandle = scheduler.scheduleWithFixedDelay(objectNamesMigrator, OBJECT_NAMES_RUN_PERIOD, OBJECT_NAMES_RUN_PERIOD, MINUTES);
+        }
+        if(NAME_INDEX_BACKFILL) {
+	        scheduler.schedule(new Runnable() {
+	        	@Override
+	        	public void run() {
+	        		NameIndex.backfill();
+	        	}
+	        }, 1, MINUTES);
+        }
+        if(PROPERTY_INDEX_BACKFILL) {
+	        scheduler.schedule(new Runnable() {
+	        	@Override
+	        	public void run() {
+	        		PropertyIndex.backfill();
+	        	}
+	        }, 1, MINUTES);
+        }
     }
 
     @Override
@@ -70,6 +107,9 @@ public class DbCleanerServlet extends HttpServlet {
     	nodesCleanerHandle.cancel(true);
     	dbCleanerHandle.cancel(true);
     	chunksCleanerHandle.cancel(true);
+    	usageReconcilerHandle.cancel(true);
+    	if(null != objectNamesHandle)
+    		objectNamesHandle.cancel(true);
     	scheduler.shutdownNow();
     	logger.info("Cleaner is terminating");
     }
@@ -77,9 +117,14 @@ public class DbCleanerServlet extends HttpServlet {
     private class NodesRemover implements Runnable {
         @Override
 		public void run() {
+        	for(String shard: DbPoolServlet.getShards())
+        		run(shard);
+        }
+
+        private void run(String shard) {
         	boolean res = true;
         	while(res) {
-            	res = DbPoolServlet.goSql("Cleaning DB nodes",
+            	res = DbPoolServlet.goShardSql(shard, "Cleaning DB nodes",
                 		"select container_name, path, identity from nodes " +
                 		"JOIN containers ON nodes.container_id = containers.container_id " +
                 		"JOIN user_identities ON containers.user_id = user_identities.user_id " +
@@ -99,17 +144,9 @@ public class DbCleanerServlet extends HttpServlet {
 	                                	
 	                                	newNode = NodeFactory.getNode(uri, username);
 
-	                    				newNode.getStorage().remove(newNode.getUri().getNodePath(), true);
+	                    				newNode.removeData(true);
+                    					// the usage counters are updated by the removal
                     					newNode.getMetastore().remove(newNode.getUri());
-
-                    					if(!newNode.getUri().getNodePath().isRoot(false)) {
-		                    				// Update root container size
-	                    					ContainerNode contNode = (ContainerNode)NodeFactory.getNode(
-	                    							new VospaceId(new NodePath(newNode.getUri().getNodePath().getContainerName())), 
-	                    							newNode.getOwner());
-	                    					newNode.getStorage().updateNodeInfo(contNode.getUri().getNodePath(), contNode.getNodeInfo());
-	                    					newNode.getMetastore().storeInfo(contNode.getUri(), contNode.getNodeInfo());
-                    					}
                     				} catch(Exception ex) {
                                 		ex.printStackTrace();
                                 		if(null != newNode) {
@@ -130,9 +167,14 @@ public class DbCleanerServlet extends HttpServlet {
     private class ChunksRemover implements Runnable {
         @Override
 		public void run() {
+        	for(String shard: DbPoolServlet.getShards())
+        		run(shard);
+        }
+
+        private void run(final String shard) {
         	boolean res = true;
         	while(res) {
-            	res = DbPoolServlet.goSql("Cleaning chunks",
+            	res = DbPoolServlet.goShardSql(shard, "Cleaning chunks",
         			"select `identity`, `chunked_name` from (select `chunked_name`, max(`mtime`) `maxtime`, `identity` from chunked_uploads "+ 
         			"JOIN user_identities ON chunked_uploads.`user_id` = user_identities.`user_id` "+
         			"where `node_id` is NULL group by `chunked_name`) a WHERE `maxtime` < (NOW() - INTERVAL "+CHUNK_EXPIRY_INTERVAL+" MINUTE) limit 1", 
@@ -148,7 +190,7 @@ public class DbCleanerServlet extends HttpServlet {
                             	StorageManager storage = StorageManagerFactory.getStorageManager(username);
                             	storage.removeObjectSegment(resSet.getString("chunked_name"));
 
-                            	DbPoolServlet.goSql("Deleting unused chunked upload",
+                            	DbPoolServlet.goShardSql(shard, "Deleting unused chunked upload",
                             		"delete from chunked_uploads where chunked_name = ?", 
                                     new SqlWorker<Boolean>() {
                                         @Override
@@ -169,6 +211,94 @@ public class DbCleanerServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Resets the containers bytes usage to the storage one and the objects count to the number of stored data nodes,
+     * then sums the users usage from the containers.
+     * The counters are maintained by the metadata store, this only fixes the drift.
+     */
+    private class UsageReconciler implements Runnable {
+        @Override
+		public void run() {
+        	for(String shard: DbPoolServlet.getShards())
+        		run(shard);
+        	MetaCache.invalidateAll();
+        }
+
+        private void run(String shard) {
+        	List<String[]> containers = DbPoolServlet.goShardSql(shard, "Getting containers to reconcile",
+        			"select containers.container_id, container_name, MIN(identity) identity from containers " +
+        			"JOIN user_identities ON containers.user_id = user_identities.user_id " +
+        			"where container_name <> '' group by containers.container_id",
+                    new PrimaryReader<List<String[]>>() {
+                        @Override
+                        public List<String[]> go(Connection conn, PreparedStatement stmt) throws SQLException {
+                        	List<String[]> result = new ArrayList<String[]>();
+                            ResultSet resSet = stmt.executeQuery();
+                            while(resSet.next())
+                            	result.add(new String[]{resSet.getString("container_id"), resSet.getString("container_name"), resSet.getString("identity")});
+                            return result;
+                        }
+                    }
+            );
+        	if(null == containers)
+        		return;
+
+        	for(final String[] container: containers) {
+        		if(Thread.currentThread().isInterrupted())
+        			return;
+        		try {
+	        		final NodeInfo info = new NodeInfo();
+	        		info.setSize(-1);
+	        		StorageManager storage = StorageManagerFactory.getStorageManager(container[2]);
+	        		storage.updateNodeInfo(new NodePath(container[1]), info);
+	        		if(info.getSize() < 0) { // the storage container is missing or failed to respond
+	        			logger.error("Unable to get the storage usage of the container "+container[1]+" of user "+container[2]);
+	        			continue;
+	        		}
+
+	        		DbPoolServlet.goShardSql(shard, "Reconciling container usage",
+	        				"update containers set bytes_used = ?, object_count = "+
+	        				"(select count(*) from nodes where nodes.container_id = containers.container_id and type <> 'CONTAINER_NODE' and current_rev = 1) "+
+	        				"where container_id = ?",
+	                        new SqlWorker<Boolean>() {
+	                            @Override
+	                            public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+	                            	stmt.setLong(1, info.getSize());
+	                            	stmt.setLong(2, Long.parseLong(container[0]));
+	                            	stmt.executeUpdate();
+
+	                            	PreparedStatement nodeStmt = conn.prepareStatement("update nodes set size = ? where container_id = ? and path_hash = UNHEX(MD5('')) and path = '' and current_rev = 1");
+	                            	try {
+	                            		nodeStmt.setLong(1, info.getSize());
+	                            		nodeStmt.setLong(2, Long.parseLong(container[0]));
+	                            		nodeStmt.executeUpdate();
+	                            	} finally {
+	                            		DbPoolServlet.close(nodeStmt);
+	                            	}
+	                            	return true;
+	                            }
+	                        }
+	                );
+        		} catch(Exception ex) {
+        			logger.error("Error reconciling the container "+container[1]+" of user "+container[2]+": "+ex.getMessage());
+        		}
+        	}
+
+        	DbPoolServlet.goShardSql(shard, "Reconciling users usage",
+        			"update users set "+
+        			"bytes_used = (select COALESCE(SUM(bytes_used), 0) from containers where containers.user_id = users.user_id), "+
+        			"object_count = (select COALESCE(SUM(object_count), 0) from containers where containers.user_id = users.user_id)",
+                    new SqlWorker<Boolean>() {
+                        @Override
+                        public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+                        	stmt.executeUpdate();
+                        	return true;
+                        }
+                    }
+            );
+        }
+    }
+
     private class DBCleaner implements Runnable {
         @Override
 		public void run() {
@@ -182,6 +312,7 @@ public class DbCleanerServlet extends HttpServlet {
                     }
             	}
             );
+            ChangeJournal.prune(DELTA_RETENTION_DAYS);
         }
     }
 
@@ -17,29 +17,129 @@ package edu.jhu.pha.vospace;
 
 import java.io.InputStream;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
+import javax.sql.DataSource;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.dbcp.DriverManagerConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
-import org.apache.commons.dbcp.PoolingDriver;
+import org.apache.commons.dbcp.PoolingDataSource;
 import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.log4j.Logger;
 
 import com.mysql.jdbc.exceptions.jdbc4.MySQLTransactionRollbackException;
 
+/**
+ * Holds the DB connection pools: the primary pool of each shard and an optional pool per read replica.
+ * The default shard is the db.url database, which is also the directory of the users, OAuth and shares;
+ * the statements of the {@link #goUserSql} calls go to the shard of the user (see {@link ShardMap}).
+ * Statements of the {@link SqlReader} workers are sent to a replica that is not lagging behind,
+ * unless the current request or user has written recently, everything else goes to the primary.
+ * Only the writers make the request and the user stick to the primary, the {@link PrimaryReader} workers don't.
+ * Each database has a separate pool per {@link Workload}, so the background tasks and the authentication
+ * can't take all the connections from the interactive requests and the other way round.
+ */
 public class DbPoolServlet extends HttpServlet {
 	
 	private static final long serialVersionUID = -1101930395339381336L;
 	private static final Logger logger = Logger.getLogger(DbPoolServlet.class);
 	
+	/** Lightweight validation: Connector/J answers it with a protocol ping instead of running a query */
+	private static final String VALIDATION_QUERY = "/* ping */ SELECT 1";
+
+	/** The shard of the db.url database */
+	public static final String DEFAULT_SHARD = "default";
+
+	/** Shard name -> shard, the default shard first */
+	private static volatile Map<String, Shard> shards = Collections.emptyMap();
+	private static Shard defaultShard;
+	static boolean hasReplicas = false;
+
+	/** How long the reads go to the primary after a write, ms */
+	static long stickyPeriod;
+	/** Thread (request) stickiness: the primary is used for reads until the time */
+	private static final ThreadLocal<Long> threadStickyUntil = new ThreadLocal<Long>();
+	/** The user of the current request */
+	private static final ThreadLocal<String> threadUser = new ThreadLocal<String>();
+	/** User stickiness across requests: user -> time until the primary is used for reads */
+	private static final ConcurrentHashMap<String, Long> userStickyUntil = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * The kinds of the DB traffic getting separate connection pools. The pool is picked by the workload of
+	 * the current thread (see {@link #setWorkload}), inherited by the threads it starts; interactive by default.
+	 * The pools are sized with db.pool.&lt;name&gt;.size and the connection wait is limited by db.pool.&lt;name&gt;.wait.
+	 */
+	public enum Workload {
+		/** The REST requests of the users */
+		INTERACTIVE("interactive", 20, 10),
+		/** The jobs, node processors, cleaners and other maintenance tasks */
+		BACKGROUND("background", 8, 60),
+		/** The OAuth and login requests */
+		AUTH("auth", 8, 5);
+
+		private final String name;
+		private final int defaultSize;
+		private final int defaultWait;
+
+		private Workload(String name, int defaultSize, int defaultWait) {
+			this.name = name;
+			this.defaultSize = defaultSize;
+			this.defaultWait = defaultWait;
+		}
+	}
+
+	private static final InheritableThreadLocal<Workload> threadWorkload = new InheritableThreadLocal<Workload>() {
+		@Override
+		protected Workload initialValue() {
+			return Workload.INTERACTIVE;
+		}
+	};
+
+	private ScheduledExecutorService lagChecker;
+
+	private static class Replica {
+		final String url;
+		final Map<Workload, DataSource> pools;
+		volatile boolean healthy = false;
+
+		Replica(String url, Map<Workload, DataSource> pools) {
+			this.url = url;
+			this.pools = pools;
+		}
+	}
+
+	private static class Shard {
+		final Map<Workload, DataSource> pools;
+		final List<Replica> replicas = new CopyOnWriteArrayList<Replica>();
+		final AtomicInteger nextReplica = new AtomicInteger();
+
+		Shard(Map<Workload, DataSource> pools) {
+			this.pools = pools;
+		}
+	}
+
 	@Override
 	public void init() throws ServletException {
 		ServletContext context = this.getServletContext();
@@ -53,86 +153,444 @@ public class DbPoolServlet extends HttpServlet {
             throw new ServletException(e);
         }
 		
-		GenericObjectPool pool = new GenericObjectPool(null);
-		pool.setMinEvictableIdleTimeMillis(6*60*60*1000);
-		pool.setTimeBetweenEvictionRunsMillis(30*60*1000);
-		pool.setNumTestsPerEvictionRun(-1);
+		Map<String, Shard> newShards = new LinkedHashMap<String, Shard>();
+		defaultShard = registerShard(conf, DEFAULT_SHARD, "db");
+		newShards.put(DEFAULT_SHARD, defaultShard);
+		for(String name: conf.getStringArray("db.shards")) {
+			name = name.trim();
+			if(name.isEmpty() || newShards.containsKey(name))
+				continue;
+			newShards.put(name, registerShard(conf, name, "db.shard."+name));
+		}
+		shards = Collections.unmodifiableMap(newShards);
+		if(shards.size() > 1)
+			logger.info("Using "+shards.size()+" shards");
 
-		DriverManagerConnectionFactory cf = new DriverManagerConnectionFactory(conf.getString("db.url"), conf.getString("db.login"), conf.getString("db.password"));
+		stickyPeriod = conf.getLong("db.replica.sticky", 5)*1000;
 
-		PoolableConnectionFactory pcf = new PoolableConnectionFactory(cf, pool, null, "SELECT * FROM mysql.db", false, true);
-		new PoolingDriver().registerPool("dbPool", pool);
+		if(hasReplicas) {
+			final int maxLag = conf.getInt("db.replica.max_lag", 2);
+			int checkPeriod = conf.getInt("db.replica.check_period", 5);
+			lagChecker = Executors.newSingleThreadScheduledExecutor(backgroundThreads("replicaLagChecker"));
+			lagChecker.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					for(Shard shard: shards.values()) {
+						for(Replica replica: shard.replicas)
+							checkLag(replica, maxLag);
+					}
+
+					long now = System.currentTimeMillis();
+					for(Map.Entry<String, Long> sticky: userStickyUntil.entrySet()) {
+						if(sticky.getValue() < now)
+							userStickyUntil.remove(sticky.getKey(), sticky.getValue());
+					}
+				}
+			}, 0, checkPeriod, TimeUnit.SECONDS);
+		}
+
+		ShardRebalancer.register();
 	}
-	
+
+	@Override
+	public void destroy() {
+		ShardRebalancer.unregister();
+		if(null != lagChecker)
+			lagChecker.shutdownNow();
+	}
+
+	/**
+	 * Registers the pools of the shard and its read replicas.
+	 * The shard settings are read from prefix.url, prefix.login, prefix.password and prefix.replica.*,
+	 * the logins default to the db.login ones.
+	 */
+	private static Shard registerShard(Configuration conf, String name, String prefix) throws ServletException {
+		String url = conf.getString(prefix+".url");
+		if(null == url || url.trim().isEmpty())
+			throw new ServletException("No "+prefix+".url set for the shard "+name);
+		String login = conf.getString(prefix+".login", conf.getString("db.login"));
+		String password = conf.getString(prefix+".password", conf.getString("db.password"));
+		Shard shard = new Shard(createPools(conf, url.trim(), login, password));
+
+		for(String replicaUrl: conf.getStringArray(prefix+".replica.url")) {
+			if(replicaUrl.trim().isEmpty())
+				continue;
+			shard.replicas.add(new Replica(replicaUrl.trim(), createPools(conf, replicaUrl.trim(),
+					conf.getString(prefix+".replica.login", login), conf.getString(prefix+".replica.password", password))));
+		}
+		if(!shard.replicas.isEmpty()) {
+			hasReplicas = true;
+			logger.info("Using "+shard.replicas.size()+" read replicas for the "+name+" shard");
+		}
+		return shard;
+	}
+
+	/**
+	 * @return The names of the configured shards, the default one first
+	 */
+	public static List<String> getShards() {
+		return new ArrayList<String>(shards.keySet());
+	}
+
+	/**
+	 * @return true if there are shards besides the default one
+	 */
+	public static boolean isSharded() {
+		return shards.size() > 1;
+	}
+
+	public static boolean isShard(String name) {
+		return shards.containsKey(name);
+	}
+
+	/**
+	 * Creates the pools of the database, one per workload.
+	 * The connections are validated on borrow and, when idle, by the evictor, which also closes the ones
+	 * idle for longer than db.pool.max_idle_time, before MySQL drops them.
+	 */
+	private static Map<Workload, DataSource> createPools(Configuration conf, String url, String login, String password) {
+		Map<Workload, DataSource> pools = new EnumMap<Workload, DataSource>(Workload.class);
+		for(Workload workload: Workload.values()) {
+			String prefix = "db.pool."+workload.name;
+			int size = conf.getInt(prefix+".size", workload.defaultSize);
+
+			GenericObjectPool pool = new GenericObjectPool(null);
+			pool.setMaxActive(size);
+			pool.setMaxIdle(size);
+			pool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+			pool.setMaxWait(conf.getLong(prefix+".wait", workload.defaultWait)*1000);
+			pool.setTestOnBorrow(true);
+			pool.setTestWhileIdle(true);
+			pool.setTimeBetweenEvictionRunsMillis(conf.getLong("db.pool.validation_period", 60)*1000);
+			pool.setMinEvictableIdleTimeMillis(conf.getLong("db.pool.max_idle_time", 3600)*1000);
+			pool.setNumTestsPerEvictionRun(-1);
+
+			DriverManagerConnectionFactory cf = new DriverManagerConnectionFactory(url, login, password);
+
+			// sets itself as the pool factory
+			new PoolableConnectionFactory(cf, pool, null, VALIDATION_QUERY, false, true);
+			pools.put(workload, new PoolingDataSource(pool));
+		}
+		return pools;
+	}
+
+	/**
+	 * Sets the workload of the statements run by the current thread and the threads it starts
+	 * @return The previous workload, to be restored when done
+	 */
+	public static Workload setWorkload(Workload workload) {
+		Workload previous = threadWorkload.get();
+		threadWorkload.set(workload);
+		return previous;
+	}
+
+	/**
+	 * Thread factory for the background executors, their statements use the {@link Workload#BACKGROUND} pools
+	 */
+	public static ThreadFactory backgroundThreads(final String name) {
+		final AtomicInteger threadNum = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable task) {
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						setWorkload(Workload.BACKGROUND);
+						task.run();
+					}
+				}, name+"-"+threadNum.incrementAndGet());
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Marks the replica unhealthy when the replication is stopped or is behind the primary more than maxLag seconds
+	 */
+	private static void checkLag(Replica replica, int maxLag) {
+		Connection conn = null;
+		Statement stmt = null;
+		try {
+			conn = replica.pools.get(Workload.BACKGROUND).getConnection();
+			stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery("SHOW SLAVE STATUS");
+			boolean healthy = false;
+			if(rs.next()) {
+				long lag = rs.getLong("Seconds_Behind_Master");
+				healthy = !rs.wasNull() && lag <= maxLag;
+			}
+			if(healthy != replica.healthy)
+				logger.info("Replica "+replica.url+(healthy?" is back in use":" is lagging or stopped, reading from the primary"));
+			replica.healthy = healthy;
+		} catch(SQLException ex) {
+			if(replica.healthy)
+				logger.error("Error checking replica "+replica.url+": "+ex.getMessage());
+			replica.healthy = false;
+		} finally {
+			close(stmt);
+			close(conn);
+		}
+	}
+
+	/**
+	 * Starts a new request on the current thread: drops the request stickiness and binds the request user
+	 * (null for the anonymous requests), whose recent writes route the reads to the primary.
+	 */
+	public static void beginRequest(String user) {
+		threadStickyUntil.remove();
+		if(null == user)
+			threadUser.remove();
+		else
+			threadUser.set(user);
+	}
+
+	/**
+	 * Routes the following reads of the current request and user to the primary for the sticky period,
+	 * e.g. when the data a read expects can be not yet replicated.
+	 */
+	public static void stickToPrimary() {
+		long until = System.currentTimeMillis()+stickyPeriod;
+		threadStickyUntil.set(until);
+		String user = threadUser.get();
+		if(null != user)
+			userStickyUntil.put(user, until);
+	}
+
+	/**
+	 * Routes the following reads of the current request to the primary for the sticky period,
+	 * e.g. when the data read is cached and has to match the version read from the primary.
+	 */
+	public static void readFromPrimary() {
+		threadStickyUntil.set(System.currentTimeMillis()+stickyPeriod);
+	}
+
+	private static boolean isSticky() {
+		long now = System.currentTimeMillis();
+		Long until = threadStickyUntil.get();
+		if(null != until && until > now)
+			return true;
+		String user = threadUser.get();
+		if(null != user) {
+			until = userStickyUntil.get(user);
+			if(null != until && until > now)
+				return true;
+		}
+		return false;
+	}
+
+	private static Replica pickReplica(Shard shard) {
+		int size = shard.replicas.size();
+		if(size == 0)
+			return null;
+		int start = Math.abs(shard.nextReplica.getAndIncrement() % size);
+		for(int i = 0; i < size; i++) {
+			Replica replica = shard.replicas.get((start+i) % size);
+			if(replica.healthy)
+				return replica;
+		}
+		return null;
+	}
+
+	private static Connection getConnection(Shard shard, SqlWorker<?> goer) throws SQLException {
+		Workload workload = threadWorkload.get();
+		if(isReplicaRead(goer)) {
+			Replica replica = pickReplica(shard);
+			if(null != replica) {
+				try {
+					return replica.pools.get(workload).getConnection();
+				} catch(SQLException ex) {
+					// a busy replica pool is not a replica failure
+					if(!(ex.getCause() instanceof NoSuchElementException)) {
+						logger.error("Error connecting to replica "+replica.url+", reading from the primary: "+ex.getMessage());
+						replica.healthy = false;
+					}
+				}
+			}
+		}
+		return shard.pools.get(workload).getConnection();
+	}
+
     /** Helper class for goSql() */
     public static abstract class SqlWorker<T> {
         abstract public T go(Connection conn, PreparedStatement stmt) throws SQLException;
         public void error(String context, SQLException e) { logger.error(context, e); }
+        /** Read-only workers can be routed to a replica */
+        public boolean isReadOnly() { return false; }
+        /** Writers make the following reads of the request and the user go to the primary */
+        public boolean isWrite() { return true; }
+    }
+
+    /** Read-only worker: can be served by a replica, which may be behind the primary for up to db.replica.max_lag seconds */
+    public static abstract class SqlReader<T> extends SqlWorker<T> {
+        @Override
+        public final boolean isReadOnly() { return true; }
+        @Override
+        public final boolean isWrite() { return false; }
+    }
+
+    /**
+     * Worker reading from the primary, e.g. when the result is used for a following write or must not be stale.
+     * Unlike the writers it doesn't route the following reads to the primary.
+     */
+    public static abstract class PrimaryReader<T> extends SqlWorker<T> {
+        @Override
+        public final boolean isWrite() { return false; }
+    }
+
+    /** @return true if the worker statements can go to a replica */
+    static boolean isReplicaRead(SqlWorker<?> goer) {
+    	return goer.isReadOnly() && !isSticky();
+    }
+
+    /** Called after each worker: the reads following a write go to the primary until it is replicated */
+    static void afterWorker(SqlWorker<?> goer) {
+    	if(goer.isWrite() && hasReplicas)
+    		stickToPrimary();
     }
 
-    /** Helper function to setup and teardown SQL connection & statement. */
+    /** Helper function to setup and teardown SQL connection & statement. Runs on the default shard. */
     public static <T> T goSql(String context, String sql, SqlWorker<T> goer) {
-    	//logger.debug(context);
-        Connection conn = null;
-        PreparedStatement stmt = null;
-        try {
-            conn = DriverManager.getConnection("jdbc:apache:commons:dbcp:dbPool");
-        	int tries = 30; // number of repitions when a transaction fails due to a deadlock
-            	while(true) {
-                    try {
-			            if (sql != null)
-			                stmt = conn.prepareStatement(sql);
-			            T result = goer.go(conn, stmt);
-			            return result;
-                    } catch(MySQLTransactionRollbackException transactionEx) {
-                    	if(tries > 0)
-                    		tries--;
-                    	else {
-                    		logger.error("Exceeded limit of transaction tries.");
-                            goer.error(context, transactionEx);
-                    		throw transactionEx;
-                    	}
-                    }
-            	}
-        } catch (SQLException e) {
-            goer.error(context, e);
-            return null;
-        } finally {
-            close(stmt);
-            close(conn);
-        }
+    	return goSql(defaultShard, context, sql, goer, null);
     }
 
-    /** Helper function to setup and teardown SQL connection & statement. */
+    /** Helper function to setup and teardown SQL connection & statement. Runs on the default shard. */
     public static <T> T goSql(String context, String sql, SqlWorker<T> goer, int genKeys) {
+    	return goSql(defaultShard, context, sql, goer, Integer.valueOf(genKeys));
+    }
+
+    /**
+     * Runs the worker statements on one connection in a single transaction, rolled back if the worker fails.
+     * On a deadlock the whole transaction is retried, so the worker must not keep state between the runs.
+     * The statement passed to the worker is prepared from sql, the worker can prepare more on the connection.
+     * Runs on the default shard.
+     */
+    public static <T> T goSqlTx(String context, String sql, final SqlWorker<T> goer) {
+    	return goSql(defaultShard, context, sql, inTransaction(goer), null);
+    }
+
+    /**
+     * Like {@link #goSql(String, String, SqlWorker)}, on the shard of the user.
+     * The writers of a user being moved to another shard wait for the move to finish.
+     */
+    public static <T> T goUserSql(String user, String context, String sql, SqlWorker<T> goer) {
+    	return goUserSql(user, context, sql, goer, null);
+    }
+
+    /** Like {@link #goSql(String, String, SqlWorker, int)}, on the shard of the user. */
+    public static <T> T goUserSql(String user, String context, String sql, SqlWorker<T> goer, int genKeys) {
+    	return goUserSql(user, context, sql, goer, Integer.valueOf(genKeys));
+    }
+
+    /** Like {@link #goSqlTx(String, String, SqlWorker)}, on the shard of the user. */
+    public static <T> T goUserSqlTx(String user, String context, String sql, SqlWorker<T> goer) {
+    	return goUserSql(user, context, sql, inTransaction(goer), null);
+    }
+
+    /** Like {@link #goSql(String, String, SqlWorker)}, on the named shard. Used by the maintenance tasks going over all the shards. */
+    public static <T> T goShardSql(String shard, String context, String sql, SqlWorker<T> goer) {
+    	return goSql(getShard(shard, context, goer), context, sql, goer, null);
+    }
+
+    /** Like {@link #goSqlTx(String, String, SqlWorker)}, on the named shard. */
+    public static <T> T goShardSqlTx(String shard, String context, String sql, SqlWorker<T> goer) {
+    	return goShardSql(shard, context, sql, inTransaction(goer));
+    }
+
+    private static <T> T goUserSql(String user, String context, String sql, SqlWorker<T> goer, Integer genKeys) {
+    	if(!isSharded() || null == user)
+    		return goSql(defaultShard, context, sql, goer, genKeys);
+    	String shard;
+    	try {
+    		shard = goer.isWrite()?ShardMap.getWriteShard(user):ShardMap.getReadShard(user);
+    	} catch(SQLException ex) {
+    		goer.error(context, ex);
+    		return null;
+    	}
+    	return goSql(getShard(shard, context, goer), context, sql, goer, genKeys);
+    }
+
+    /**
+     * @return The shard, or null if the shard is not configured, reported to the worker
+     */
+    private static Shard getShard(String name, String context, SqlWorker<?> goer) {
+    	Shard shard = shards.get(name);
+    	if(null == shard)
+    		goer.error(context, new SQLException("Unknown shard "+name));
+    	return shard;
+    }
+
+    private static <T> SqlWorker<T> inTransaction(final SqlWorker<T> goer) {
+    	return new SqlWorker<T>() {
+    		@Override
+    		public T go(Connection conn, PreparedStatement stmt) throws SQLException {
+    			conn.setAutoCommit(false);
+    			boolean committed = false;
+    			try {
+    				T result = goer.go(conn, stmt);
+    				conn.commit();
+    				committed = true;
+    				return result;
+    			} finally {
+    				if(!committed) {
+    					try { conn.rollback(); } catch(SQLException ex) { logger.error("Error rolling back: "+ex.getMessage()); }
+    				}
+    				conn.setAutoCommit(true);
+    			}
+    		}
+
+    		@Override
+    		public void error(String context, SQLException e) {
+    			goer.error(context, e);
+    		}
+
+    		@Override
+    		public boolean isWrite() {
+    			return goer.isWrite();
+    		}
+    	};
+    }
+
+    private static <T> T goSql(Shard shard, String context, String sql, SqlWorker<T> goer, Integer genKeys) {
     	//logger.debug(context);
+    	if(null == shard)
+    		return null;
         Connection conn = null;
         PreparedStatement stmt = null;
+        long start = System.nanoTime(), poolWait = 0;
+        int tries = 30; // number of repitions when a transaction fails due to a deadlock
+        AtomicLong rows = new AtomicLong();
+        boolean failed = true;
         try {
-            conn = DriverManager.getConnection("jdbc:apache:commons:dbcp:dbPool");
-        	int tries = 30; // number of repitions when a transaction fails due to a deadlock
-            	while(true) {
-                    try {
-			            if (sql != null)
-			                stmt = conn.prepareStatement(sql, genKeys);
-			            T result = goer.go(conn, stmt);
-			            return result;
-                    } catch(MySQLTransactionRollbackException transactionEx) {
-                    	if(tries > 0)
-                    		tries--;
-                    	else {
-                    		logger.error("Exceeded limit of transaction tries.");
-                            goer.error(context, transactionEx);
-                    		throw transactionEx;
-                    	}
-                    }
-            	}
+            conn = getConnection(shard, goer);
+            poolWait = System.nanoTime()-start;
+            if(SqlMetrics.isRowsCounted()) {
+            	conn = SqlMetrics.countRows(conn, rows);
+            }
+            while(true) {
+                try {
+		            if (sql != null)
+		                stmt = (null == genKeys)?conn.prepareStatement(sql):conn.prepareStatement(sql, genKeys);
+		            T result = goer.go(conn, stmt);
+		            failed = false;
+		            return result;
+                } catch(MySQLTransactionRollbackException transactionEx) {
+                	if(tries > 0)
+                		tries--;
+                	else {
+                		logger.error("Exceeded limit of transaction tries.");
+                        goer.error(context, transactionEx);
+                		throw transactionEx;
+                	}
+                }
+            }
         } catch (SQLException e) {
             goer.error(context, e);
             return null;
         } finally {
             close(stmt);
             close(conn);
+            afterWorker(goer);
+            SqlMetrics.record(context, poolWait, System.nanoTime()-start, 30-tries, rows.get(), failed);
         }
     }
 
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Registers the SQL metrics MBean and serves the metrics in the Prometheus text format
+ * to the hosts listed in metrics.allowed_hosts.
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 2786340946512871542L;
+	private static final Logger logger = Logger.getLogger(MetricsServlet.class);
+
+	static final String SQL_METRICS_NAME = "edu.jhu.pha.vospace:type=SqlMetrics";
+
+	private final Set<String> allowedHosts = new HashSet<String>(Arrays.asList(
+			SettingsServlet.getConfig().getStringArray("metrics.allowed_hosts")));
+
+	@Override
+	public void init() throws ServletException {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(SQL_METRICS_NAME);
+			if(!server.isRegistered(name))
+				server.registerMBean(new SqlMetrics(), name);
+		} catch(Exception ex) {
+			logger.error("Error registering the SQL metrics MBean: "+ex.getMessage());
+		}
+	}
+
+	@Override
+	public void destroy() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(SQL_METRICS_NAME));
+		} catch(Exception ignored) {}
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if(!allowedHosts.contains(request.getRemoteAddr())) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		response.setContentType("text/plain; version=0.0.4");
+		response.setCharacterEncoding("UTF-8");
+		PrintWriter out = response.getWriter();
+
+		out.println("# HELP scidrive_sql_seconds goSql call time by operation, including the pool wait and retries");
+		out.println("# TYPE scidrive_sql_seconds histogram");
+		for(SqlMetrics.Operation op: SqlMetrics.operations()) {
+			String labels = "op=\""+escape(op.label)+"\"";
+			long cumulative = 0;
+			for(int i = 0; i < SqlMetrics.BUCKETS.length; i++) {
+				cumulative += op.buckets.get(i);
+				out.println("scidrive_sql_seconds_bucket{"+labels+",le=\""+seconds(SqlMetrics.BUCKETS[i])+"\"} "+cumulative);
+			}
+			cumulative += op.buckets.get(SqlMetrics.BUCKETS.length);
+			out.println("scidrive_sql_seconds_bucket{"+labels+",le=\"+Inf\"} "+cumulative);
+			out.println("scidrive_sql_seconds_sum{"+labels+"} "+seconds(op.totalMicros.get()));
+			out.println("scidrive_sql_seconds_count{"+labels+"} "+cumulative);
+		}
+
+		printCounters(out, "scidrive_sql_pool_wait_seconds_total", "Connection pool borrow wait by operation", 0);
+		printCounters(out, "scidrive_sql_retries_total", "Deadlock retries by operation", 1);
+		printCounters(out, "scidrive_sql_errors_total", "Failed calls by operation", 2);
+		if(SqlMetrics.isRowsCounted())
+			printCounters(out, "scidrive_sql_rows_total", "Rows read or changed by operation", 3);
+	}
+
+	private static void printCounters(PrintWriter out, String metric, String help, int counter) {
+		out.println("# HELP "+metric+" "+help);
+		out.println("# TYPE "+metric+" counter");
+		for(SqlMetrics.Operation op: SqlMetrics.operations()) {
+			String value;
+			switch(counter) {
+				case 0: value = seconds(op.poolWaitMicros.get()); break;
+				case 1: value = Long.toString(op.retries.get()); break;
+				case 2: value = Long.toString(op.errors.get()); break;
+				default: value = Long.toString(op.rows.get());
+			}
+			out.println(metric+"{op=\""+escape(op.label)+"\"} "+value);
+		}
+	}
+
+	private static String seconds(long micros) {
+		return Double.toString(micros/1000000.0);
+	}
+
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
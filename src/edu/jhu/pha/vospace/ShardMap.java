@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+
+import edu.jhu.pha.vospace.DbPoolServlet.PrimaryReader;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
+
+/**
+ * The users shards directory: user_id -> shard, kept in the user_shards table of the default shard database.
+ * The users without a row are on the default shard.
+ * The entries are cached for db.shard.map_ttl seconds, so a move started by another server is seen within the period;
+ * the entries of the users being moved are reloaded on each use.
+ */
+public class ShardMap {
+
+	private static final Logger logger = Logger.getLogger(ShardMap.class);
+	static Configuration conf = SettingsServlet.getConfig();
+
+	/** How long the shards of the users are cached, ms */
+	static final long ttl = conf.getLong("db.shard.map_ttl", 30)*1000;
+	/** How long a writer waits for the user move to finish, ms */
+	private static final long moveWait = conf.getLong("db.shard.move_wait", 60)*1000;
+	private static final long MOVE_POLL = 500;
+
+	private static final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	static class Entry {
+		final long userId;
+		final String shard;
+		/** The shard the user is being moved to, null if not moving */
+		final String movingTo;
+		final long loaded = System.currentTimeMillis();
+
+		Entry(long userId, String shard, String movingTo) {
+			this.userId = userId;
+			this.shard = shard;
+			this.movingTo = movingTo;
+		}
+
+		boolean isFresh() {
+			return System.currentTimeMillis()-loaded < ((null == movingTo)?ttl:MOVE_POLL);
+		}
+	}
+
+	private ShardMap() {}
+
+	/**
+	 * @return The shard to read the user data from, the default one for the unknown users
+	 */
+	public static String getReadShard(String user) throws SQLException {
+		Entry entry = getEntry(user, false);
+		return (null == entry)?DbPoolServlet.DEFAULT_SHARD:entry.shard;
+	}
+
+	/**
+	 * Returns the shard to write the user data to, waiting for the user move to finish
+	 * @throws SQLException If the move does not finish in db.shard.move_wait seconds
+	 */
+	public static String getWriteShard(String user) throws SQLException {
+		Entry entry = getEntry(user, false);
+		long deadline = System.currentTimeMillis()+moveWait;
+		while(null != entry && null != entry.movingTo) {
+			if(System.currentTimeMillis() > deadline)
+				throw new SQLException("The user "+user+" is being moved to the "+entry.movingTo+" shard");
+			try {
+				Thread.sleep(MOVE_POLL);
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted waiting for the user "+user+" move");
+			}
+			entry = getEntry(user, true);
+		}
+		return (null == entry)?DbPoolServlet.DEFAULT_SHARD:entry.shard;
+	}
+
+	/**
+	 * Returns the user shard entry
+	 * @param reload Read the entry from the DB even if cached
+	 * @return The entry, or null if the user is not known
+	 */
+	static Entry getEntry(final String user, boolean reload) throws SQLException {
+		Entry entry = entries.get(user);
+		if(!reload && null != entry && entry.isFresh())
+			return entry;
+
+		final SQLException[] error = new SQLException[1];
+		entry = DbPoolServlet.goSql("Getting the user shard",
+				"select user_identities.user_id, shard, moving_to from user_identities "+
+				"LEFT JOIN user_shards ON user_identities.user_id = user_shards.user_id where identity = ?",
+				new PrimaryReader<Entry>() {
+					@Override
+					public Entry go(Connection conn, PreparedStatement stmt) throws SQLException {
+						stmt.setString(1, user);
+						ResultSet rs = stmt.executeQuery();
+						if(!rs.next())
+							return null;
+						String shard = rs.getString("shard");
+						return new Entry(rs.getLong("user_id"), (null == shard)?DbPoolServlet.DEFAULT_SHARD:shard, rs.getString("moving_to"));
+					}
+
+					@Override
+					public void error(String context, SQLException e) {
+						error[0] = e;
+					}
+				}
+		);
+		if(null != error[0]) // do not route to the default shard a user who can be elsewhere
+			throw error[0];
+		if(null == entry)
+			entries.remove(user);
+		else
+			entries.put(user, entry);
+		return entry;
+	}
+
+	/**
+	 * Drops the cached shard of the user
+	 */
+	static void invalidate(String user) {
+		entries.remove(user);
+	}
+
+	/**
+	 * @return The identities of the user
+	 */
+	static List<String> getIdentities(final long userId) {
+		List<String> identities = DbPoolServlet.goSql("Getting the user identities",
+				"select identity from user_identities where user_id = ?",
+				new PrimaryReader<List<String>>() {
+					@Override
+					public List<String> go(Connection conn, PreparedStatement stmt) throws SQLException {
+						stmt.setLong(1, userId);
+						List<String> result = new ArrayList<String>();
+						ResultSet rs = stmt.executeQuery();
+						while(rs.next())
+							result.add(rs.getString(1));
+						return result;
+					}
+				}
+		);
+		return (null == identities)?new ArrayList<String>():identities;
+	}
+
+	/**
+	 * Places the just created user on one of the db.shard.new_users shards, picked by the user id.
+	 * The user stays on the default shard if it is picked or the shard can't be set up.
+	 * @param user The user identity
+	 */
+	public static void placeNewUser(final String user) {
+		List<String> newUserShards = new ArrayList<String>();
+		for(String shard: conf.getStringArray("db.shard.new_users")) {
+			if(DbPoolServlet.isShard(shard.trim()))
+				newUserShards.add(shard.trim());
+			else if(!shard.trim().isEmpty())
+				logger.error("Unknown shard "+shard+" in db.shard.new_users");
+		}
+		if(newUserShards.isEmpty())
+			return;
+
+		try {
+			Entry entry = getEntry(user, true);
+			if(null == entry || !entry.shard.equals(DbPoolServlet.DEFAULT_SHARD))
+				return;
+			final long userId = entry.userId;
+			final String shard = newUserShards.get((int)(userId % newUserShards.size()));
+			if(shard.equals(DbPoolServlet.DEFAULT_SHARD))
+				return;
+
+			ShardRebalancer.copyUserRows(userId, DbPoolServlet.DEFAULT_SHARD, shard);
+
+			DbPoolServlet.goSql("Placing the new user",
+					"insert into user_shards (user_id, shard) values (?, ?)",
+					new SqlWorker<Boolean>() {
+						@Override
+						public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+							stmt.setLong(1, userId);
+							stmt.setString(2, shard);
+							return stmt.executeUpdate() > 0;
+						}
+					}
+			);
+		} catch(SQLException ex) {
+			logger.error("Error placing the user "+user+": "+ex.getMessage());
+		} finally {
+			invalidate(user);
+		}
+	}
+}
@@ -0,0 +1,374 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
+import edu.jhu.pha.vospace.DbPoolServlet.Workload;
+
+/**
+ * Moves the users metadata between the shards online.
+ * The user is marked as moving in the directory, so the writers of all the servers wait while the readers
+ * keep using the source shard. When the servers have seen the mark and the running writes are finished,
+ * the user rows are copied to the target shard keeping their ids, the directory is switched to the target
+ * and, once the readers of the old shard are done, the rows are removed from the source.
+ */
+public class ShardRebalancer implements ShardRebalancerMXBean {
+
+	private static final Logger logger = Logger.getLogger(ShardRebalancer.class);
+
+	static final String SHARD_REBALANCER_NAME = "edu.jhu.pha.vospace:type=ShardRebalancer";
+
+	/** Time for the running statements to finish after the servers have seen the shard change, ms */
+	private static final long MOVE_SETTLE = 10*1000;
+	private static final int BATCH_SIZE = 1000;
+
+	/** The user tables in the foreign keys order, with the condition selecting the user rows */
+	private static final String[][] USER_TABLES = {
+		{"users", "user_id = ?"},
+		{"user_identities", "user_id = ?"},
+		{"containers", "user_id = ?"},
+		{"nodes", "container_id IN (select container_id from containers where user_id = ?)"},
+		{"node_properties", "node_id IN (select node_id from nodes JOIN containers ON nodes.container_id = containers.container_id where user_id = ?)"},
+		{"node_property_index", "user_id = ?"},
+		{"node_name_grams", "node_id IN (select node_id from nodes JOIN containers ON nodes.container_id = containers.container_id where user_id = ?)"},
+		{"node_changes", "user_id = ?"},
+		{"chunked_uploads", "user_id = ?"},
+		{"jobs", "user_id = ?"}
+	};
+
+	static void register() {
+		if(!DbPoolServlet.isSharded())
+			return;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(SHARD_REBALANCER_NAME);
+			if(!server.isRegistered(name))
+				server.registerMBean(new ShardRebalancer(), name);
+		} catch(Exception ex) {
+			logger.error("Error registering the shard rebalancer MBean: "+ex.getMessage());
+		}
+	}
+
+	static void unregister() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(SHARD_REBALANCER_NAME);
+			if(server.isRegistered(name))
+				server.unregisterMBean(name);
+		} catch(Exception ignored) {}
+	}
+
+	@Override
+	public List<String> getShards() {
+		return DbPoolServlet.getShards();
+	}
+
+	@Override
+	public String getUserShard(String user) {
+		try {
+			ShardMap.Entry entry = ShardMap.getEntry(user, true);
+			if(null == entry)
+				return "Unknown user "+user;
+			return entry.shard+((null == entry.movingTo)?"":" (moving to "+entry.movingTo+")");
+		} catch(SQLException ex) {
+			return "Error: "+ex.getMessage();
+		}
+	}
+
+	@Override
+	public synchronized String moveUser(String user, String target) {
+		Workload workload = DbPoolServlet.setWorkload(Workload.BACKGROUND);
+		try {
+			return move(user, target);
+		} finally {
+			DbPoolServlet.setWorkload(workload);
+		}
+	}
+
+	private String move(String user, String target) {
+		if(!DbPoolServlet.isShard(target))
+			return "Unknown shard "+target;
+		try {
+			ShardMap.Entry entry = ShardMap.getEntry(user, true);
+			if(null == entry)
+				return "Unknown user "+user;
+			if(null != entry.movingTo)
+				return "The user "+user+" is already being moved to "+entry.movingTo;
+			if(entry.shard.equals(target))
+				return "The user "+user+" is already on "+target;
+
+			final String source = entry.shard;
+			final long userId = entry.userId;
+			if(!setMoving(userId, source, target))
+				return "The user "+user+" is being moved by another server";
+			List<String> identities = ShardMap.getIdentities(userId);
+			logger.info("Moving the user "+user+" from "+source+" to "+target);
+
+			long start = System.currentTimeMillis();
+			boolean moved = false;
+			try {
+				invalidate(identities);
+				Thread.sleep(ShardMap.ttl+MOVE_SETTLE);
+
+				purgeUser(userId, target); // leftovers of a failed move
+				copyUser(userId, source, target);
+				setShard(userId, target);
+				moved = true;
+			} finally {
+				if(!moved)
+					setShard(userId, source);
+				invalidate(identities);
+			}
+			long writesPaused = System.currentTimeMillis()-start;
+
+			Thread.sleep(ShardMap.ttl+MOVE_SETTLE);
+			purgeUser(userId, source);
+
+			logger.info("Moved the user "+user+" from "+source+" to "+target+", the writes were paused for "+writesPaused+" ms");
+			return "Moved the user "+user+" from "+source+" to "+target;
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return "Interrupted moving the user "+user;
+		} catch(SQLException ex) {
+			logger.error("Error moving the user "+user+" to "+target+": "+ex.getMessage());
+			return "Error moving the user "+user+": "+ex.getMessage();
+		}
+	}
+
+	private static void invalidate(List<String> identities) {
+		for(String identity: identities)
+			ShardMap.invalidate(identity);
+	}
+
+	/**
+	 * Marks the user as moving in the directory
+	 * @return false if the user is already being moved
+	 */
+	private static boolean setMoving(final long userId, final String source, final String target) throws SQLException {
+		return go(DbPoolServlet.DEFAULT_SHARD, "Marking the user as moving",
+				"select moving_to from user_shards where user_id = ? for update",
+				new SqlWorker<Boolean>() {
+					@Override
+					public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+						stmt.setLong(1, userId);
+						ResultSet rs = stmt.executeQuery();
+						if(rs.next() && null != rs.getString("moving_to"))
+							return false;
+
+						PreparedStatement markStmt = conn.prepareStatement("insert into user_shards (user_id, shard, moving_to) values (?, ?, ?) "+
+								"on duplicate key update moving_to = VALUES(moving_to)");
+						try {
+							markStmt.setLong(1, userId);
+							markStmt.setString(2, source);
+							markStmt.setString(3, target);
+							markStmt.executeUpdate();
+						} finally {
+							DbPoolServlet.close(markStmt);
+						}
+						return true;
+					}
+				}, true);
+	}
+
+	/**
+	 * Sets the user shard in the directory and ends the move
+	 */
+	private static void setShard(final long userId, final String shard) throws SQLException {
+		go(DbPoolServlet.DEFAULT_SHARD, "Setting the user shard",
+				"update user_shards set shard = ?, moving_to = NULL where user_id = ?",
+				new SqlWorker<Integer>() {
+					@Override
+					public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
+						stmt.setString(1, shard);
+						stmt.setLong(2, userId);
+						return stmt.executeUpdate();
+					}
+				}, false);
+	}
+
+	/**
+	 * Copies the users and user_identities rows of the user to the shard
+	 */
+	static void copyUserRows(long userId, String source, String target) throws SQLException {
+		copyTable(userId, source, target, USER_TABLES[0][0], USER_TABLES[0][1]);
+		copyTable(userId, source, target, USER_TABLES[1][0], USER_TABLES[1][1]);
+	}
+
+	private static void copyUser(final long userId, String source, String target) throws SQLException {
+		boolean toDirectory = target.equals(DbPoolServlet.DEFAULT_SHARD);
+		for(String[] table: USER_TABLES) {
+			// the directory keeps the users and identities of all the users
+			if(toDirectory && (table[0].equals("users") || table[0].equals("user_identities")))
+				continue;
+			copyTable(userId, source, target, table[0], table[1]);
+		}
+
+		if(toDirectory) {
+			final long[] counters = go(source, "Reading the user counters",
+					"select bytes_used, object_count, change_seq from users where user_id = ?",
+					new SqlWorker<long[]>() {
+						@Override
+						public long[] go(Connection conn, PreparedStatement stmt) throws SQLException {
+							stmt.setLong(1, userId);
+							ResultSet rs = stmt.executeQuery();
+							if(!rs.next())
+								throw new SQLException("The user "+userId+" is not found on the source shard");
+							return new long[]{rs.getLong("bytes_used"), rs.getLong("object_count"), rs.getLong("change_seq")};
+						}
+					}, false);
+			go(target, "Copying the user counters",
+					"update users set bytes_used = ?, object_count = ?, change_seq = ? where user_id = ?",
+					new SqlWorker<Integer>() {
+						@Override
+						public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
+							stmt.setLong(1, counters[0]);
+							stmt.setLong(2, counters[1]);
+							stmt.setLong(3, counters[2]);
+							stmt.setLong(4, userId);
+							return stmt.executeUpdate();
+						}
+					}, false);
+		}
+	}
+
+	/**
+	 * Streams the user rows of the table from the source shard to the target one, keeping the keys
+	 */
+	private static void copyTable(final long userId, final String source, String target, final String table, final String condition) throws SQLException {
+		Long copied = go(target, "Copying the user rows", null,
+				new SqlWorker<Long>() {
+					@Override
+					public Long go(final Connection targetConn, PreparedStatement stmt) throws SQLException {
+						Statement settingsStmt = targetConn.createStatement();
+						try {
+							// the rows are copied table by table, the parent nodes can come after their children
+							settingsStmt.execute("SET FOREIGN_KEY_CHECKS = 0");
+							targetConn.setAutoCommit(false);
+							return ShardRebalancer.go(source, "Reading the user rows",
+									"select * from "+table+" where "+condition,
+									new SqlWorker<Long>() {
+										@Override
+										public Long go(Connection conn, PreparedStatement stmt) throws SQLException {
+											stmt.setFetchSize(Integer.MIN_VALUE); // stream the rows
+											stmt.setLong(1, userId);
+											ResultSet rs = stmt.executeQuery();
+											ResultSetMetaData meta = rs.getMetaData();
+											int columns = meta.getColumnCount();
+											StringBuilder names = new StringBuilder(), values = new StringBuilder();
+											for(int i = 1; i <= columns; i++) {
+												if(i > 1) {
+													names.append(", ");
+													values.append(", ");
+												}
+												names.append('`').append(meta.getColumnName(i)).append('`');
+												values.append('?');
+											}
+
+											PreparedStatement insertStmt = targetConn.prepareStatement("insert into "+table+" ("+names+") values ("+values+")");
+											long rows = 0;
+											try {
+												while(rs.next()) {
+													for(int i = 1; i <= columns; i++)
+														insertStmt.setObject(i, rs.getObject(i));
+													insertStmt.addBatch();
+													if(++rows % BATCH_SIZE == 0) {
+														insertStmt.executeBatch();
+														targetConn.commit();
+													}
+												}
+												insertStmt.executeBatch();
+												targetConn.commit();
+											} finally {
+												DbPoolServlet.close(insertStmt);
+											}
+											return rows;
+										}
+									}, false);
+						} finally {
+							try { targetConn.rollback(); } catch(SQLException ex) { logger.error("Error rolling back: "+ex.getMessage()); }
+							targetConn.setAutoCommit(true);
+							settingsStmt.execute("SET FOREIGN_KEY_CHECKS = 1");
+							DbPoolServlet.close(settingsStmt);
+						}
+					}
+				}, false);
+		logger.debug("Copied "+copied+" "+table+" rows of the user "+userId+" from "+source+" to "+target);
+	}
+
+	/**
+	 * Removes the user rows from the shard, keeping the directory users and identities on the default shard
+	 */
+	private static void purgeUser(final long userId, String shard) throws SQLException {
+		final boolean isDirectory = shard.equals(DbPoolServlet.DEFAULT_SHARD);
+		go(shard, "Removing the moved user rows", null,
+				new SqlWorker<Boolean>() {
+					@Override
+					public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+						// the nodes, properties and indexes are removed by the containers cascade
+						String[] deletes = isDirectory?
+								new String[]{"delete from chunked_uploads where user_id = ?", "delete from jobs where user_id = ?",
+									"delete from node_changes where user_id = ?", "delete from containers where user_id = ?"}:
+								new String[]{"delete from chunked_uploads where user_id = ?", "delete from users where user_id = ?"};
+						for(String delete: deletes) {
+							PreparedStatement deleteStmt = conn.prepareStatement(delete);
+							try {
+								deleteStmt.setLong(1, userId);
+								deleteStmt.executeUpdate();
+							} finally {
+								DbPoolServlet.close(deleteStmt);
+							}
+						}
+						return true;
+					}
+				}, false);
+	}
+
+	/**
+	 * Runs the worker on the shard, rethrowing its error
+	 */
+	private static <T> T go(String shard, String context, String sql, final SqlWorker<T> goer, boolean tx) throws SQLException {
+		final SQLException[] error = new SQLException[1];
+		SqlWorker<T> worker = new SqlWorker<T>() {
+			@Override
+			public T go(Connection conn, PreparedStatement stmt) throws SQLException {
+				return goer.go(conn, stmt);
+			}
+
+			@Override
+			public void error(String context, SQLException e) {
+				error[0] = e;
+			}
+		};
+		T result = tx?DbPoolServlet.goShardSqlTx(shard, context, sql, worker):DbPoolServlet.goShardSql(shard, context, sql, worker);
+		if(null != error[0])
+			throw error[0];
+		return result;
+	}
+}
@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace;
+
+import java.util.List;
+
+/**
+ * JMX operations moving the users between the shards
+ */
+public interface ShardRebalancerMXBean {
+
+	/** The configured shards, the default one first */
+	public List<String> getShards();
+
+	/** The shard of the user identity */
+	public String getUserShard(String user);
+
+	/**
+	 * Moves the user metadata to the shard. The user data stay readable during the move,
+	 * the writes wait for the move to finish.
+	 * @return The move outcome
+	 */
+	public String moveUser(String user, String shard);
+}
@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+/**
+ * Per-operation statistics of the {@link DbPoolServlet#goSql} calls: latency histogram, pool borrow wait,
+ * deadlock retries, errors and, when enabled separately, rows read or changed.
+ * Counting the rows proxies every JDBC call of the operation, so it is meant for short diagnostic sessions.
+ * The operations are labeled by the goSql context with the per-call parts (quoted strings, node URIs,
+ * everything after " for ") removed.
+ */
+public class SqlMetrics implements SqlMetricsMXBean {
+
+	/** Latency histogram buckets upper bounds, microseconds */
+	static final long[] BUCKETS = {1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000};
+
+	private static final int MAX_LABELS = 1000;
+	private static final String OTHER_LABEL = "other";
+
+	private static final Pattern QUOTED = Pattern.compile("\"[^\"]*\"");
+	private static final Pattern PATH_TOKEN = Pattern.compile("\\S*[/:]\\S*");
+	private static final Pattern SPACES = Pattern.compile("\\s+");
+
+	private static final boolean enabled = SettingsServlet.getConfig().getBoolean("db.metrics", true);
+	private static final boolean rowsCounted = enabled && SettingsServlet.getConfig().getBoolean("db.metrics.rows", false);
+
+	private static final ConcurrentHashMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+
+	static class Operation {
+		final String label;
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong retries = new AtomicLong();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong totalMicros = new AtomicLong();
+		final AtomicLong maxMicros = new AtomicLong();
+		final AtomicLong poolWaitMicros = new AtomicLong();
+		final AtomicLong maxPoolWaitMicros = new AtomicLong();
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length+1);
+
+		Operation(String label) {
+			this.label = label;
+		}
+
+		void record(long micros, long poolWait, int retried, long rowsCount, boolean failed) {
+			count.incrementAndGet();
+			if(failed)
+				errors.incrementAndGet();
+			retries.addAndGet(retried);
+			rows.addAndGet(rowsCount);
+			totalMicros.addAndGet(micros);
+			poolWaitMicros.addAndGet(poolWait);
+			max(maxMicros, micros);
+			max(maxPoolWaitMicros, poolWait);
+			int bucket = 0;
+			while(bucket < BUCKETS.length && micros > BUCKETS[bucket])
+				bucket++;
+			buckets.incrementAndGet(bucket);
+		}
+
+		private static void max(AtomicLong max, long value) {
+			long cur;
+			while(value > (cur = max.get()) && !max.compareAndSet(cur, value));
+		}
+
+		/** Upper bound of the bucket holding the quantile, microseconds; -1 for the last (unbounded) bucket */
+		long quantile(double q) {
+			long total = count.get();
+			if(total == 0)
+				return 0;
+			long rank = (long)Math.ceil(total*q), seen = 0;
+			for(int i = 0; i < BUCKETS.length; i++) {
+				seen += buckets.get(i);
+				if(seen >= rank)
+					return BUCKETS[i];
+			}
+			return -1;
+		}
+	}
+
+	/** JMX snapshot of an operation statistics */
+	public static class OperationStats {
+		private final String label;
+		private final long count, errors, retries, rows, totalMillis, maxMillis, poolWaitMillis, maxPoolWaitMillis, p50Millis, p99Millis;
+
+		OperationStats(Operation op) {
+			label = op.label;
+			count = op.count.get();
+			errors = op.errors.get();
+			retries = op.retries.get();
+			rows = op.rows.get();
+			totalMillis = op.totalMicros.get()/1000;
+			maxMillis = op.maxMicros.get()/1000;
+			poolWaitMillis = op.poolWaitMicros.get()/1000;
+			maxPoolWaitMillis = op.maxPoolWaitMicros.get()/1000;
+			long p50 = op.quantile(0.5), p99 = op.quantile(0.99);
+			p50Millis = (p50 < 0)?maxMillis:p50/1000;
+			p99Millis = (p99 < 0)?maxMillis:p99/1000;
+		}
+
+		public String getLabel() { return label; }
+		public long getCount() { return count; }
+		public long getErrors() { return errors; }
+		public long getRetries() { return retries; }
+		public long getRows() { return rows; }
+		public long getTotalMillis() { return totalMillis; }
+		public long getMaxMillis() { return maxMillis; }
+		public long getPoolWaitMillis() { return poolWaitMillis; }
+		public long getMaxPoolWaitMillis() { return maxPoolWaitMillis; }
+		/** Histogram bucket upper bound */
+		public long getP50Millis() { return p50Millis; }
+		/** Histogram bucket upper bound */
+		public long getP99Millis() { return p99Millis; }
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static boolean isRowsCounted() {
+		return rowsCounted;
+	}
+
+	static String label(String context) {
+		if(null == context)
+			return OTHER_LABEL;
+		String label = context;
+		int forIndex = label.indexOf(" for ");
+		if(forIndex > 0)
+			label = label.substring(0, forIndex);
+		label = QUOTED.matcher(label).replaceAll("");
+		label = PATH_TOKEN.matcher(label).replaceAll("");
+		label = SPACES.matcher(label).replaceAll(" ").trim();
+		return label.isEmpty()?OTHER_LABEL:label;
+	}
+
+	/**
+	 * Records a goSql call
+	 * @param poolWait connection borrow time, ns
+	 * @param time the whole call time including the pool wait, ns
+	 */
+	public static void record(String context, long poolWait, long time, int retries, long rows, boolean failed) {
+		if(!enabled)
+			return;
+		String label = label(context);
+		Operation op = operations.get(label);
+		if(null == op) {
+			if(operations.size() >= MAX_LABELS)
+				label = OTHER_LABEL;
+			op = operations.get(label);
+			if(null == op) {
+				Operation newOp = new Operation(label);
+				op = operations.putIfAbsent(label, newOp);
+				if(null == op)
+					op = newOp;
+			}
+		}
+		op.record(time/1000, poolWait/1000, retries, rows, failed);
+	}
+
+	static List<Operation> operations() {
+		List<Operation> result = new ArrayList<Operation>(operations.values());
+		Collections.sort(result, new Comparator<Operation>() {
+			@Override
+			public int compare(Operation o1, Operation o2) {
+				long t1 = o1.totalMicros.get(), t2 = o2.totalMicros.get();
+				return (t1 < t2)?1:((t1 == t2)?0:-1);
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public List<OperationStats> getOperations() {
+		return getTopOperations(Integer.MAX_VALUE);
+	}
+
+	@Override
+	public List<OperationStats> getTopOperations(int n) {
+		List<OperationStats> result = new ArrayList<OperationStats>();
+		for(Operation op: operations()) {
+			if(result.size() >= n)
+				break;
+			result.add(new OperationStats(op));
+		}
+		return result;
+	}
+
+	@Override
+	public void reset() {
+		operations.clear();
+	}
+
+	/**
+	 * Wraps the connection to count the rows read from its result sets and changed by its statements
+	 */
+	static Connection countRows(final Connection conn, final AtomicLong rows) {
+		return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						Object result = invokeTarget(conn, method, args);
+						if(result instanceof Statement)
+							return countRows((Statement)result, method.getReturnType(), rows);
+						return result;
+					}
+				});
+	}
+
+	private static Object countRows(final Statement stmt, Class<?> type, final AtomicLong rows) {
+		return Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[]{type},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						Object result = invokeTarget(stmt, method, args);
+						if(result instanceof ResultSet)
+							return countRows((ResultSet)result, rows);
+						if(method.getName().equals("executeUpdate"))
+							rows.addAndGet((Integer)result);
+						else if(method.getName().equals("executeBatch")) {
+							for(int changed: (int[])result) {
+								if(changed > 0)
+									rows.addAndGet(changed);
+							}
+						}
+						return result;
+					}
+				});
+	}
+
+	private static ResultSet countRows(final ResultSet rs, final AtomicLong rows) {
+		return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						Object result = invokeTarget(rs, method, args);
+						if(Boolean.TRUE.equals(result) && method.getName().equals("next"))
+							rows.incrementAndGet();
+						return result;
+					}
+				});
+	}
+
+	private static Object invokeTarget(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch(InvocationTargetException ex) {
+			throw ex.getCause();
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace;
+
+import java.util.List;
+
+/**
+ * JMX view of the goSql statistics
+ */
+public interface SqlMetricsMXBean {
+
+	/** Statistics of all the operations, the most time consuming first */
+	public List<SqlMetrics.OperationStats> getOperations();
+
+	/** Statistics of the n most time consuming operations */
+	public List<SqlMetrics.OperationStats> getTopOperations(int n);
+
+	public void reset();
+}
@@ -40,7 +40,7 @@ public class SynchronizationServlet extends HttpServlet {
 	
 	private static final long serialVersionUID = -6837095401346471188L;
 
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1, DbPoolServlet.backgroundThreads("synchronization"));
     
     private ScheduledFuture<?> cleanerHandle;
     
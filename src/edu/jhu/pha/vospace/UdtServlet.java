@@ -130,7 +130,7 @@ public class UdtServlet extends HttpServlet implements Runnable {
 					
 					StorageManager backend = StorageManagerFactory.getStorageManager(job.getUsername());
 
-					InputStream dataInp = backend.getBytes(job.getTargetId().getNodePath());
+					InputStream dataInp = backend.getBytes(NodeFactory.getObjectPath(job.getTargetId(), job.getUsername()));
 					
 					try {
 						Node node = NodeFactory.getNode(job.getTargetId(), job.getUsername());
@@ -190,7 +190,7 @@ public class UdtServlet extends HttpServlet implements Runnable {
 						
 						long start=System.currentTimeMillis();
 						
-						backend.putBytes(job.getTargetId().getNodePath(), new SizeLimitInputStream(in, size));
+						backend.putBytes(NodeFactory.getObjectPath(job.getTargetId(), job.getUsername()), new SizeLimitInputStream(in, size));
 						logger.debug("Got the file");
 						long end=System.currentTimeMillis();
 
@@ -34,6 +34,7 @@ import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
 
 import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.PrimaryReader;
 import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
 import edu.jhu.pha.vospace.SettingsServlet;
 import edu.jhu.pha.vospace.api.exceptions.InternalServerErrorException;
@@ -66,14 +67,24 @@ public abstract class JobsProcessor implements Runnable  {
 	}
 	
 	/**
-	 * Returns the JobDescription object serialized from the database record
+	 * Returns the JobDescription object serialized from the database record.
+	 * The owner of the job is not known, so the shards are looked up in turn.
 	 * @param jobId The identifier of a job
 	 * @return The job java object
 	 */
 	public static JobDescription getJob(final UUID jobId) {
-        return DbPoolServlet.goSql("GetJob request",
+		for(String shard: DbPoolServlet.getShards()) {
+			JobDescription job = getJob(shard, jobId);
+			if(null != job)
+				return job;
+		}
+		return null;
+	}
+
+	private static JobDescription getJob(String shard, final UUID jobId) {
+        return DbPoolServlet.goShardSql(shard, "GetJob request",
         		"select json_notation, note from jobs where id = ?",
-                new SqlWorker<JobDescription>() {
+                new PrimaryReader<JobDescription>() {
                     @Override
                     public JobDescription go(Connection conn, PreparedStatement stmt) throws SQLException {
                 		JobDescription returnJob = null;
@@ -116,7 +127,7 @@ public abstract class JobsProcessor implements Runnable  {
 			throw new InternalServerErrorException(ex.getMessage());
 		}
 		
-        DbPoolServlet.goSql("Modify job",
+        DbPoolServlet.goUserSql(job.getUsername(), "Modify job",
         		"update jobs set endtime = ?, state = ?, json_notation = ?, note = ? where id = ?",
                 new SqlWorker<Integer>() {
                     @Override
@@ -149,7 +160,7 @@ public abstract class JobsProcessor implements Runnable  {
 			throw new InternalServerErrorException(ex.getMessage());
 		}
 		
-        DbPoolServlet.goSql("Submit job",
+        DbPoolServlet.goUserSql(login, "Submit job",
         		"insert into jobs (id,user_id,starttime,state,direction,target,json_notation) select ?, user_id, ?,?,?,?,? from user_identities WHERE identity = ?",
                 new SqlWorker<Integer>() {
                     @Override
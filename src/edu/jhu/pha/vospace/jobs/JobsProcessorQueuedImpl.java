@@ -29,6 +29,7 @@ import org.codehaus.jackson.map.ObjectMapper;
 
 import com.rabbitmq.client.QueueingConsumer;
 
+import edu.jhu.pha.vospace.DbPoolServlet;
 import edu.jhu.pha.vospace.QueueConnector;
 import edu.jhu.pha.vospace.api.exceptions.InternalServerErrorException;
 import edu.jhu.pha.vospace.protocol.ProtocolHandler;
@@ -51,7 +52,7 @@ public class JobsProcessorQueuedImpl extends JobsProcessor {
 	
 	JobsProcessorQueuedImpl() {
 		super();
-        service = Executors.newCachedThreadPool();
+        service = Executors.newCachedThreadPool(DbPoolServlet.backgroundThreads("jobs"));
         workers = new Vector<Future<STATE>>();
 	}
 
@@ -176,7 +177,7 @@ public class JobsProcessorQueuedImpl extends JobsProcessor {
 	 */
 	@Override
 	public void start() {
-		jobsThread = new Thread(this);
+		jobsThread = DbPoolServlet.backgroundThreads("jobsQueue").newThread(this);
 		jobsThread.setDaemon(true);
 		jobsThread.start();
 	}
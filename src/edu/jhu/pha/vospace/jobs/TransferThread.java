@@ -24,9 +24,11 @@ import edu.jhu.pha.vospace.api.exceptions.ConflictException;
 import edu.jhu.pha.vospace.api.exceptions.InternalServerErrorException;
 import edu.jhu.pha.vospace.meta.MetaStore;
 import edu.jhu.pha.vospace.meta.MetaStoreFactory;
+import edu.jhu.pha.vospace.node.ContainerNode;
 import edu.jhu.pha.vospace.node.Node;
 import edu.jhu.pha.vospace.node.NodeFactory;
 import edu.jhu.pha.vospace.node.NodeType;
+import edu.jhu.pha.vospace.node.SubtreeCopier;
 import edu.jhu.pha.vospace.node.VospaceId;
 import edu.jhu.pha.vospace.protocol.ProtocolHandler;
 import edu.jhu.pha.vospace.rest.JobDescription;
@@ -114,10 +116,35 @@ public class TransferThread implements Callable<STATE> {
 			if(!keepBytes)
 				node.markRemoved(true);
 			// else don't do anything
+		} else if(node instanceof ContainerNode) {
+			((ContainerNode)node).copy(direction, keepBytes, new JobProgressListener(transfer));
 		} else {
 			node.copy(direction, keepBytes);
 		}
 	}
+
+	/**
+	 * Reports the container copy progress in the job note, at most once in PROGRESS_INTERVAL
+	 */
+	private static class JobProgressListener implements SubtreeCopier.ProgressListener {
+		private static final long PROGRESS_INTERVAL = 5*1000;
+
+		private final JobDescription job;
+		private long lastReport = 0;
+
+		JobProgressListener(JobDescription job) {
+			this.job = job;
+		}
+
+		@Override
+		public synchronized void progress(int copied, int total) {
+			long now = System.currentTimeMillis();
+			if(copied < total && now - lastReport < PROGRESS_INTERVAL)
+				return;
+			lastReport = now;
+			JobsProcessor.modifyJobState(job, STATE.RUN, "Copied "+copied+" of "+total+" nodes");
+		}
+	}
 	
 	private static void validateTransfer(JobDescription transfer) {
 		/*TODO Check the whole method */
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.meta;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlReader;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
+import edu.jhu.pha.vospace.api.exceptions.InternalServerErrorException;
+import edu.jhu.pha.vospace.node.NodePath;
+
+/**
+ * Append-only journal of the user nodes changes kept in the node_changes table.
+ * The changes are written in the transaction changing the nodes and numbered by the users.change_seq counter.
+ * The counter row is locked till the commit, so the sequence numbers of a user have no gaps and
+ * are committed in order: a reader having seen the change N can resume from N+1.
+ */
+public class ChangeJournal {
+
+	private static final int BATCH_SIZE = 500;
+
+	private ChangeJournal() {}
+
+	/** A journal record */
+	public static class Change {
+		private final long seq;
+		private final NodePath path;
+		private final boolean deleted;
+
+		Change(long seq, NodePath path, boolean deleted) {
+			this.seq = seq;
+			this.path = path;
+			this.deleted = deleted;
+		}
+
+		public long getSeq() {
+			return seq;
+		}
+
+		/** The node storage path */
+		public NodePath getPath() {
+			return path;
+		}
+
+		/** The node was removed; otherwise it was created, changed or restored */
+		public boolean isDeleted() {
+			return deleted;
+		}
+	}
+
+	/** A page of the journal */
+	public static class Changes {
+		private final long lastSeq;
+		private final List<Change> changes;
+
+		Changes(long lastSeq, List<Change> changes) {
+			this.lastSeq = lastSeq;
+			this.changes = changes;
+		}
+
+		/** The sequence number of the latest user change */
+		public long getLastSeq() {
+			return lastSeq;
+		}
+
+		public List<Change> getChanges() {
+			return changes;
+		}
+	}
+
+	/**
+	 * Appends the changes of the nodes. Has to be called in the transaction changing the nodes,
+	 * after the nodes are changed to keep the user row locked for a short time.
+	 */
+	static void record(Connection conn, long userId, Collection<NodePath> paths, boolean deleted) throws SQLException {
+		if(paths.isEmpty())
+			return;
+
+		PreparedStatement stmt = conn.prepareStatement("select change_seq from users WHERE user_id = ? for update");
+		long seq;
+		try {
+			stmt.setLong(1, userId);
+			ResultSet rs = stmt.executeQuery();
+			if(!rs.next())
+				return;
+			seq = rs.getLong("change_seq");
+		} finally {
+			DbPoolServlet.close(stmt);
+		}
+
+		stmt = conn.prepareStatement("update users set change_seq = ? where user_id = ?");
+		try {
+			stmt.setLong(1, seq+paths.size());
+			stmt.setLong(2, userId);
+			stmt.executeUpdate();
+		} finally {
+			DbPoolServlet.close(stmt);
+		}
+
+		stmt = conn.prepareStatement("insert into node_changes (user_id, seq, container_name, path, deleted) values (?, ?, ?, ?, ?)");
+		try {
+			int batched = 0;
+			for(NodePath path: paths) {
+				stmt.setLong(1, userId);
+				stmt.setLong(2, ++seq);
+				stmt.setString(3, path.getContainerName());
+				stmt.setString(4, path.getNodeRelativeStoragePath());
+				stmt.setBoolean(5, deleted);
+				stmt.addBatch();
+				if(++batched % BATCH_SIZE == 0)
+					stmt.executeBatch();
+			}
+			stmt.executeBatch();
+		} finally {
+			DbPoolServlet.close(stmt);
+		}
+	}
+
+	/**
+	 * Returns up to limit user changes following the fromSeq one, oldest first
+	 */
+	public static Changes read(final String owner, final long fromSeq, final int limit) {
+		Changes result = DbPoolServlet.goUserSql(owner, "Reading the changes journal",
+				"select users.change_seq, node_changes.seq, node_changes.container_name, node_changes.path, node_changes.deleted from users "+
+				"JOIN user_identities ON users.user_id = user_identities.user_id "+
+				"LEFT JOIN node_changes ON node_changes.user_id = users.user_id AND node_changes.seq > ? "+
+				"WHERE identity = ? order by node_changes.seq limit ?",
+				new SqlReader<Changes>() {
+					@Override
+					public Changes go(Connection conn, PreparedStatement stmt) throws SQLException {
+						stmt.setLong(1, fromSeq);
+						stmt.setString(2, owner);
+						stmt.setInt(3, limit);
+						long lastSeq = 0;
+						List<Change> changes = new ArrayList<Change>();
+						ResultSet rs = stmt.executeQuery();
+						while(rs.next()) {
+							lastSeq = rs.getLong("change_seq");
+							if(null == rs.getString("container_name"))
+								continue;
+							changes.add(new Change(rs.getLong("seq"),
+									new NodePath(rs.getString("container_name")+"/"+rs.getString("path")), rs.getBoolean("deleted")));
+						}
+						return new Changes(lastSeq, changes);
+					}
+				}
+		);
+		if(null == result)
+			throw new InternalServerErrorException("Error reading the changes journal");
+		return result;
+	}
+
+	/**
+	 * Returns the sequence number of the latest user change
+	 */
+	public static long lastSeq(String owner) {
+		return read(owner, Long.MAX_VALUE, 1).getLastSeq();
+	}
+
+	/**
+	 * Returns up to limit paths of the not deleted user nodes following the (afterContainer, afterPath) one,
+	 * ordered by container and path. The first-level containers are included, a non-empty containerName
+	 * restricts the nodes to the container.
+	 */
+	public static List<NodePath> listNodes(final String owner, final String containerName, final String afterContainer, final String afterPath, final int limit) {
+		final boolean inContainer = null != containerName && !containerName.isEmpty();
+		List<NodePath> result = DbPoolServlet.goUserSql(owner, "Listing the user nodes",
+				"select container_name, path from nodes "+
+				"JOIN containers ON nodes.container_id = containers.container_id "+
+				"JOIN user_identities ON containers.user_id = user_identities.user_id "+
+				"WHERE identity = ? AND current_rev = 1 AND deleted = 0 AND container_name <> ''"+(inContainer?" AND container_name = ?":"")+
+				" AND (container_name > ? OR (container_name = ? AND path > ?)) order by container_name, path limit ?",
+				new SqlReader<List<NodePath>>() {
+					@Override
+					public List<NodePath> go(Connection conn, PreparedStatement stmt) throws SQLException {
+						int param = 1;
+						stmt.setString(param++, owner);
+						if(inContainer)
+							stmt.setString(param++, containerName);
+						stmt.setString(param++, afterContainer);
+						stmt.setString(param++, afterContainer);
+						stmt.setString(param++, afterPath);
+						stmt.setInt(param++, limit);
+						List<NodePath> paths = new ArrayList<NodePath>();
+						ResultSet rs = stmt.executeQuery();
+						while(rs.next())
+							paths.add(new NodePath(rs.getString("container_name")+"/"+rs.getString("path")));
+						return paths;
+					}
+				}
+		);
+		if(null == result)
+			throw new InternalServerErrorException("Error listing the user nodes");
+		return result;
+	}
+
+	/**
+	 * Removes the changes older than the retention period on all the shards
+	 * @param days the retention period
+	 */
+	public static void prune(int days) {
+		for(String shard: DbPoolServlet.getShards()) {
+			DbPoolServlet.goShardSql(shard, "Pruning the changes journal",
+					"delete from node_changes where ctime < (NOW() - INTERVAL "+days+" DAY)",
+					new SqlWorker<Boolean>() {
+						@Override
+						public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+							stmt.executeUpdate();
+							return true;
+						}
+					}
+			);
+		}
+	}
+}
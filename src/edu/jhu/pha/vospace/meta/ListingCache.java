@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.meta;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.configuration.Configuration;
+
+import edu.jhu.pha.vospace.SettingsServlet;
+import edu.jhu.pha.vospace.node.NodePath;
+
+/**
+ * Process-wide cache of the serialized container listings, ready to be written to the response.
+ * The pages are grouped by the listed node and keyed by the node version and the request variant
+ * (format, page, cursor etc.), so a page is never served for another version of the node.
+ * Groups of the changed nodes and their parents are dropped by {@link MetaCacheInvalidator} to free the memory early.
+ * The cache is bounded by the total size of the pages, the least recently used groups are dropped first.
+ */
+public class ListingCache {
+
+    static Configuration conf = SettingsServlet.getConfig();
+
+	private static final long maxBytes = conf.getLong("meta.listing_cache.size", 64)*1024*1024;
+	/** Bigger pages are not cached not to flush the rest of the cache */
+	private static final long maxPageBytes = maxBytes/64;
+
+	private static final Map<String, Group> groups = new LinkedHashMap<String, Group>(16, 0.75f, true);
+	private static long bytes = 0;
+
+	/** The cached pages of one version of a node */
+	private static class Group {
+		final String version;
+		final Map<String, byte[]> pages = new HashMap<String, byte[]>();
+		long bytes = 0;
+
+		Group(String version) {
+			this.version = version;
+		}
+	}
+
+	private ListingCache() {}
+
+	public static boolean isEnabled() {
+		return maxBytes > 0;
+	}
+
+	/**
+	 * Returns the cached listing page or null if it has to be generated
+	 * @param version The current {@link MetaStore#getVersionTag} of the listed node
+	 * @param variant The request parameters changing the listing of the same node version
+	 */
+	public static byte[] get(String owner, NodePath path, String version, String variant) {
+		if(!isEnabled() || null == version)
+			return null;
+		synchronized(groups) {
+			Group group = groups.get(key(owner, path));
+			if(null == group || !group.version.equals(version))
+				return null;
+			return group.pages.get(variant);
+		}
+	}
+
+	/**
+	 * Stores the listing page generated for the node version. The pages of the other versions of the node are dropped.
+	 * The page must not be modified afterwards.
+	 */
+	public static void put(String owner, NodePath path, String version, String variant, byte[] page) {
+		if(!isEnabled() || null == version || page.length > maxPageBytes)
+			return;
+		String key = key(owner, path);
+		synchronized(groups) {
+			Group group = groups.get(key);
+			if(null == group || !group.version.equals(version)) {
+				if(null != group)
+					bytes -= group.bytes;
+				group = new Group(version);
+				groups.put(key, group);
+			}
+			byte[] old = group.pages.put(variant, page);
+			long size = size(variant, page)-((null == old)?0:size(variant, old));
+			group.bytes += size;
+			bytes += size;
+
+			Iterator<Group> eldest = groups.values().iterator();
+			while(bytes > maxBytes && eldest.hasNext()) {
+				bytes -= eldest.next().bytes;
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached listings of the node and of its parent
+	 */
+	public static void invalidate(String owner, NodePath path) {
+		if(!isEnabled())
+			return;
+		synchronized(groups) {
+			remove(key(owner, path));
+			if(!path.isRoot(false))
+				remove(key(owner, path.getParentPath()));
+		}
+	}
+
+	/**
+	 * Drops all the cached listings
+	 */
+	public static void invalidateAll() {
+		synchronized(groups) {
+			groups.clear();
+			bytes = 0;
+		}
+	}
+
+	private static void remove(String key) {
+		Group group = groups.remove(key);
+		if(null != group)
+			bytes -= group.bytes;
+	}
+
+	private static String key(String owner, NodePath path) {
+		return owner+'\0'+path.getNodeStoragePath();
+	}
+
+	private static long size(String variant, byte[] page) {
+		return page.length+2*variant.length();
+	}
+}
@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.meta;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.Configuration;
+
+import edu.jhu.pha.vospace.SettingsServlet;
+import edu.jhu.pha.vospace.node.NodeIdentityMap;
+import edu.jhu.pha.vospace.node.NodeInfo;
+import edu.jhu.pha.vospace.node.NodePath;
+import edu.jhu.pha.vospace.node.NodeType;
+
+/**
+ * Process-wide cache of resolved nodes: the node, container and user keys
+ * together with the node type and info, and the owners user ids. Missing nodes are cached as negative entries.
+ * The cache is bounded and split into independently locked LRU segments.
+ * Entries are dropped locally on metadata writes and cluster-wide by {@link MetaCacheInvalidator}.
+ * The local invalidations also drop the nodes from the {@link NodeIdentityMap} of the current request.
+ */
+public class MetaCache {
+
+    static Configuration conf = SettingsServlet.getConfig();
+
+	private static final int SEGMENTS = 16;
+	private static final int maxSize = conf.getInt("meta.cache.size", 10000);
+	private static final long ttl = conf.getLong("meta.cache.ttl", 300)*1000;
+
+	private static final List<Map<String, Slot>> segments = new ArrayList<Map<String, Slot>>(SEGMENTS);
+
+	/** Container generations, bumped to drop all the cached nodes of a container at once */
+	private static final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+	/** The owners user_id keys, which never change for an identity */
+	private static final Map<String, Long> userIds = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	/** Count of invalidations, used to discard loads racing with an invalidation */
+	private static final AtomicLong invalidations = new AtomicLong();
+
+	static {
+		final int segmentSize = Math.max(1, maxSize/SEGMENTS);
+		for(int i = 0; i < SEGMENTS; i++) {
+			segments.add(new LinkedHashMap<String, Slot>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Slot> eldest) {
+					return size() > segmentSize;
+				}
+			});
+		}
+	}
+
+	private MetaCache() {}
+
+	/**
+	 * Resolved node record. Entries are immutable, the node info is copied on the way out.
+	 */
+	public static class Entry {
+		private final long nodeId;
+		private final long containerId;
+		private final long userId;
+		private final NodeType type;
+		private final NodeInfo info;
+
+		/** Negative entry for a node not stored in the database */
+		public Entry() {
+			this(0, 0, 0, null, null);
+		}
+
+		public Entry(long nodeId, long containerId, long userId, NodeType type, NodeInfo info) {
+			this.nodeId = nodeId;
+			this.containerId = containerId;
+			this.userId = userId;
+			this.type = type;
+			this.info = info;
+		}
+
+		public boolean isStored() {
+			return nodeId > 0;
+		}
+
+		public long getNodeId() {
+			return nodeId;
+		}
+
+		public long getContainerId() {
+			return containerId;
+		}
+
+		public long getUserId() {
+			return userId;
+		}
+
+		public NodeType getType() {
+			return type;
+		}
+
+		public NodeInfo getNodeInfo() {
+			return (null == info)?null:new NodeInfo(info);
+		}
+	}
+
+	private static class Slot {
+		final Entry entry;
+		final long generation;
+		final long expires;
+
+		Slot(Entry entry, long generation, long expires) {
+			this.entry = entry;
+			this.generation = generation;
+			this.expires = expires;
+		}
+	}
+
+	public static boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Returns the cached entry for the node or null if the node has to be loaded from the database
+	 */
+	public static Entry get(String owner, NodePath path) {
+		if(!isEnabled())
+			return null;
+		String key = key(owner, path);
+		Map<String, Slot> segment = segment(key);
+		Slot slot;
+		synchronized(segment) {
+			slot = segment.get(key);
+		}
+		if(null == slot)
+			return null;
+		if(slot.expires < System.currentTimeMillis() || slot.generation != generation(owner, path).get()) {
+			synchronized(segment) {
+				if(segment.get(key) == slot)
+					segment.remove(key);
+			}
+			return null;
+		}
+		return slot.entry;
+	}
+
+	/**
+	 * Snapshot to be taken before loading an entry from the database and passed to {@link #put}
+	 */
+	public static long snapshot() {
+		return invalidations.get();
+	}
+
+	/**
+	 * Stores the loaded entry unless the cache was invalidated since the snapshot was taken
+	 */
+	public static void put(String owner, NodePath path, Entry entry, long snapshot) {
+		if(!isEnabled() || null == entry)
+			return;
+		String key = key(owner, path);
+		Slot slot = new Slot(entry, generation(owner, path).get(), System.currentTimeMillis()+ttl);
+		Map<String, Slot> segment = segment(key);
+		synchronized(segment) {
+			if(invalidations.get() == snapshot)
+				segment.put(key, slot);
+		}
+	}
+
+	/**
+	 * Returns the cached user_id of the owner identity, 0 if it has to be loaded from the database
+	 */
+	public static long getUserId(String owner) {
+		synchronized(userIds) {
+			Long userId = userIds.get(owner);
+			return (null == userId)?0:userId;
+		}
+	}
+
+	public static void putUserId(String owner, long userId) {
+		if(!isEnabled() || userId <= 0)
+			return;
+		synchronized(userIds) {
+			userIds.put(owner, userId);
+		}
+	}
+
+	/**
+	 * Drops the cached node
+	 */
+	public static void invalidate(String owner, NodePath path) {
+		NodeIdentityMap.invalidate(owner, path);
+		if(!isEnabled())
+			return;
+		String key = key(owner, path);
+		Map<String, Slot> segment = segment(key);
+		synchronized(segment) {
+			invalidations.incrementAndGet();
+			segment.remove(key);
+		}
+	}
+
+	/**
+	 * Drops the cached first-level container node of the path, holding the container size changed with the usage counters
+	 */
+	public static void invalidateContainerRoot(String owner, NodePath path) {
+		invalidate(owner, new NodePath(path.getContainerName()));
+	}
+
+	/**
+	 * Drops the cached node and, if it is (or might be) a container, all the nodes of its first-level container
+	 */
+	public static void invalidateTree(String owner, NodePath path) {
+		NodeIdentityMap.invalidateTree(owner, path);
+		if(!isEnabled())
+			return;
+		Entry entry = get(owner, path);
+		if(path.getNodeRelativeStoragePath().isEmpty() || null == entry || entry.getType() == NodeType.CONTAINER_NODE) {
+			invalidations.incrementAndGet();
+			generation(owner, path).incrementAndGet();
+		}
+		invalidate(owner, path);
+	}
+
+	/**
+	 * Drops all the cached nodes
+	 */
+	public static void invalidateAll() {
+		NodeIdentityMap.invalidateAll();
+		invalidations.incrementAndGet();
+		synchronized(userIds) {
+			userIds.clear();
+		}
+		for(Map<String, Slot> segment: segments) {
+			synchronized(segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	private static String key(String owner, NodePath path) {
+		return owner+'\0'+path.getContainerName()+'\0'+path.getNodeRelativeStoragePath();
+	}
+
+	private static Map<String, Slot> segment(String key) {
+		return segments.get((key.hashCode() & 0x7fffffff) % SEGMENTS);
+	}
+
+	private static AtomicLong generation(String owner, NodePath path) {
+		String key = owner+'\0'+path.getContainerName();
+		AtomicLong generation = generations.get(key);
+		if(null == generation) {
+			AtomicLong newGeneration = new AtomicLong();
+			generation = generations.putIfAbsent(key, newGeneration);
+			if(null == generation)
+				generation = newGeneration;
+		}
+		return generation;
+	}
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.meta;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+
+import com.rabbitmq.client.QueueingConsumer;
+
+import edu.jhu.pha.vospace.QueueConnector;
+import edu.jhu.pha.vospace.SettingsServlet;
+import edu.jhu.pha.vospace.node.NodePath;
+import edu.jhu.pha.vospace.node.VospaceId;
+
+/**
+ * Listens to the node changed exchange with a private queue and drops the changed nodes from the {@link MetaCache}
+ * and their listings from the {@link ListingCache}.
+ * The whole metadata cache is dropped each time the subscription is (re)established, as the events could have been missed.
+ * The listings are kept: they are keyed by the node version and the events only free the memory early.
+ */
+public class MetaCacheInvalidator implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(MetaCacheInvalidator.class);
+    static Configuration conf = SettingsServlet.getConfig();
+
+    private static final long RECONNECT_DELAY = 10*1000;
+
+	@Override
+	public void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				QueueConnector.goAMQP("metaCacheInvalidator", new QueueConnector.AMQPWorker<Boolean>() {
+					@Override
+					public Boolean go(com.rabbitmq.client.Connection conn, com.rabbitmq.client.Channel channel) throws IOException {
+
+						channel.exchangeDeclare(conf.getString("vospace.exchange.nodechanged"), "fanout", false);
+
+						String queueName = channel.queueDeclare().getQueue();
+						channel.queueBind(queueName, conf.getString("vospace.exchange.nodechanged"), "");
+
+						QueueingConsumer consumer = new QueueingConsumer(channel);
+						channel.basicConsume(queueName, true, consumer);
+
+						MetaCache.invalidateAll();
+
+						while (!Thread.currentThread().isInterrupted()) {
+							try {
+						    	QueueingConsumer.Delivery delivery = consumer.nextDelivery();
+
+						    	Map<String,Object> nodeData = (new ObjectMapper()).readValue(delivery.getBody(), 0, delivery.getBody().length, new TypeReference<HashMap<String,Object>>() {});
+
+						    	VospaceId uri = new VospaceId((String)nodeData.get("uri"));
+						    	MetaCache.invalidateTree((String)nodeData.get("owner"), uri.getNodePath());
+						    	ListingCache.invalidate((String)nodeData.get("owner"), uri.getNodePath());
+						    	// the container size could be changed with the node
+						    	MetaCache.invalidateContainerRoot((String)nodeData.get("owner"), uri.getNodePath());
+						    	ListingCache.invalidate((String)nodeData.get("owner"), new NodePath(uri.getNodePath().getContainerName()));
+							} catch(InterruptedException ex) {
+								Thread.currentThread().interrupt();
+							} catch (URISyntaxException ex) {
+			            		logger.error("Error parsing VospaceId from changed node JSON: "+ex.getMessage());
+							} catch (IOException ex) {
+			            		logger.error("Error reading the changed node JSON: "+ex.getMessage());
+							}
+						}
+						return true;
+					}
+				});
+			} catch(Exception ex) {
+				logger.error("Metadata cache invalidation channel failed: "+ex.getMessage());
+			}
+
+			// Events could be missed while we are not subscribed
+			MetaCache.invalidateAll();
+
+			try {
+				Thread.sleep(RECONNECT_DELAY);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.meta;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.servlet.http.HttpServlet;
+
+public class MetaCacheServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 4419625470338225347L;
+
+	ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @Override
+	public void init() {
+    	PropertyInterner.load();
+    	if(MetaCache.isEnabled() || ListingCache.isEnabled())
+    		executor.submit(new MetaCacheInvalidator());
+    }
+
+	@Override
+	public void destroy() {
+		executor.shutdownNow();
+	}
+}
@@ -18,6 +18,7 @@ package edu.jhu.pha.vospace.meta;
 import java.util.List;
 import java.util.Map;
 
+import edu.jhu.pha.vospace.node.Node;
 import edu.jhu.pha.vospace.node.Node.PropertyType;
 import edu.jhu.pha.vospace.node.NodeInfo;
 import edu.jhu.pha.vospace.node.NodeType;
@@ -51,6 +52,34 @@ public interface MetaStore {
      */
     public NodesList getNodeChildren(VospaceId uri, boolean searchDeep, boolean includeDeleted, int start, int count) ;
 
+    /**
+     * Get a page of the node children ordered by path, starting after the cursor position.
+     * The cost of a page does not depend on its position in the listing.
+     * @param uri
+     * @param includeDeleted
+     * @param cursor Opaque cursor returned with the previous page, null or empty for the first page
+     * @param count Page size
+     * @param includeCount Count the total number of children, otherwise the list count is -1
+     * @return The page of children with the cursor of the next page, or null cursor if this is the last page
+     */
+    public NodesList getNodeChildren(VospaceId uri, boolean includeDeleted, String cursor, int count, boolean includeCount) ;
+
+    /**
+     * Loads the node with its type and system metadata, including the chunked upload mapping, in one go
+     * @param identifier
+     * @return The node with NodeInfo set
+     */
+    public Node getNode(VospaceId identifier);
+
+    /**
+     * Loads many nodes at once with their type, system metadata and optionally properties.
+     * Nodes not found in the database are skipped; the rest are returned in the requested order.
+     * @param identifiers
+     * @param includeProperties Load the nodes properties too
+     * @return
+     */
+    public List<Node> getNodes(List<VospaceId> identifiers, boolean includeProperties);
+
     /**
      * returns the node system metadata
      * @param uri
@@ -65,6 +94,14 @@ public interface MetaStore {
      */
     public NodeType getType(VospaceId identifier) ;
 
+    /**
+     * Returns the current version of the node, changed with the node and its direct children metadata.
+     * Read from the primary database, so it can be trusted for the conditional requests.
+     * @param identifier
+     * @return The opaque version tag, or null if the node is not stored
+     */
+    public String getVersionTag(VospaceId identifier);
+
     //public void incrementRevision(VospaceId uri);
 
 
@@ -81,6 +118,29 @@ public interface MetaStore {
      */
     public void markRemoved(VospaceId uri, boolean isRemoved);
 
+    /**
+     * Returns all the not removed descendants of the node, ordered by path, with the node info and user properties
+     * @param uri The subtree root
+     * @return The list of descendant nodes
+     */
+    public List<Node> getSubtree(VospaceId uri);
+
+    /**
+     * Stores the metadata of new nodes (type, info and user properties) with batch statements in a single transaction.
+     * The parent of each node has to be stored already or be in the list.
+     * @param nodes The nodes to store
+     */
+    public void storeNodes(List<Node> nodes);
+
+    /**
+     * Mark the node and all its descendants as removed (or restore them) with a single statement.
+     * The descendants removed before the subtree are kept removed on restore.
+     * @param uri The subtree root
+     * @param isRemoved
+     * @return The number of nodes changed
+     */
+    public int markRemovedTree(VospaceId uri, boolean isRemoved);
+
 	/**
      * Remove the node from metadata database. This method should be only used internally as it's slow.
 	 * Use the markRemoved method when requested by user.
@@ -91,6 +151,17 @@ public interface MetaStore {
     
 	public List<VospaceId> search(VospaceId identifier, String searchPattern, int fileLimit, boolean includeDeleted);
 
+    /**
+     * Finds the not deleted nodes under the node having the properties matching all the predicates, ordered by the value of the first predicate property, then by node.
+     * The values of the properties are looked up in the typed properties index.
+     * @param identifier The node to search under, the user root for all the user nodes
+     * @param predicates
+     * @param cursor Opaque cursor returned with the previous page, null or empty for the first page
+     * @param count Page size
+     * @return The page of nodes with the cursor of the next page, or null cursor if this is the last page
+     */
+    public NodesList searchProperties(VospaceId identifier, List<PropertyPredicate> predicates, String cursor, int count);
+
     /**
      * Store the metadata for the specified identifier
      * @param identifier
@@ -99,6 +170,13 @@ public interface MetaStore {
      */
     public void storeData(VospaceId identifier, NodeType type) ;
 
+    /**
+     * Replace the stored node (and its descendants) with a new empty node in a single transaction
+     * @param identifier
+     * @param type
+     */
+    public void replaceData(VospaceId identifier, NodeType type) ;
+
     /**
      * Update the node metadata in database from the NodeInfo object
      * @param identifier
@@ -115,12 +193,35 @@ public interface MetaStore {
      */
     public void updateData(VospaceId identifier, VospaceId newIdentifier) ;
 
+	/**
+     * Moves the node with all its descendants within its first-level container by changing their paths only,
+     * in a single transaction. Possible only when all the data nodes of the subtree are stored
+     * under immutable object names, as the storage objects are not touched.
+     * @param identifier The subtree root
+     * @param newIdentifier The new location of the subtree root, in the same first-level container
+     * @return false if the subtree has to be copied instead: the nodes are not changed
+     */
+    public boolean moveTree(VospaceId identifier, VospaceId newIdentifier);
+
+    /**
+     * Returns the immutable storage object names of the node and its descendants, including the removed ones
+     * @param identifier The subtree root
+     * @return The object names of the nodes having one
+     */
+    public List<String> getObjectNames(VospaceId identifier);
+
 	/**
      * Update the specified properties
      * @param properties
      */
     public void updateUserProperties(VospaceId identifier, Map<String, String> properties);
 
+    /**
+     * Stores the accumulated node and container metadata changes in one transaction
+     * @param update The changes
+     */
+    public void storeUpdate(NodeMetaUpdate update);
+
 	/**
      * Get share ID for node
      */
@@ -15,39 +15,64 @@
  ******************************************************************************/
 package edu.jhu.pha.vospace.meta;
 
+import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
 import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.PrimaryReader;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlReader;
 import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
+import edu.jhu.pha.vospace.api.exceptions.BadRequestException;
+import edu.jhu.pha.vospace.api.exceptions.InternalServerErrorException;
 import edu.jhu.pha.vospace.api.exceptions.NotFoundException;
 import edu.jhu.pha.vospace.node.Node;
 import edu.jhu.pha.vospace.node.Node.PropertyType;
 import edu.jhu.pha.vospace.node.NodeFactory;
+import edu.jhu.pha.vospace.node.NodeIdentityMap;
 import edu.jhu.pha.vospace.node.NodeInfo;
 import edu.jhu.pha.vospace.node.NodePath;
 import edu.jhu.pha.vospace.node.NodeType;
 import edu.jhu.pha.vospace.node.VospaceId;
+import edu.jhu.pha.vospace.storage.ObjectNames;
 
 /**
  * This class represents a metadata store for VOSpace based on the MySQL
- * open source database
+ * open source database.
+ * The owner identity and the container names are resolved to the user_id and container_id keys once
+ * and cached, the node queries then run on the integer keys against the nodes table alone.
  */
 public class MySQLMetaStore2 implements MetaStore{
 	
 	private static final Logger logger = Logger.getLogger(MySQLMetaStore2.class);
 	private String owner;
+	/** The owner user_id, resolved on the first use */
+	private long userId;
+
+	/** Max number of nodes to load with one query */
+	private static final int BATCH_SIZE = 500;
 
 	public MySQLMetaStore2(String username) {
 		this.owner = username;
@@ -59,15 +84,15 @@ public class MySQLMetaStore2 implements MetaStore{
 	 */
 	@Override
 	public byte[] getNodeBytes(final VospaceId identifier) {
-        return DbPoolServlet.goSql("Retrieving node "+identifier+" for user "+owner+" from meta DB",
-                "SELECT node FROM nodes JOIN containers ON nodes.container_id = containers.container_id JOIN user_identities ON containers.user_id = user_identities.user_id "+
-                		"WHERE `current_rev` = 1 AND `container_name` = ? AND `path` = ? AND `identity` = ?",
-                new SqlWorker<byte[]>() {
+		final MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			throw new NotFoundException("NodeNotFound");
+        return DbPoolServlet.goUserSql(owner, "Retrieving node "+identifier+" for user "+owner+" from meta DB",
+                "SELECT node FROM nodes WHERE `current_rev` = 1 AND node_id = ?",
+                new PrimaryReader<byte[]>() {
                     @Override
                     public byte[] go(Connection conn, PreparedStatement stmt) throws SQLException {
-                        stmt.setString(1, identifier.getNodePath().getContainerName());
-                        stmt.setString(2, identifier.getNodePath().getNodeRelativeStoragePath());
-                        stmt.setString(3, owner);
+                        stmt.setLong(1, entry.getNodeId());
                         ResultSet rs = stmt.executeQuery();
                         if (rs.next())
                             return rs.getBytes(1);
@@ -87,18 +112,19 @@ public class MySQLMetaStore2 implements MetaStore{
 	@Override
 	public NodesList getNodeChildren(final VospaceId identifier, final boolean searchDeep /*always false*/, final boolean includeDeleted /*not used*/, final int start, final int count) {
         if(identifier.getNodePath().isRoot(false)) {
+        	final long ownerId = getUserId();
         	String deletedCondition = includeDeleted?"":"nodes.`deleted` = 0 AND ";
-    		return DbPoolServlet.goSql("GetNodeChildren root request",
-    				"SELECT SQL_CALC_FOUND_ROWS containers.container_name as container, nodes.rev, nodes.deleted, nodes.mtime, nodes.size, nodes.mimetype, nodes.type "+
-            		"FROM nodes JOIN containers ON nodes.container_id = containers.container_id JOIN user_identities ON containers.user_id = user_identities.user_id "+
-            		"WHERE "+deletedCondition+"`parent_node_id` is NULL AND `identity` = ? AND `container_name` <> '' order by container "+((count > 0)?" limit ?, ?":""),
-                    new SqlWorker<NodesList>() {
+    		return DbPoolServlet.goUserSql(owner, "GetNodeChildren root request",
+    				"SELECT SQL_CALC_FOUND_ROWS containers.container_name as container, nodes.rev, nodes.deleted, nodes.mtime, nodes.size, nodes.mimetype, nodes.object_name, nodes.type "+
+            		"FROM nodes JOIN containers ON nodes.container_id = containers.container_id "+
+            		"WHERE "+deletedCondition+"`parent_node_id` is NULL AND containers.user_id = ? AND `container_name` <> '' order by container "+((count > 0)?" limit ?, ?":""),
+                    new SqlReader<NodesList>() {
                         @Override
                         public NodesList go(Connection conn, PreparedStatement stmt) throws SQLException {
                     		ArrayList<Node> result = new ArrayList<Node>();
                     		int countRows = 0;
 
-                    		stmt.setString(1, owner);
+                    		stmt.setLong(1, ownerId);
                             
                     		if(count > 0) {
                             	stmt.setInt(2, start);
@@ -117,6 +143,7 @@ public class MySQLMetaStore2 implements MetaStore{
                                 	info.setMtime(new Date(rs.getTimestamp("mtime").getTime()));
                                 	info.setSize(rs.getLong("size"));
                                 	info.setContentType(rs.getString("mimetype"));
+                                	info.setObjectName(rs.getString("object_name"));
 
         			    			Node newNode = NodeFactory.createNode(id, owner, NodeType.valueOf(rs.getString("type")));
         			    			newNode.setNodeInfo(info);
@@ -136,34 +163,33 @@ public class MySQLMetaStore2 implements MetaStore{
                     }
             );
         } else {
+        	final MetaCache.Entry parent = resolve(identifier);
+        	if(!parent.isStored())
+        		return new NodesList(new ArrayList<Node>(), 0);
         	String deletedCondition = includeDeleted?"":"nodes.`deleted` = 0 AND ";
-			String request = "SELECT SQL_CALC_FOUND_ROWS containers.container_name as container, nodes.path, nodes.rev, nodes.deleted, nodes.mtime, nodes.size, nodes.mimetype, nodes.type "+
-	        		"FROM nodes JOIN containers ON nodes.container_id = containers.container_id "+
-					"JOIN user_identities ON containers.user_id = user_identities.user_id "+
-	        		"JOIN nodes b ON nodes.parent_node_id = b.node_id "+
-	        		"WHERE "+deletedCondition+"containers.container_name = ? AND b.`path` = ? AND `identity` = ? order by path "+((count > 0)?" limit ?, ?":"");
+			String request = "SELECT SQL_CALC_FOUND_ROWS nodes.path, nodes.rev, nodes.deleted, nodes.mtime, nodes.size, nodes.mimetype, nodes.object_name, nodes.type "+
+	        		"FROM nodes WHERE "+deletedCondition+"nodes.container_id = ? AND nodes.parent_node_id = ? order by path "+((count > 0)?" limit ?, ?":"");
 	        
-			return DbPoolServlet.goSql("GetNodeChildren request",
+			return DbPoolServlet.goUserSql(owner, "GetNodeChildren request",
 	        		request,
-	                new SqlWorker<NodesList>() {
+	                new SqlReader<NodesList>() {
 	                    @Override
 	                    public NodesList go(Connection conn, PreparedStatement stmt) throws SQLException {
 	                		ArrayList<Node> result = new ArrayList<Node>();
                     		int countRows = 0;
                     		
-	                		stmt.setString(1, identifier.getNodePath().getContainerName());
-	                		stmt.setString(2, identifier.getNodePath().getNodeRelativeStoragePath());
-	                		stmt.setString(3, owner);
+	                		stmt.setLong(1, parent.getContainerId());
+	                		stmt.setLong(2, parent.getNodeId());
 
                     		if(count > 0) {
-                            	stmt.setInt(4, start);
-                            	stmt.setInt(5, count);
+                            	stmt.setInt(3, start);
+                            	stmt.setInt(4, count);
                             }
 
 	                        ResultSet rs = stmt.executeQuery();
 	            			while (rs.next()) {
 	    			    		try {
-	    			    			VospaceId id = new VospaceId(new NodePath(rs.getString("container")+"/"+rs.getString("path")));
+	    			    			VospaceId id = new VospaceId(new NodePath(identifier.getNodePath().getContainerName()+"/"+rs.getString("path")));
 	    			    			id.getNodePath().setEnableAppContainer(identifier.getNodePath().isEnableAppContainer());
 	    			    			
 	    			    			NodeInfo info = new NodeInfo();
@@ -172,6 +198,7 @@ public class MySQLMetaStore2 implements MetaStore{
 	                            	info.setMtime(new Date(rs.getTimestamp("mtime").getTime()));
 	                            	info.setSize(rs.getLong("size"));
 	                            	info.setContentType(rs.getString("mimetype"));
+	                            	info.setObjectName(rs.getString("object_name"));
 	
 	    			    			Node newNode = NodeFactory.createNode(id, owner, NodeType.valueOf(rs.getString("type")));
 	    			    			newNode.setNodeInfo(info);
@@ -195,68 +222,502 @@ public class MySQLMetaStore2 implements MetaStore{
 
 	/*
 	 * (non-Javadoc)
-	 * @see edu.jhu.pha.vospace.meta.MetaStore#getNodeInfo(edu.jhu.pha.vospace.node.VospaceId)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#getNodeChildren(edu.jhu.pha.vospace.node.VospaceId, boolean, java.lang.String, int, boolean)
 	 */
 	@Override
-	public NodeInfo getNodeInfo(final VospaceId identifier) {
-        return DbPoolServlet.goSql("Retrieving node info",
-        		"select rev, deleted, nodes.mtime, nodes.size, mimetype, chunked_name from nodes " +
-        		"JOIN containers ON nodes.container_id = containers.container_id " +
-        		"JOIN user_identities ON containers.user_id = user_identities.user_id "+
-        		"LEFT JOIN chunked_uploads ON nodes.node_id = chunked_uploads.node_id "+
-                "WHERE current_rev = 1 and container_name = ? and path = ? and identity = ?",
-                new SqlWorker<NodeInfo>() {
+	public NodesList getNodeChildren(final VospaceId identifier, final boolean includeDeleted, final String cursor, final int count, final boolean includeCount) {
+		if(count <= 0)
+			throw new BadRequestException("Wrong count parameter");
+		final String afterKey = decodeCursor(cursor);
+		final boolean isRoot = identifier.getNodePath().isRoot(false);
+		final String deletedCondition = includeDeleted?"":"nodes.`deleted` = 0 AND ";
+
+		final MetaCache.Entry parent = isRoot?null:resolve(identifier);
+		final long ownerId = isRoot?getUserId():parent.getUserId();
+		if(!isRoot && !parent.isStored())
+			return new NodesList(new ArrayList<Node>(), includeCount?0:-1, null);
+
+		String request;
+		if(isRoot) {
+			request = "SELECT containers.container_name as container, nodes.rev, nodes.deleted, nodes.mtime, nodes.size, nodes.mimetype, nodes.object_name, nodes.type "+
+	        		"FROM nodes JOIN containers ON nodes.container_id = containers.container_id "+
+	        		"WHERE "+deletedCondition+"`parent_node_id` is NULL AND containers.user_id = ? AND `container_name` <> '' AND `container_name` > ? order by container_name limit ?";
+		} else {
+			request = "SELECT nodes.path, nodes.rev, nodes.deleted, nodes.mtime, nodes.size, nodes.mimetype, nodes.object_name, nodes.type FROM nodes "+
+	        		"WHERE "+deletedCondition+"nodes.container_id = ? AND nodes.parent_node_id = ? AND nodes.path > ? order by nodes.path limit ?";
+		}
+
+		NodesList result = DbPoolServlet.goUserSql(owner, "GetNodeChildren page request",
+        		request,
+                new SqlReader<NodesList>() {
                     @Override
-                    public NodeInfo go(Connection conn, PreparedStatement stmt) throws SQLException {
-                    	NodeInfo info = new NodeInfo();
+                    public NodesList go(Connection conn, PreparedStatement stmt) throws SQLException {
+                		ArrayList<Node> result = new ArrayList<Node>();
 
-                        stmt.setString(1, identifier.getNodePath().getContainerName());
-                        stmt.setString(2, identifier.getNodePath().getNodeRelativeStoragePath());
-                        stmt.setString(3, owner);
+                		if(isRoot) {
+                			stmt.setLong(1, ownerId);
+                		} else {
+                			stmt.setLong(1, parent.getContainerId());
+                			stmt.setLong(2, parent.getNodeId());
+                		}
+            			stmt.setString(isRoot?2:3, afterKey);
+            			stmt.setInt(isRoot?3:4, count+1); // one more to find out if there is a next page
 
-                        ResultSet resSet = stmt.executeQuery();
-                        
-                        if(resSet.next()) {
-                        	info.setRevision(resSet.getInt("rev"));
-                        	info.setDeleted(resSet.getBoolean("deleted"));
-                        	info.setMtime(new Date(resSet.getTimestamp("mtime").getTime()));
-                        	info.setSize(resSet.getLong("size"));
-                        	info.setContentType(resSet.getString("mimetype"));
-                        	info.setChunkedName(resSet.getString("chunked_name"));
-                        } else {
-                        	throw new NotFoundException("NodeNotFound");
-                        }
-                    	
-                    	return info;
+                        String lastKey = null;
+                        boolean hasMore = false;
+                        ResultSet rs = stmt.executeQuery();
+            			while (rs.next()) {
+            				if(result.size() == count) {
+            					hasMore = true;
+            					break;
+            				}
+            				String key = isRoot?rs.getString("container"):rs.getString("path");
+    			    		try {
+    			    			NodePath path = isRoot?new NodePath(key):new NodePath(identifier.getNodePath().getContainerName()+"/"+key);
+    			    			VospaceId id = new VospaceId(path);
+    			    			id.getNodePath().setEnableAppContainer(identifier.getNodePath().isEnableAppContainer());
+    			    			
+    			    			NodeInfo info = new NodeInfo();
+                            	info.setRevision(rs.getInt("rev"));
+                            	info.setDeleted(rs.getBoolean("deleted"));
+                            	info.setMtime(new Date(rs.getTimestamp("mtime").getTime()));
+                            	info.setSize(rs.getLong("size"));
+                            	info.setContentType(rs.getString("mimetype"));
+                            	info.setObjectName(rs.getString("object_name"));
+
+    			    			Node newNode = NodeFactory.createNode(id, owner, NodeType.valueOf(rs.getString("type")));
+    			    			newNode.setNodeInfo(info);
+                            	
+								result.add(newNode);
+							} catch (URISyntaxException e) {
+								logger.error("Error in child URI: "+e.getMessage());
+							}
+							lastKey = key;
+            			}
+
+            			return new NodesList(result, -1, hasMore?encodeCursor(lastKey):null);
                     }
                 }
-        );	
+        );
+
+		if(null != result && includeCount) {
+			if(isRoot) {
+				result.setNodesCount(DbPoolServlet.goUserSql(owner, "GetNodeChildren root count",
+						"SELECT count(*) FROM nodes JOIN containers ON nodes.container_id = containers.container_id "+
+		        		"WHERE "+deletedCondition+"`parent_node_id` is NULL AND containers.user_id = ? AND `container_name` <> ''",
+		                new SqlReader<Integer>() {
+		                    @Override
+		                    public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
+		                    	stmt.setLong(1, ownerId);
+		                        ResultSet rs = stmt.executeQuery();
+		                        rs.next();
+		                        return rs.getInt(1);
+		                    }
+		                }
+				));
+			} else {
+				result.setNodesCount(DbPoolServlet.goUserSql(owner, "GetNodeChildren count",
+						"SELECT count(*) FROM nodes WHERE "+deletedCondition+"nodes.container_id = ? AND nodes.parent_node_id = ?",
+		                new SqlReader<Integer>() {
+		                    @Override
+		                    public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
+	                			stmt.setLong(1, parent.getContainerId());
+	                			stmt.setLong(2, parent.getNodeId());
+		                        ResultSet rs = stmt.executeQuery();
+		                        rs.next();
+		                        return rs.getInt(1);
+		                    }
+		                }
+				));
+			}
+		}
+		return result;
+	}
+
+	private static String encodeCursor(String key) {
+		try {
+			return Base64.encodeBase64URLSafeString(key.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new InternalServerErrorException(e);
+		}
+	}
+
+	private static String decodeCursor(String cursor) {
+		if(null == cursor || cursor.isEmpty())
+			return "";
+		try {
+			return new String(Base64.decodeBase64(cursor), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new InternalServerErrorException(e);
+		}
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * @see edu.jhu.pha.vospace.meta.MetaStore#getType(edu.jhu.pha.vospace.node.VospaceId)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#getNode(edu.jhu.pha.vospace.node.VospaceId)
 	 */
 	@Override
-	public NodeType getType(final VospaceId identifier)  {
-        return DbPoolServlet.goSql("Get node type",
-        		"select nodes.type from nodes JOIN containers ON nodes.container_id = containers.container_id JOIN user_identities ON containers.user_id = user_identities.user_id "+
-        				"WHERE `current_rev` = 1 and `container_name` = ? and `path` = ? and `identity` = ?",
-                new SqlWorker<NodeType>() {
+	public Node getNode(final VospaceId identifier) {
+		MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			throw new NotFoundException("NodeNotFound");
+		Node node = NodeFactory.createNode(identifier, owner, entry.getType());
+		node.setNodeInfo(entry.getNodeInfo());
+		return node;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#getNodes(java.util.List, boolean)
+	 */
+	@Override
+	public List<Node> getNodes(final List<VospaceId> identifiers, final boolean includeProperties) {
+		Map<String, List<VospaceId>> containers = new LinkedHashMap<String, List<VospaceId>>();
+		for(VospaceId identifier: identifiers) {
+			String containerName = identifier.getNodePath().getContainerName();
+			if(!containers.containsKey(containerName))
+				containers.put(containerName, new ArrayList<VospaceId>());
+			containers.get(containerName).add(identifier);
+		}
+
+		final Map<String, Node> found = new HashMap<String, Node>();
+		final Map<Long, Node> foundIds = new LinkedHashMap<Long, Node>();
+
+		for(final String containerName: containers.keySet()) {
+			final MetaCache.Entry contEntry = resolveContainerRoot(containerName);
+			if(!contEntry.isStored())
+				continue;
+			List<VospaceId> containerIds = containers.get(containerName);
+			for(int from = 0; from < containerIds.size(); from += BATCH_SIZE) {
+				final List<VospaceId> batch = containerIds.subList(from, Math.min(from+BATCH_SIZE, containerIds.size()));
+				final long snapshot = MetaCache.snapshot();
+				DbPoolServlet.goUserSql(owner, "Get nodes batch",
+		        		"select nodes.node_id, nodes.path, nodes.type, rev, deleted, nodes.mtime, nodes.size, mimetype, chunked_name, object_name from nodes " +
+		        		"LEFT JOIN chunked_uploads ON nodes.node_id = chunked_uploads.node_id "+
+		                "WHERE current_rev = 1 and nodes.container_id = ? and path_hash IN ("+placeholders("UNHEX(MD5(?))", batch.size())+")",
+		                new PrimaryReader<Boolean>() {
+		                    @Override
+		                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+		                    	Map<String, VospaceId> paths = new HashMap<String, VospaceId>();
+		                        stmt.setLong(1, contEntry.getContainerId());
+		                        int param = 2;
+		                        for(VospaceId identifier: batch) {
+		                        	paths.put(identifier.getNodePath().getNodeRelativeStoragePath(), identifier);
+		                        	stmt.setString(param++, identifier.getNodePath().getNodeRelativeStoragePath());
+		                        }
+
+		                        ResultSet resSet = stmt.executeQuery();
+		                        while(resSet.next()) {
+		                        	VospaceId identifier = paths.get(resSet.getString("path"));
+		                        	if(null == identifier || found.containsKey(containerName+"/"+resSet.getString("path")))
+		                        		continue;
+
+		                        	NodeInfo info = new NodeInfo();
+		                        	info.setRevision(resSet.getInt("rev"));
+		                        	info.setDeleted(resSet.getBoolean("deleted"));
+		                        	info.setMtime(new Date(resSet.getTimestamp("mtime").getTime()));
+		                        	info.setSize(resSet.getLong("size"));
+		                        	info.setContentType(resSet.getString("mimetype"));
+		                        	info.setChunkedName(resSet.getString("chunked_name"));
+		                        	info.setObjectName(resSet.getString("object_name"));
+		                        	MetaCache.Entry entry = new MetaCache.Entry(resSet.getLong("node_id"), contEntry.getContainerId(), contEntry.getUserId(), 
+		                        			NodeType.valueOf(resSet.getString("type")), info);
+		                        	MetaCache.put(owner, identifier.getNodePath(), entry, snapshot);
+
+	    			    			Node node = NodeFactory.createNode(identifier, owner, entry.getType());
+	    			    			node.setNodeInfo(entry.getNodeInfo());
+	    			    			found.put(containerName+"/"+resSet.getString("path"), node);
+	    			    			foundIds.put(entry.getNodeId(), node);
+		                        }
+		                        return true;
+		                    }
+		                }
+		        );
+			}
+		}
+
+		if(includeProperties)
+			loadProperties(foundIds);
+
+		List<Node> result = new ArrayList<Node>();
+		for(VospaceId identifier: identifiers) {
+			Node node = found.get(identifier.getNodePath().getContainerName()+"/"+identifier.getNodePath().getNodeRelativeStoragePath());
+			if(null != node)
+				result.add(node);
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#getSubtree(edu.jhu.pha.vospace.node.VospaceId)
+	 */
+	@Override
+	public List<Node> getSubtree(final VospaceId identifier) {
+		final MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			throw new NotFoundException("NodeNotFound");
+		final String path = identifier.getNodePath().getNodeRelativeStoragePath();
+		final Map<Long, Node> foundIds = new LinkedHashMap<Long, Node>();
+
+		DbPoolServlet.goUserSql(owner, "Get subtree",
+        		"select nodes.node_id, nodes.path, nodes.type, rev, deleted, nodes.mtime, nodes.size, mimetype, chunked_name, object_name from nodes " +
+        		"LEFT JOIN chunked_uploads ON nodes.node_id = chunked_uploads.node_id "+
+                "WHERE current_rev = 1 and deleted = 0 and nodes.container_id = ? and "+
+        		(path.isEmpty()?"path <> ''":"path LIKE ?")+" order by path",
+                new PrimaryReader<Boolean>() {
                     @Override
-                    public NodeType go(Connection conn, PreparedStatement stmt) throws SQLException {
-                        stmt.setString(1, identifier.getNodePath().getContainerName());
-                        stmt.setString(2, identifier.getNodePath().getNodeRelativeStoragePath());
-                        stmt.setString(3, owner);
-                        ResultSet rs = stmt.executeQuery();
-                        if (rs.next()) {
-                            return NodeType.valueOf(NodeType.class, rs.getString(1));
-                        } else {
-                            throw new NotFoundException("NodeNotFound");
+                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+                        stmt.setLong(1, entry.getContainerId());
+                        if(!path.isEmpty())
+                        	stmt.setString(2, escapeLike(path)+"/%");
+
+                        ResultSet resSet = stmt.executeQuery();
+                        while(resSet.next()) {
+    			    		try {
+	    			    		VospaceId id = new VospaceId(new NodePath(identifier.getNodePath().getContainerName()+"/"+resSet.getString("path")));
+	    			    		id.getNodePath().setEnableAppContainer(identifier.getNodePath().isEnableAppContainer());
+
+	                        	NodeInfo info = new NodeInfo();
+	                        	info.setRevision(resSet.getInt("rev"));
+	                        	info.setDeleted(resSet.getBoolean("deleted"));
+	                        	info.setMtime(new Date(resSet.getTimestamp("mtime").getTime()));
+	                        	info.setSize(resSet.getLong("size"));
+	                        	info.setContentType(resSet.getString("mimetype"));
+	                        	info.setChunkedName(resSet.getString("chunked_name"));
+	                        	info.setObjectName(resSet.getString("object_name"));
+
+	    		    			Node node = NodeFactory.createNode(id, owner, NodeType.valueOf(resSet.getString("type")));
+	    		    			node.setNodeInfo(info);
+	    		    			foundIds.put(resSet.getLong("node_id"), node);
+							} catch (URISyntaxException e) {
+								logger.error("Error in child URI: "+e.getMessage());
+							}
                         }
+                        return true;
                     }
                 }
         );
+
+		loadProperties(foundIds);
+		return new ArrayList<Node>(foundIds.values());
+	}
+
+	/**
+	 * Loads the user properties of the nodes, keyed by node_id, in batches
+	 */
+	private void loadProperties(final Map<Long, Node> nodes) {
+		final List<Long> nodeIds = new ArrayList<Long>(nodes.keySet());
+		for(Node node: nodes.values())
+			node.setNodeProperties(new HashMap<String, String>());
+		for(int from = 0; from < nodeIds.size(); from += BATCH_SIZE) {
+			final List<Long> batch = nodeIds.subList(from, Math.min(from+BATCH_SIZE, nodeIds.size()));
+			DbPoolServlet.goUserSql(owner, "Get nodes properties batch",
+	        		"select node_id, property_uri, property_value from node_properties "+
+	        		"JOIN properties ON node_properties.property_id = properties.property_id "+
+	        		"WHERE node_id IN ("+placeholders("?", batch.size())+")",
+	                new PrimaryReader<Boolean>() {
+	                    @Override
+	                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+	                        int param = 1;
+	                        for(Long nodeId: batch)
+	                        	stmt.setLong(param++, nodeId);
+	                        ResultSet resSet = stmt.executeQuery();
+	                        while(resSet.next()) {
+	                        	nodes.get(resSet.getLong("node_id")).getNodeMeta(PropertyType.property)
+	                        		.put(resSet.getString("property_uri"), resSet.getString("property_value"));
+	                        }
+	                        return true;
+	                    }
+	                }
+	        );
+		}
+	}
+
+	/**
+	 * @return The placeholder repeated count times, comma-separated
+	 */
+	static String placeholders(String placeholder, int count) {
+		StringBuilder builder = new StringBuilder();
+		for(int i = 0; i < count; i++) {
+			if(i > 0)
+				builder.append(", ");
+			builder.append(placeholder);
+		}
+		return builder.toString();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#getNodeInfo(edu.jhu.pha.vospace.node.VospaceId)
+	 */
+	@Override
+	public NodeInfo getNodeInfo(final VospaceId identifier) {
+		MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			throw new NotFoundException("NodeNotFound");
+		return entry.getNodeInfo();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#getType(edu.jhu.pha.vospace.node.VospaceId)
+	 */
+	@Override
+	public NodeType getType(final VospaceId identifier)  {
+		MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			throw new NotFoundException("NodeNotFound");
+		return entry.getType();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#getVersionTag(edu.jhu.pha.vospace.node.VospaceId)
+	 */
+	@Override
+	public String getVersionTag(final VospaceId identifier) {
+		// the root is not a node, its listing changes with any change of the user
+		if(identifier.getNodePath().isRoot(false)) {
+			final long ownerId = getUserId();
+			return DbPoolServlet.goUserSql(owner, "Getting the user version",
+					"select change_seq from users WHERE user_id = ?",
+					new PrimaryReader<String>() {
+						@Override
+						public String go(Connection conn, PreparedStatement stmt) throws SQLException {
+							stmt.setLong(1, ownerId);
+							ResultSet rs = stmt.executeQuery();
+							if(rs.next())
+								return "u."+rs.getLong("change_seq");
+							return null;
+						}
+					}
+			);
+		}
+
+		final MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			return null;
+		// a stale cached node_id finds no node and the request is served unconditionally
+		return DbPoolServlet.goUserSql(owner, "Getting the node version",
+				"select version from nodes WHERE current_rev = 1 and node_id = ?",
+				new PrimaryReader<String>() {
+					@Override
+					public String go(Connection conn, PreparedStatement stmt) throws SQLException {
+						stmt.setLong(1, entry.getNodeId());
+						ResultSet rs = stmt.executeQuery();
+						if(rs.next())
+							return entry.getNodeId()+"."+rs.getLong("version");
+						return null;
+					}
+				}
+		);
+	}
+
+	/**
+	 * Resolves the node keys, type and info through the metadata cache, loading them from the DB on a cache miss.
+	 * A nested node is looked up by its container_id, taken from the (cached) first-level container entry.
+	 * Nodes not stored in the DB are returned (and cached) as negative entries.
+	 */
+	private MetaCache.Entry resolve(final VospaceId identifier) {
+		MetaCache.Entry entry = MetaCache.get(owner, identifier.getNodePath());
+		if(null != entry)
+			return entry;
+
+		long snapshot = MetaCache.snapshot();
+		final String path = identifier.getNodePath().getNodeRelativeStoragePath();
+		if(path.isEmpty()) {
+			final long ownerId = getUserId();
+			entry = DbPoolServlet.goUserSql(owner, "Resolving container",
+	        		"select nodes.node_id, nodes.container_id, containers.user_id, nodes.type, rev, deleted, nodes.mtime, nodes.size, mimetype, chunked_name, object_name from containers " +
+	        		"JOIN nodes ON nodes.container_id = containers.container_id AND current_rev = 1 AND path_hash = UNHEX(MD5('')) AND path = '' " +
+	        		"LEFT JOIN chunked_uploads ON nodes.node_id = chunked_uploads.node_id "+
+	                "WHERE containers.user_id = ? and container_name = ?",
+	                new PrimaryReader<MetaCache.Entry>() {
+	                    @Override
+	                    public MetaCache.Entry go(Connection conn, PreparedStatement stmt) throws SQLException {
+	                        stmt.setLong(1, ownerId);
+	                        stmt.setString(2, identifier.getNodePath().getContainerName());
+	                        ResultSet resSet = stmt.executeQuery();
+	                        if(resSet.next())
+	                        	return new MetaCache.Entry(resSet.getLong("node_id"), resSet.getLong("container_id"), resSet.getLong("user_id"), 
+	                        			NodeType.valueOf(resSet.getString("type")), readNodeInfo(resSet));
+	                        return new MetaCache.Entry();
+	                    }
+	                }
+	        );
+		} else {
+			final MetaCache.Entry contEntry = resolveContainer(identifier);
+			if(!contEntry.isStored()) {
+				entry = new MetaCache.Entry();
+			} else {
+				entry = DbPoolServlet.goUserSql(owner, "Resolving node",
+		        		"select nodes.node_id, nodes.type, rev, deleted, nodes.mtime, nodes.size, mimetype, chunked_name, object_name from nodes " +
+		        		"LEFT JOIN chunked_uploads ON nodes.node_id = chunked_uploads.node_id "+
+		                "WHERE current_rev = 1 and nodes.container_id = ? and path_hash = UNHEX(MD5(?)) and path = ?",
+		                new PrimaryReader<MetaCache.Entry>() {
+		                    @Override
+		                    public MetaCache.Entry go(Connection conn, PreparedStatement stmt) throws SQLException {
+		                        stmt.setLong(1, contEntry.getContainerId());
+		                        stmt.setString(2, path);
+		                        stmt.setString(3, path);
+		                        ResultSet resSet = stmt.executeQuery();
+		                        if(resSet.next())
+		                        	return new MetaCache.Entry(resSet.getLong("node_id"), contEntry.getContainerId(), contEntry.getUserId(), 
+		                        			NodeType.valueOf(resSet.getString("type")), readNodeInfo(resSet));
+		                        return new MetaCache.Entry();
+		                    }
+		                }
+		        );
+			}
+		}
+
+		if(null == entry)
+			throw new InternalServerErrorException("Error reading node metadata");
+
+		MetaCache.put(owner, identifier.getNodePath(), entry, snapshot);
+		return entry;
+	}
+
+	private static NodeInfo readNodeInfo(ResultSet resSet) throws SQLException {
+		NodeInfo info = new NodeInfo();
+		info.setRevision(resSet.getInt("rev"));
+		info.setDeleted(resSet.getBoolean("deleted"));
+		info.setMtime(new Date(resSet.getTimestamp("mtime").getTime()));
+		info.setSize(resSet.getLong("size"));
+		info.setContentType(resSet.getString("mimetype"));
+		info.setChunkedName(resSet.getString("chunked_name"));
+		info.setObjectName(resSet.getString("object_name"));
+		return info;
+	}
+
+	/**
+	 * Returns the user_id of the owner, 0 if the owner is unknown. The id is resolved once and cached,
+	 * so the queries do not join user_identities by the identity string.
+	 */
+	private long getUserId() {
+		if(userId > 0)
+			return userId;
+		userId = MetaCache.getUserId(owner);
+		if(userId > 0)
+			return userId;
+
+		Long loaded = DbPoolServlet.goUserSql(owner, "Resolving user",
+				"select user_id from user_identities where identity = ?",
+				new PrimaryReader<Long>() {
+					@Override
+					public Long go(Connection conn, PreparedStatement stmt) throws SQLException {
+						stmt.setString(1, owner);
+						ResultSet rs = stmt.executeQuery();
+						return rs.next()?rs.getLong("user_id"):0L;
+					}
+				}
+		);
+		if(null == loaded)
+			throw new InternalServerErrorException("Error resolving the user");
+		userId = loaded;
+		MetaCache.putUserId(owner, userId);
+		return userId;
 	}
 	
 	/*
@@ -266,7 +727,7 @@ public class MySQLMetaStore2 implements MetaStore{
 	/*@Override
 	public void incrementRevision(final VospaceId identifier) {
 		
-        DbPoolServlet.goSql("Updating node "+identifier+" current revision",
+        DbPoolServlet.goUserSql(owner, "Updating node "+identifier+" current revision",
                 "UPDATE nodes SET rev = rev+1 "+
                 		"WHERE current_rev = 1 AND node_id = "+
                 		"(SELECT * FROM (SELECT nodes.node_id FROM nodes JOIN containers "+
@@ -297,22 +758,7 @@ public class MySQLMetaStore2 implements MetaStore{
 	 */
 	@Override
 	public boolean isStored(final VospaceId identifier) {
-        return DbPoolServlet.goSql("Is node stored?",
-        		"select count(*) from nodes "+
-        				"JOIN containers ON nodes.container_id = containers.container_id JOIN user_identities ON containers.user_id = user_identities.user_id "+
-                		"WHERE `current_rev` = 1 AND `container_name` = ? AND `path` = ? AND `identity` = ?",
-                new SqlWorker<Boolean>() {
-                    @Override
-                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
-                        stmt.setString(1, identifier.getNodePath().getContainerName());
-                        stmt.setString(2, identifier.getNodePath().getNodeRelativeStoragePath());
-                        stmt.setString(3, owner);
-                        ResultSet rs = stmt.executeQuery();
-                        rs.next();
-                        return rs.getInt(1)>0;
-                    }
-                }
-        );
+		return resolve(identifier).isStored();
 	}
 
 
@@ -324,23 +770,176 @@ public class MySQLMetaStore2 implements MetaStore{
 	public void markRemoved(final VospaceId identifier, final boolean isRemoved) {
 		if(identifier.getNodePath().isRoot(false))
 			return;
-        DbPoolServlet.goSql("Marking node as removed",
-        		"update nodes set deleted = ? "+
-        		"WHERE node_id = "+
-        		"(SELECT * FROM (SELECT nodes.node_id FROM nodes JOIN containers "+
-        		"ON nodes.container_id = containers.container_id JOIN user_identities "+
-        		"ON containers.user_id = user_identities.user_id WHERE `container_name` = ? AND `path` = ? AND `identity` = ?) a)",
+		final MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			return;
+        DbPoolServlet.goUserSqlTx(owner, "Marking node as removed",
+        		"update nodes set deleted = ?, deleted_batch = ? WHERE node_id = ?",
                 new SqlWorker<Integer>() {
                     @Override
                     public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
                         stmt.setBoolean(1, isRemoved);
-                        stmt.setString(2, identifier.getNodePath().getContainerName());
-                        stmt.setString(3, identifier.getNodePath().getNodeRelativeStoragePath());
-                        stmt.setString(4, owner);
-                        return stmt.executeUpdate();
+                        if(isRemoved)
+                        	stmt.setLong(2, entry.getNodeId());
+                        else
+                        	stmt.setNull(2, Types.BIGINT);
+                        stmt.setLong(3, entry.getNodeId());
+                        int changed = stmt.executeUpdate();
+                        if(changed > 0)
+                        	recordChanges(conn, entry.getUserId(), entry.getContainerId(), Collections.singletonList(identifier.getNodePath()), isRemoved);
+                        return changed;
+                    }
+                }
+        );
+        MetaCache.invalidate(owner, identifier.getNodePath());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#markRemovedTree(edu.jhu.pha.vospace.node.VospaceId, boolean)
+	 */
+	@Override
+	public int markRemovedTree(final VospaceId identifier, final boolean isRemoved) {
+		if(identifier.getNodePath().isRoot(false))
+			return 0;
+		final MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			return 0;
+		final String path = identifier.getNodePath().getNodeRelativeStoragePath();
+		final String subtreeCondition = path.isEmpty()?"":" AND (path = ? OR path LIKE ?)"; // the first-level container subtree is the whole container
+		Integer changed = DbPoolServlet.goUserSqlTx(owner, "Marking subtree as removed", null,
+                new SqlWorker<Integer>() {
+                    @Override
+                    public Integer go(Connection conn, PreparedStatement ignored) throws SQLException {
+                    	if(isRemoved) {
+                    		// the nodes removed before keep their own batch and are not restored with the subtree
+                    		PreparedStatement stmt = conn.prepareStatement("update nodes set deleted = 1, deleted_batch = ? WHERE container_id = ? AND deleted = 0"+subtreeCondition);
+                    		try {
+                    			stmt.setLong(1, entry.getNodeId());
+                    			stmt.setLong(2, entry.getContainerId());
+                    			if(!path.isEmpty()) {
+                    				stmt.setString(3, path);
+                    				stmt.setString(4, escapeLike(path)+"/%");
+                    			}
+                    			int changed = stmt.executeUpdate();
+                    			// a removed subtree is journaled as its root removal
+                    			if(changed > 0)
+                    				recordChanges(conn, entry.getUserId(), entry.getContainerId(), Collections.singletonList(identifier.getNodePath()), true);
+                    			return changed;
+                    		} finally {
+                    			DbPoolServlet.close(stmt);
+                    		}
+                    	}
+
+                    	// the root is restored with the nodes removed in the same batch;
+                    	// the nodes removed before the batches were recorded are all restored
+                    	Long batch = null;
+                    	PreparedStatement stmt = conn.prepareStatement("select deleted_batch from nodes WHERE node_id = ? for update");
+                    	try {
+                    		stmt.setLong(1, entry.getNodeId());
+                    		ResultSet rs = stmt.executeQuery();
+                    		if(rs.next() && null != rs.getObject("deleted_batch"))
+                    			batch = rs.getLong("deleted_batch");
+                    	} finally {
+                    		DbPoolServlet.close(stmt);
+                    	}
+                    	String batchCondition = (null == batch)?"":" AND (node_id = ? OR deleted_batch = ? OR deleted_batch IS NULL)";
+
+                    	// the restored nodes are journaled one by one
+                    	List<NodePath> restored = new ArrayList<NodePath>();
+                    	stmt = conn.prepareStatement("select path from nodes WHERE container_id = ? AND deleted = 1"+subtreeCondition+batchCondition+" for update");
+                    	try {
+                    		setRestoreParams(stmt, batch);
+                    		ResultSet rs = stmt.executeQuery();
+                    		while(rs.next())
+                    			restored.add(new NodePath(identifier.getNodePath().getContainerName()+"/"+rs.getString("path")));
+                    	} finally {
+                    		DbPoolServlet.close(stmt);
+                    	}
+
+                    	stmt = conn.prepareStatement("update nodes set deleted = 0, deleted_batch = NULL WHERE container_id = ? AND deleted = 1"+subtreeCondition+batchCondition);
+                    	try {
+                    		setRestoreParams(stmt, batch);
+                    		int changed = stmt.executeUpdate();
+                    		recordChanges(conn, entry.getUserId(), entry.getContainerId(), restored, false);
+                    		return changed;
+                    	} finally {
+                    		DbPoolServlet.close(stmt);
+                    	}
+                    }
+
+                    private void setRestoreParams(PreparedStatement stmt, Long batch) throws SQLException {
+                    	int param = 1;
+                    	stmt.setLong(param++, entry.getContainerId());
+                    	if(!path.isEmpty()) {
+                    		stmt.setString(param++, path);
+                    		stmt.setString(param++, escapeLike(path)+"/%");
+                    	}
+                    	if(null != batch) {
+                    		stmt.setLong(param++, entry.getNodeId());
+                    		stmt.setLong(param++, batch);
+                    	}
                     }
                 }
         );
+        MetaCache.invalidateTree(owner, identifier.getNodePath());
+        return (null == changed)?0:changed;
+	}
+
+	/**
+	 * Removes the node and its descendants, updating the usage counters. Has to be called in a transaction.
+	 */
+	private static int removeNode(Connection conn, MetaCache.Entry entry, String path) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			int removed;
+			if (path.isEmpty()) {
+				stmt = conn.prepareStatement("select bytes_used, object_count from containers where container_id = ? for update");
+				stmt.setLong(1, entry.getContainerId());
+				ResultSet rs = stmt.executeQuery();
+				long bytes = 0, objects = 0;
+				if(rs.next()) {
+					bytes = rs.getLong("bytes_used");
+					objects = rs.getLong("object_count");
+				}
+				DbPoolServlet.close(stmt);
+
+				stmt = conn.prepareStatement("delete from containers WHERE container_id = ?");
+				stmt.setLong(1, entry.getContainerId());
+				removed = stmt.executeUpdate();
+				DbPoolServlet.close(stmt);
+
+				stmt = conn.prepareStatement("update users set bytes_used = GREATEST(bytes_used - ?, 0), object_count = GREATEST(object_count - ?, 0) WHERE user_id = ?");
+				stmt.setLong(1, bytes);
+				stmt.setLong(2, objects);
+				stmt.setLong(3, entry.getUserId());
+				stmt.executeUpdate();
+			} else {
+				stmt = conn.prepareStatement("select COALESCE(SUM(size), 0) bytes, COUNT(*) objects from nodes "+
+						"WHERE container_id = ? AND type <> 'CONTAINER_NODE' AND current_rev = 1 AND (path = ? OR path LIKE ?) for update");
+				stmt.setLong(1, entry.getContainerId());
+				stmt.setString(2, path);
+				stmt.setString(3, escapeLike(path)+"/%");
+				ResultSet rs = stmt.executeQuery();
+				rs.next();
+				long bytes = rs.getLong("bytes"), objects = rs.getLong("objects");
+				DbPoolServlet.close(stmt);
+
+				// the descendants are removed by the parent_node_id foreign key
+				stmt = conn.prepareStatement("delete from nodes WHERE node_id = ?");
+				stmt.setLong(1, entry.getNodeId());
+				removed = stmt.executeUpdate();
+
+				updateUsage(conn, entry.getContainerId(), -bytes, -objects);
+			}
+			return removed;
+		} finally {
+			DbPoolServlet.close(stmt);
+		}
+	}
+
+	private static String escapeLike(String str) {
+		return str.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
 	}
 
 	/*
@@ -349,73 +948,93 @@ public class MySQLMetaStore2 implements MetaStore{
 	 */
 	@Override
 	public void remove(final VospaceId identifier) {
-		if (identifier.getNodePath().getNodeRelativeStoragePath().isEmpty()) {
-	        DbPoolServlet.goSql("Removing root"+identifier,
-	        		"delete from containers "+
-	        		"WHERE container_id in "+
-	        		"(SELECT * FROM (SELECT containers.container_id FROM containers JOIN user_identities "+
-	        		"ON containers.user_id = user_identities.user_id WHERE `container_name` = ? AND `identity` = ?) a)",
-	        
-	                new SqlWorker<Integer>() {
-	                    @Override
-	                    public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
-	                        stmt.setString(1, identifier.getNodePath().getContainerName());
-	                        stmt.setString(2, owner);
-	                        return stmt.executeUpdate();
-	                    }
-	                }
-	        );
-		} else {
-	        DbPoolServlet.goSql("Removing non-root"+identifier,
-	        		"delete from nodes "+
-	        		"WHERE node_id in "+
-	        		"(SELECT * FROM (SELECT nodes.node_id FROM nodes "+
-	        		"JOIN containers ON nodes.container_id = containers.container_id "+
-	        		"JOIN user_identities ON containers.user_id = user_identities.user_id "+
-	        		"WHERE `container_name` = ? AND `path` = ? AND `identity` = ?) a)",
-	        
-	                new SqlWorker<Integer>() {
-	                    @Override
-	                    public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
-	                        stmt.setString(1, identifier.getNodePath().getContainerName());
-	                        stmt.setString(2, identifier.getNodePath().getNodeRelativeStoragePath());
-	                        stmt.setString(3, owner);
-	                        return stmt.executeUpdate();
-	                    }
-	                }
-	        );
+		final MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			return;
+		final String path = identifier.getNodePath().getNodeRelativeStoragePath();
+        DbPoolServlet.goUserSqlTx(owner, "Removing "+identifier, null,
+                new SqlWorker<Integer>() {
+                    @Override
+                    public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
+                    	int removed = removeNode(conn, entry, path);
+                    	recordChanges(conn, entry.getUserId(), entry.getContainerId(), Collections.singletonList(identifier.getNodePath()), true);
+                    	return removed;
+                    }
+                }
+        );
+		MetaCache.invalidateTree(owner, identifier.getNodePath());
+		MetaCache.invalidateContainerRoot(owner, identifier.getNodePath());
+
+		if(identifier.getNodePath().getNodeRelativeStoragePath().isEmpty() && !identifier.getNodePath().isRoot(false)) {
+			DbPoolServlet.goSql("Removing the container shares",
+					"delete from container_shares where user_id = ? and container_name = ?",
+					new SqlWorker<Integer>() {
+						@Override
+						public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
+							stmt.setLong(1, entry.getUserId());
+							stmt.setString(2, identifier.getNodePath().getContainerName());
+							return stmt.executeUpdate();
+						}
+					}
+			);
 		}
 	}
 	
 
 	
 
-	//TODO edit method for new db (cont+path)
 	/*
 	 * (non-Javadoc)
 	 * @see edu.caltech.vao.vospace.meta.MetaStore#search(edu.jhu.pha.vospace.node.VospaceId, java.lang.String, int, boolean)
 	 */
 	@Override
 	public List<VospaceId> search(final VospaceId identifier, final String searchPattern, final int fileLimit, final boolean includeDeleted) {
-        String request = "select container, path from nodes where "+(includeDeleted?"":"deleted = 0 and ") + " current_rev = 1 and owner = ? and container = ? and path like ? and path regexp ? order by path limit ?";
-        
-		return DbPoolServlet.goSql("search request",
+		if(searchPattern.trim().isEmpty())
+			return new ArrayList<VospaceId>();
+		final List<String> grams = NameIndex.queryGrams(searchPattern);
+
+		final MetaCache.Entry contEntry = resolveContainerRoot(identifier.getNodePath().getContainerName());
+		if(!contEntry.isStored())
+			throw new NotFoundException("ContainerNotFound");
+
+		final String basePath = identifier.getNodePath().getNodeRelativeStoragePath();
+
+		// the grams narrow down the candidates, the basename match drops the false positives;
+		// the queries shorter than a trigram scan the container in the path order until the limit is reached
+        String request = grams.isEmpty()?
+        		"select path from nodes where container_id = ? and path <> '' and ":
+        		"select path from nodes "+
+        		"JOIN (select node_id from node_name_grams where container_id = ? and gram IN ("+placeholders("?", grams.size())+") "+
+        		"group by node_id having count(*) = ?) matched ON nodes.node_id = matched.node_id where ";
+        request += (includeDeleted?"":"deleted = 0 and ") + "current_rev = 1 "+
+        		(basePath.isEmpty()?"":"and path like ? ")+
+        		"and LOWER(SUBSTRING_INDEX(path, '/', -1)) like ? order by path limit ?";
+
+		return DbPoolServlet.goUserSql(owner, "search request",
         		request,
-                new SqlWorker<List<VospaceId>>() {
+                new SqlReader<List<VospaceId>>() {
                     @Override
                     public List<VospaceId> go(Connection conn, PreparedStatement stmt) throws SQLException {
                 		ArrayList<VospaceId> result = new ArrayList<VospaceId>();
 
-                		stmt.setString(1, owner);
-                        stmt.setString(2, identifier.getNodePath().getContainerName());
-                        stmt.setString(3, identifier.getNodePath().getNodeRelativeStoragePath()+"%");
-                        stmt.setString(4, "^"+identifier.getNodePath().getNodeRelativeStoragePath()+".*"+searchPattern+".*");
-                        stmt.setInt(5, fileLimit);
+                		int param = 1;
+                		stmt.setLong(param++, contEntry.getContainerId());
+                		if(!grams.isEmpty()) {
+                			for(String gram: grams)
+                				stmt.setString(param++, gram);
+                			stmt.setInt(param++, grams.size());
+                		}
+                		if(!basePath.isEmpty())
+                			stmt.setString(param++, escapeLike(basePath)+"/%");
+                		stmt.setString(param++, "%"+escapeLike(searchPattern.trim().toLowerCase(Locale.ROOT))+"%");
+                        stmt.setInt(param++, fileLimit);
                         ResultSet rs = stmt.executeQuery();
             			while (rs.next()) {
     			    		try {
-    			    			NodePath npath = new NodePath("/"+rs.getString(1)+"/"+rs.getString(2));
-								result.add(new VospaceId(npath));
+    			    			NodePath npath = new NodePath("/"+identifier.getNodePath().getContainerName()+"/"+rs.getString(1));
+    			    			VospaceId id = new VospaceId(npath);
+    			    			id.getNodePath().setEnableAppContainer(identifier.getNodePath().isEnableAppContainer());
+								result.add(id);
 							} catch (URISyntaxException e) {
 								logger.error("Error in child URI: "+e.getMessage());
 							}
@@ -426,71 +1045,398 @@ public class MySQLMetaStore2 implements MetaStore{
         );
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#searchProperties(edu.jhu.pha.vospace.node.VospaceId, java.util.List, java.lang.String, int)
+	 */
+	@Override
+	public NodesList searchProperties(final VospaceId identifier, final List<PropertyPredicate> predicates, String cursor, final int count) {
+		// the pages follow the first predicate index order: (value, node_id); the cursor is "node_id:value"
+		final String sortColumn = PropertyIndex.column(predicates.get(0));
+		String afterKey = decodeCursor(cursor);
+		long afterNodeId = 0;
+		Object afterValue = null;
+		if(!afterKey.isEmpty()) {
+			int sep = afterKey.indexOf(':');
+			if(sep < 0)
+				throw new BadRequestException("InvalidCursor");
+			try {
+				afterNodeId = Long.parseLong(afterKey.substring(0, sep));
+				afterValue = PropertyIndex.parseSortKey(sortColumn, afterKey.substring(sep+1));
+			} catch(NumberFormatException ex) {
+				throw new BadRequestException("InvalidCursor");
+			}
+		}
+
+		final long ownerId = getUserId();
+		final List<Object> params = new ArrayList<Object>();
+		List<Object> whereParams = new ArrayList<Object>();
+		StringBuilder joins = new StringBuilder();
+		String firstCondition = null;
+		for(int i = 0; i < predicates.size(); i++) {
+			Long propertyId = PropertyInterner.getId(predicates.get(i).getUri());
+			if(null == propertyId) // no node has the property
+				return new NodesList(new ArrayList<Node>(), -1, null);
+			if(i == 0) {
+				whereParams.add(ownerId);
+				whereParams.add(propertyId);
+				firstCondition = PropertyIndex.condition("p0", predicates.get(i), whereParams);
+			} else {
+				String alias = "p"+i;
+				params.add(propertyId);
+				joins.append(" JOIN node_property_index "+alias+" ON "+alias+".node_id = p0.node_id AND "+alias+".property_id = ? AND "+
+						PropertyIndex.condition(alias, predicates.get(i), params));
+			}
+		}
+		// the joins go before the first predicate in the statement
+		params.addAll(whereParams);
+
+		// the most selective predicate should be the first one: it drives the index range scan
+		StringBuilder request = new StringBuilder("SELECT nodes.node_id, containers.container_name, nodes.path, nodes.rev, nodes.deleted, nodes.mtime, nodes.size, nodes.mimetype, nodes.object_name, nodes.type, "+
+				"p0."+sortColumn+" sort_value FROM node_property_index p0"+joins+
+				" JOIN nodes ON nodes.node_id = p0.node_id JOIN containers ON nodes.container_id = containers.container_id "+
+				"WHERE p0.user_id = ? AND p0.property_id = ? AND "+firstCondition+" AND nodes.current_rev = 1 AND nodes.deleted = 0");
+		if(null != afterValue) {
+			request.append(" AND (p0."+sortColumn+" > ? OR (p0."+sortColumn+" = ? AND p0.node_id > ?))");
+			params.add(afterValue);
+			params.add(afterValue);
+			params.add(afterNodeId);
+		}
+		if(!identifier.getNodePath().isRoot(false)) {
+			MetaCache.Entry contEntry = resolveContainerRoot(identifier.getNodePath().getContainerName());
+			if(!contEntry.isStored())
+				throw new NotFoundException("ContainerNotFound");
+			request.append(" AND nodes.container_id = ?");
+			params.add(contEntry.getContainerId());
+			String path = identifier.getNodePath().getNodeRelativeStoragePath();
+			if(!path.isEmpty()) {
+				request.append(" AND nodes.path LIKE ?");
+				params.add(escapeLike(path)+"/%");
+			}
+		}
+		request.append(" order by p0."+sortColumn+", p0.node_id limit ?");
+		params.add(count+1); // one more to find out if there is a next page
+
+		NodesList result = DbPoolServlet.goUserSql(owner, "Properties search request",
+				request.toString(),
+				new SqlReader<NodesList>() {
+					@Override
+					public NodesList go(Connection conn, PreparedStatement stmt) throws SQLException {
+						int param = 1;
+						for(Object value: params)
+							stmt.setObject(param++, value);
+
+						ArrayList<Node> result = new ArrayList<Node>();
+						String lastKey = null;
+						boolean hasMore = false;
+						ResultSet rs = stmt.executeQuery();
+						while(rs.next()) {
+							if(result.size() == count) {
+								hasMore = true;
+								break;
+							}
+							try {
+								VospaceId id = new VospaceId(new NodePath(rs.getString("container_name")+"/"+rs.getString("path")));
+								id.getNodePath().setEnableAppContainer(identifier.getNodePath().isEnableAppContainer());
+
+								NodeInfo info = new NodeInfo();
+								info.setRevision(rs.getInt("rev"));
+								info.setDeleted(rs.getBoolean("deleted"));
+								info.setMtime(new Date(rs.getTimestamp("mtime").getTime()));
+								info.setSize(rs.getLong("size"));
+								info.setContentType(rs.getString("mimetype"));
+								info.setObjectName(rs.getString("object_name"));
+
+								Node node = NodeFactory.createNode(id, owner, NodeType.valueOf(rs.getString("type")));
+								node.setNodeInfo(info);
+								result.add(node);
+							} catch (URISyntaxException e) {
+								logger.error("Error in found node URI: "+e.getMessage());
+							}
+							lastKey = rs.getLong("node_id")+":"+PropertyIndex.sortKey(rs, sortColumn, "sort_value");
+						}
+						return new NodesList(result, -1, hasMore?encodeCursor(lastKey):null);
+					}
+				}
+		);
+		if(null == result)
+			throw new InternalServerErrorException("Error searching the properties");
+		return result;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see edu.jhu.pha.vospace.meta.MetaStore#storeData(edu.jhu.pha.vospace.node.VospaceId, edu.jhu.pha.vospace.node.NodeType, java.lang.Object)
 	 */
 	@Override
 	public void storeData(final VospaceId identifier, final NodeType type)  {
-		DbPoolServlet.goSql("Adding container",
-        		"insert ignore into containers (container_name, user_id) select ?, user_id from user_identities where identity = ?",
+		final MetaCache.Entry contEntry = resolveContainer(identifier);
+		final long ownerId = getUserId();
+		DbPoolServlet.goUserSqlTx(owner, "Adding metadata", null,
                 new SqlWorker<Integer>() {
                     @Override
                     public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
-                        stmt.setString(1, identifier.getNodePath().getContainerName());
-                        stmt.setString(2, owner);
-                        return stmt.executeUpdate();
+                    	return insertNode(conn, ownerId, identifier, type, contEntry);
                     }
                 }
         );
-		
-		DbPoolServlet.goSql("Adding metadata",
-        		"insert into nodes (container_id, path, parent_node_id, type, mimetype) "+
-        				"SELECT containers.`container_id`, ?, nodes.node_id, ?, ? FROM containers "+
-        				"JOIN user_identities ON containers.`user_id` = user_identities.user_id "+
-        				"LEFT JOIN nodes ON containers.`container_id` = nodes.`container_id` and nodes.path = ? "+
-        				"WHERE `identity` = ? and `container_name` = ?",
-        				new SqlWorker<Integer>() {
+		MetaCache.invalidate(owner, identifier.getNodePath());
+		MetaCache.invalidateContainerRoot(owner, identifier.getNodePath());
+	}
+
+	/**
+	 * Returns the first-level container entry of a nested node, null for a first-level container
+	 */
+	private MetaCache.Entry resolveContainer(VospaceId identifier) {
+		if(identifier.getNodePath().getNodeRelativeStoragePath().isEmpty())
+			return null;
+		return resolveContainerRoot(identifier.getNodePath().getContainerName());
+	}
+
+	/**
+	 * Returns the first-level container entry, holding the container_id and user_id keys
+	 */
+	private MetaCache.Entry resolveContainerRoot(String containerName) {
+		try {
+			return resolve(new VospaceId(new NodePath(containerName)));
+		} catch (URISyntaxException e) {
+			throw new InternalServerErrorException(e);
+		}
+	}
+
+	/**
+	 * Inserts the node under its stored parent, adding the container row for a first-level container.
+	 * Has to be called in a transaction.
+	 */
+	private int insertNode(Connection conn, long ownerId, VospaceId identifier, NodeType type, MetaCache.Entry contEntry) throws SQLException {
+		boolean isData = (type == NodeType.DATA_NODE || type == NodeType.STRUCTURED_DATA_NODE || type == NodeType.UNSTRUCTURED_DATA_NODE);
+		String path = identifier.getNodePath().getNodeRelativeStoragePath();
+		boolean inStoredContainer = null != contEntry && contEntry.isStored();
+		PreparedStatement stmt = null;
+		try {
+			if(path.isEmpty()) {
+				stmt = conn.prepareStatement("insert ignore into containers (container_name, user_id) values (?, ?)");
+				stmt.setString(1, identifier.getNodePath().getContainerName());
+				stmt.setLong(2, ownerId);
+				stmt.executeUpdate();
+				DbPoolServlet.close(stmt);
+			}
+
+			stmt = conn.prepareStatement("insert into nodes (container_id, path, path_hash, parent_node_id, type, mimetype, object_name) "+
+    				"SELECT containers.`container_id`, ?, UNHEX(MD5(?)), nodes.node_id, ?, ?, ? FROM containers "+
+    				"LEFT JOIN nodes ON containers.`container_id` = nodes.`container_id` and nodes.path_hash = UNHEX(MD5(?)) and nodes.path = ? "+
+    				"WHERE "+(inStoredContainer?"containers.`container_id` = ?":"containers.`user_id` = ? and `container_name` = ?"));
+			stmt.setString(1, path);
+			stmt.setString(2, path);
+			stmt.setString(3, type.name());
+			stmt.setString(4, isData?"application/file":"");
+			stmt.setString(5, isData?ObjectNames.newName():null);
+			stmt.setString(6, identifier.getNodePath().getParentPath().getNodeRelativeStoragePath());
+			stmt.setString(7, identifier.getNodePath().getParentPath().getNodeRelativeStoragePath());
+			if(inStoredContainer) {
+				stmt.setLong(8, contEntry.getContainerId());
+			} else {
+				stmt.setLong(8, ownerId);
+				stmt.setString(9, identifier.getNodePath().getContainerName());
+			}
+			int stored = stmt.executeUpdate();
+
+			if(inStoredContainer) {
+				NameIndex.indexPath(conn, contEntry.getContainerId(), path);
+				if(isData)
+					updateUsage(conn, contEntry.getContainerId(), 0, stored);
+			}
+			// the new first-level container node has no versions to bump, its listing is versioned by the journal
+			if(stored > 0 && inStoredContainer)
+				recordChanges(conn, ownerId, contEntry.getContainerId(), Collections.singletonList(identifier.getNodePath()), false);
+			else if(stored > 0)
+				ChangeJournal.record(conn, ownerId, Collections.singletonList(identifier.getNodePath()), false);
+			return stored;
+		} finally {
+			DbPoolServlet.close(stmt);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#replaceData(edu.jhu.pha.vospace.node.VospaceId, edu.jhu.pha.vospace.node.NodeType)
+	 */
+	@Override
+	public void replaceData(final VospaceId identifier, final NodeType type) {
+		final MetaCache.Entry entry = resolve(identifier);
+		final MetaCache.Entry contEntry = resolveContainer(identifier);
+		final long ownerId = getUserId();
+		final String path = identifier.getNodePath().getNodeRelativeStoragePath();
+		DbPoolServlet.goUserSqlTx(owner, "Replacing metadata", null,
+                new SqlWorker<Integer>() {
                     @Override
                     public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
-                    	
-                    	String mimeType = "";
-                    	if(type == NodeType.DATA_NODE || type == NodeType.STRUCTURED_DATA_NODE || type == NodeType.UNSTRUCTURED_DATA_NODE)
-                    		mimeType = "application/file";
-                    	
-                        stmt.setString(1, identifier.getNodePath().getNodeRelativeStoragePath());
-                        stmt.setString(2, type.name());
-                        stmt.setString(3, mimeType);
-                        stmt.setString(4, identifier.getNodePath().getParentPath().getNodeRelativeStoragePath());
-                        stmt.setString(5, owner);
-                        stmt.setString(6, identifier.getNodePath().getContainerName());
-                        return stmt.executeUpdate();
+                    	if(entry.isStored())
+                    		removeNode(conn, entry, path);
+                    	return insertNode(conn, ownerId, identifier, type, contEntry);
                     }
                 }
         );
+		MetaCache.invalidateTree(owner, identifier.getNodePath());
+		MetaCache.invalidateContainerRoot(owner, identifier.getNodePath());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#storeNodes(java.util.List)
+	 */
+	@Override
+	public void storeNodes(final List<Node> nodes) {
+		if(nodes.isEmpty())
+			return;
+
+		// parents have to be inserted before the children: split the nodes by depth
+		final SortedMap<Integer, List<Node>> levels = new TreeMap<Integer, List<Node>>();
+		for(Node node: nodes) {
+			int depth = node.getUri().getNodePath().getNodeStoragePathArray().length;
+			if(!levels.containsKey(depth))
+				levels.put(depth, new ArrayList<Node>());
+			levels.get(depth).add(node);
+		}
+
+		final Map<String, MetaCache.Entry> containers = new HashMap<String, MetaCache.Entry>();
+		for(Node node: nodes) {
+			String containerName = node.getUri().getNodePath().getContainerName();
+			if(!containers.containsKey(containerName)) {
+				MetaCache.Entry entry = resolveContainerRoot(containerName);
+				if(!entry.isStored())
+					throw new NotFoundException("ContainerNotFound");
+				containers.put(containerName, entry);
+			}
+		}
+
+		Set<String> propertyUris = new HashSet<String>();
+		for(Node node: nodes)
+			propertyUris.addAll(node.getNodeMeta(PropertyType.property).keySet());
+		final Map<String, Long> propertyIds = PropertyInterner.getWritableIds(propertyUris);
+		final long ownerId = getUserId();
+
+		Boolean stored = DbPoolServlet.goUserSqlTx(owner, "Storing nodes batch",
+        		"insert into nodes (container_id, path, path_hash, parent_node_id, type, size, mimetype, object_name) "+
+        				"SELECT container_id, ?, UNHEX(MD5(?)), node_id, ?, ?, ?, ? FROM nodes "+
+        				"WHERE current_rev = 1 and container_id = ? and path_hash = UNHEX(MD5(?)) and path = ?",
+                new SqlWorker<Boolean>() {
+                    @Override
+                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+                    	for(List<Node> level: levels.values()) {
+                    		for(int from = 0; from < level.size(); from += BATCH_SIZE) {
+	                    		for(Node node: level.subList(from, Math.min(from+BATCH_SIZE, level.size()))) {
+	                    			NodePath npath = node.getUri().getNodePath();
+	                    			stmt.setString(1, npath.getNodeRelativeStoragePath());
+	                    			stmt.setString(2, npath.getNodeRelativeStoragePath());
+	                    			stmt.setString(3, node.getType().name());
+	                    			stmt.setLong(4, node.getNodeInfo().getSize());
+	                    			stmt.setString(5, node.getNodeInfo().getContentType());
+	                    			stmt.setString(6, node.getNodeInfo().getObjectName());
+	                    			stmt.setLong(7, containers.get(npath.getContainerName()).getContainerId());
+	                    			stmt.setString(8, npath.getParentPath().getNodeRelativeStoragePath());
+	                    			stmt.setString(9, npath.getParentPath().getNodeRelativeStoragePath());
+	                    			stmt.addBatch();
+	                    		}
+	                    		stmt.executeBatch();
+                    		}
+                    	}
+
+                    	for(Node node: nodes) {
+                    		NodePath npath = node.getUri().getNodePath();
+                    		NameIndex.indexPath(conn, containers.get(npath.getContainerName()).getContainerId(), npath.getNodeRelativeStoragePath());
+                    	}
+
+                    	PreparedStatement propStmt = conn.prepareStatement(
+                    			"INSERT INTO node_properties (node_id, property_id, property_value) SELECT node_id, ?, ? FROM nodes "+
+                    			"WHERE current_rev = 1 and container_id = ? and path_hash = UNHEX(MD5(?)) and path = ? "+
+                    			"ON DUPLICATE KEY UPDATE property_value = VALUES(property_value)");
+                    	try {
+	                    	int batched = 0;
+	                    	for(Node node: nodes) {
+	                    		NodePath npath = node.getUri().getNodePath();
+	                    		Map<String, String> properties = node.getNodeMeta(PropertyType.property);
+	                    		for(String uri: properties.keySet()) {
+	                    			if(null == properties.get(uri) || !propertyIds.containsKey(uri))
+	                    				continue;
+	                    			propStmt.setLong(1, propertyIds.get(uri));
+	                    			propStmt.setString(2, properties.get(uri));
+	                    			propStmt.setLong(3, containers.get(npath.getContainerName()).getContainerId());
+	                    			propStmt.setString(4, npath.getNodeRelativeStoragePath());
+	                    			propStmt.setString(5, npath.getNodeRelativeStoragePath());
+	                    			propStmt.addBatch();
+	                    			if(++batched % BATCH_SIZE == 0)
+	                    				propStmt.executeBatch();
+	                    		}
+	                    	}
+	                    	propStmt.executeBatch();
+                    	} finally {
+                    		DbPoolServlet.close(propStmt);
+                    	}
+
+                    	for(Node node: nodes) {
+                    		NodePath npath = node.getUri().getNodePath();
+                    		Map<String, String> properties = node.getNodeMeta(PropertyType.property);
+                    		Map<Long, String> indexed = new HashMap<Long, String>();
+                    		for(String uri: properties.keySet()) {
+                    			if(null != properties.get(uri) && propertyIds.containsKey(uri))
+                    				indexed.put(propertyIds.get(uri), properties.get(uri));
+                    		}
+                    		if(!indexed.isEmpty())
+                    			PropertyIndex.indexPath(conn, ownerId, containers.get(npath.getContainerName()).getContainerId(), npath.getNodeRelativeStoragePath(), indexed);
+                    	}
+
+                    	Map<Long, long[]> usage = new HashMap<Long, long[]>();
+                    	for(Node node: nodes) {
+                    		if(node.getType() == NodeType.CONTAINER_NODE)
+                    			continue;
+                    		long containerId = containers.get(node.getUri().getNodePath().getContainerName()).getContainerId();
+                    		if(!usage.containsKey(containerId))
+                    			usage.put(containerId, new long[2]);
+                    		usage.get(containerId)[0] += node.getNodeInfo().getSize();
+                    		usage.get(containerId)[1]++;
+                    	}
+                    	for(Long containerId: usage.keySet())
+                    		updateUsage(conn, containerId, usage.get(containerId)[0], usage.get(containerId)[1]);
+
+                    	for(String containerName: containers.keySet()) {
+                    		List<NodePath> paths = new ArrayList<NodePath>();
+                    		for(Node node: nodes) {
+                    			if(node.getUri().getNodePath().getContainerName().equals(containerName))
+                    				paths.add(node.getUri().getNodePath());
+                    		}
+                    		recordChanges(conn, ownerId, containers.get(containerName).getContainerId(), paths, false);
+                    	}
+
+                        return true;
+                    }
+                }
+        );
+		for(Node node: nodes)
+			MetaCache.invalidate(owner, node.getUri().getNodePath());
+		for(String containerName: containers.keySet())
+			MetaCache.invalidate(owner, new NodePath(containerName));
+		if(null == stored)
+			throw new InternalServerErrorException("Error storing the nodes metadata");
 	}
 
 	@Override
 	public void storeInfo(final VospaceId identifier, final NodeInfo info) {
-        DbPoolServlet.goSql("Adding nodeinfo",
-        		"update nodes set size = ?, mimetype = ?, rev = ? where current_rev = 1 and node_id = "+
-                		"(SELECT * FROM (SELECT nodes.node_id FROM nodes JOIN containers "+
-                		"ON nodes.container_id = containers.container_id JOIN user_identities "+
-                		"ON containers.user_id = user_identities.user_id WHERE `container_name` = ? AND `path` = ? AND `identity` = ?) a)",
+		final MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			return;
+        DbPoolServlet.goUserSqlTx(owner, "Adding nodeinfo", null,
                 new SqlWorker<Integer>() {
                     @Override
                     public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
-                        stmt.setLong(1, info.getSize());
-                        stmt.setString(2, info.getContentType());
-                        stmt.setInt(3, info.getRevision());
-                        stmt.setString(4, identifier.getNodePath().getContainerName());
-                        stmt.setString(5, identifier.getNodePath().getNodeRelativeStoragePath());
-                        stmt.setString(6, owner);
-                        return stmt.executeUpdate();
+                    	storeNodeInfo(conn, entry, info, null);
+                    	recordChanges(conn, entry.getUserId(), entry.getContainerId(), Collections.singletonList(identifier.getNodePath()), false);
+                    	return 1;
                     }
                 }
         );
-      
+        MetaCache.invalidate(owner, identifier.getNodePath());
+        MetaCache.invalidateContainerRoot(owner, identifier.getNodePath());
 	}
 
 	/*
@@ -499,23 +1445,23 @@ public class MySQLMetaStore2 implements MetaStore{
 	 */
 	@Override
 	public void makeStructured(final VospaceId identifier, final boolean isStructured) {
-        DbPoolServlet.goSql("Adding nodeinfo",
-        		"update nodes set type = ? where current_rev = 1 and node_id = "+
-                		"(SELECT * FROM (SELECT nodes.node_id FROM nodes JOIN containers "+
-                		"ON nodes.container_id = containers.container_id JOIN user_identities "+
-                		"ON containers.user_id = user_identities.user_id WHERE `container_name` = ? AND `path` = ? AND `identity` = ?) a)",
+		final MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			return;
+        DbPoolServlet.goUserSqlTx(owner, "Adding nodeinfo",
+        		"update nodes set type = ? where current_rev = 1 and node_id = ?",
                 new SqlWorker<Integer>() {
                     @Override
                     public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
                         stmt.setString(1, (isStructured)?NodeType.STRUCTURED_DATA_NODE.toString():NodeType.UNSTRUCTURED_DATA_NODE.toString());
-                        stmt.setString(2, identifier.getNodePath().getContainerName());
-                        stmt.setString(3, identifier.getNodePath().getNodeRelativeStoragePath());
-                        stmt.setString(4, owner);
-                        return stmt.executeUpdate();
+                        stmt.setLong(2, entry.getNodeId());
+                        int updated = stmt.executeUpdate();
+                        bumpVersions(conn, entry.getContainerId(), Collections.singletonList(identifier.getNodePath()));
+                        return updated;
                     }
                 }
         );
-      
+        MetaCache.invalidate(owner, identifier.getNodePath());
 	}
 
 	/*
@@ -524,105 +1470,396 @@ public class MySQLMetaStore2 implements MetaStore{
 	 */
 	@Override
 	public void updateData(final VospaceId identifier, final VospaceId newIdentifier)  {
-        DbPoolServlet.goSql("Updating metadata",
-        		"update nodes set container_id = SELECT container_id from containers JOIN user_identities ON containers.user_id = user_identities.user_id WHERE identity = ? AND container_name = ?, "+
-        				"path = ? where current_rev = 1 and node_id = "+
-                		"(SELECT * FROM (SELECT nodes.node_id FROM nodes JOIN containers "+
-                		"ON nodes.container_id = containers.container_id JOIN user_identities "+
-                		"ON containers.user_id = user_identities.user_id WHERE `container_name` = ? AND `path` = ? AND `identity` = ?) a)",
+		final MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			return;
+		final MetaCache.Entry newContEntry = resolveContainerRoot(newIdentifier.getNodePath().getContainerName());
+		if(!newContEntry.isStored())
+			throw new NotFoundException("ContainerNotFound");
+        DbPoolServlet.goUserSqlTx(owner, "Updating metadata",
+        		"update nodes set container_id = ?, path = ?, path_hash = UNHEX(MD5(?)) where current_rev = 1 and node_id = ?",
                 new SqlWorker<Integer>() {
                     @Override
                     public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
-                        stmt.setString(1, owner);
-                        stmt.setString(2, newIdentifier.getNodePath().getContainerName());
+                        stmt.setLong(1, newContEntry.getContainerId());
+                        stmt.setString(2, newIdentifier.getNodePath().getNodeRelativeStoragePath());
                         stmt.setString(3, newIdentifier.getNodePath().getNodeRelativeStoragePath());
-                        stmt.setString(4, identifier.getNodePath().getContainerName());
-                        stmt.setString(5, identifier.getNodePath().getNodeRelativeStoragePath());
-                        stmt.setString(6, owner);
-                        return stmt.executeUpdate();
+                        stmt.setLong(4, entry.getNodeId());
+                        int updated = stmt.executeUpdate();
+                        NameIndex.indexNode(conn, entry.getNodeId(), newIdentifier.getNodePath().getNodeRelativeStoragePath());
+                        recordChanges(conn, entry.getUserId(), entry.getContainerId(), Collections.singletonList(identifier.getNodePath()), true);
+                        recordChanges(conn, entry.getUserId(), newContEntry.getContainerId(), Collections.singletonList(newIdentifier.getNodePath()), false);
+                        return updated;
                     }
                 }
         );
+        MetaCache.invalidateTree(owner, identifier.getNodePath());
+        MetaCache.invalidate(owner, newIdentifier.getNodePath());
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#moveTree(edu.jhu.pha.vospace.node.VospaceId, edu.jhu.pha.vospace.node.VospaceId)
+	 */
 	@Override
-	public void updateUserProperties(final VospaceId identifier, final Map<String, String> properties)  {
-        DbPoolServlet.goSql("Updating properties",
-        		"INSERT IGNORE INTO properties (property_uri) VALUES (?)",
+	public boolean moveTree(final VospaceId identifier, final VospaceId newIdentifier) {
+		final String path = identifier.getNodePath().getNodeRelativeStoragePath();
+		final String newPath = newIdentifier.getNodePath().getNodeRelativeStoragePath();
+		// the first-level containers are separate storage containers
+		if(path.isEmpty() || newPath.isEmpty() || !identifier.getNodePath().getContainerName().equals(newIdentifier.getNodePath().getContainerName()))
+			return false;
+		if(newIdentifier.getNodePath().isParent(identifier.getNodePath()))
+			return false;
+		final MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			return false;
+		final MetaCache.Entry newParent;
+		try {
+			newParent = resolve(newIdentifier.getParent());
+		} catch (URISyntaxException e) {
+			throw new BadRequestException("InvalidURI");
+		}
+		if(!newParent.isStored() || newParent.getType() != NodeType.CONTAINER_NODE)
+			return false;
+
+		Boolean moved = DbPoolServlet.goUserSqlTx(owner, "Moving subtree",
+        		"update nodes set path_hash = UNHEX(MD5(CONCAT(?, SUBSTRING(path, ?)))), path = CONCAT(?, SUBSTRING(path, ?)) "+
+        		"WHERE container_id = ? AND path LIKE ?",
                 new SqlWorker<Boolean>() {
                     @Override
                     public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
-                    	for(String uri: properties.keySet()) {
-                    		stmt.setString(1, uri);
-                    		stmt.executeUpdate();
+                    	// locks the subtree, so no data node is added under its path meanwhile
+                    	PreparedStatement checkStmt = conn.prepareStatement("select path, type, object_name from nodes "+
+                    			"WHERE container_id = ? AND current_rev = 1 AND (path = ? OR path LIKE ?) for update");
+                    	List<NodePath> movedPaths = new ArrayList<NodePath>();
+                    	try {
+                    		checkStmt.setLong(1, entry.getContainerId());
+                    		checkStmt.setString(2, path);
+                    		checkStmt.setString(3, escapeLike(path)+"/%");
+                    		ResultSet rs = checkStmt.executeQuery();
+                    		while(rs.next()) {
+                    			if(null == rs.getString("object_name") && !NodeType.CONTAINER_NODE.name().equals(rs.getString("type")))
+                    				return false; // the data is stored under the node path
+                    			movedPaths.add(new NodePath(newIdentifier.getNodePath().getContainerName()+"/"+newPath+rs.getString("path").substring(path.length())));
+                    		}
+                    	} finally {
+                    		DbPoolServlet.close(checkStmt);
                     	}
-                        return true;
+
+                    	stmt.setString(1, newPath);
+                    	stmt.setInt(2, path.length()+1);
+                    	stmt.setString(3, newPath);
+                    	stmt.setInt(4, path.length()+1);
+                    	stmt.setLong(5, entry.getContainerId());
+                    	stmt.setString(6, escapeLike(path)+"/%");
+                    	stmt.executeUpdate();
+
+                    	PreparedStatement rootStmt = conn.prepareStatement("update nodes set path_hash = UNHEX(MD5(?)), path = ?, parent_node_id = ? WHERE node_id = ?");
+                    	try {
+                    		rootStmt.setString(1, newPath);
+                    		rootStmt.setString(2, newPath);
+                    		rootStmt.setLong(3, newParent.getNodeId());
+                    		rootStmt.setLong(4, entry.getNodeId());
+                    		rootStmt.executeUpdate();
+                    	} finally {
+                    		DbPoolServlet.close(rootStmt);
+                    	}
+
+                    	// only the subtree root name changes
+                    	NameIndex.indexNode(conn, entry.getNodeId(), newPath);
+                    	recordChanges(conn, entry.getUserId(), entry.getContainerId(), Collections.singletonList(identifier.getNodePath()), true);
+                    	recordChanges(conn, entry.getUserId(), entry.getContainerId(), movedPaths, false);
+                    	return true;
                     }
                 }
         );
-        DbPoolServlet.goSql("Updating properties",
-        		"INSERT INTO node_properties (node_id, property_id, property_value) SELECT `node_id`, `property_id`, ? FROM nodes "+
-        					"JOIN containers ON nodes.container_id = containers.container_id "+
-        					"JOIN user_identities ON containers.user_id = user_identities.user_id "+
-        					"JOIN properties " +
-	                		"WHERE `container_name` = ? AND `path` = ? AND `identity` = ? AND `property_uri` = ? AND `property_readonly` = 0 "+
-        					"ON DUPLICATE KEY UPDATE property_value = ?",
+        MetaCache.invalidateTree(owner, identifier.getNodePath());
+        MetaCache.invalidateTree(owner, newIdentifier.getNodePath());
+        return Boolean.TRUE.equals(moved);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#getObjectNames(edu.jhu.pha.vospace.node.VospaceId)
+	 */
+	@Override
+	public List<String> getObjectNames(final VospaceId identifier) {
+		final MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			return new ArrayList<String>();
+		final String path = identifier.getNodePath().getNodeRelativeStoragePath();
+		final String subtreeCondition = path.isEmpty()?"":" AND (path = ? OR path LIKE ?)";
+		return DbPoolServlet.goUserSql(owner, "Get subtree object names",
+        		"select object_name from nodes WHERE container_id = ? AND object_name IS NOT NULL"+subtreeCondition,
+                new PrimaryReader<List<String>>() {
+                    @Override
+                    public List<String> go(Connection conn, PreparedStatement stmt) throws SQLException {
+                    	List<String> result = new ArrayList<String>();
+                        stmt.setLong(1, entry.getContainerId());
+                        if(!path.isEmpty()) {
+                        	stmt.setString(2, path);
+                        	stmt.setString(3, escapeLike(path)+"/%");
+                        }
+                        ResultSet rs = stmt.executeQuery();
+                        while(rs.next())
+                        	result.add(rs.getString("object_name"));
+                        return result;
+                    }
+                }
+        );
+	}
+
+	@Override
+	public void updateUserProperties(final VospaceId identifier, final Map<String, String> properties)  {
+		final MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			return;
+        if(properties.isEmpty())
+        	return;
+        final Map<String, Long> propertyIds = PropertyInterner.getWritableIds(properties.keySet());
+        DbPoolServlet.goUserSqlTx(owner, "Updating properties", null,
                 new SqlWorker<Boolean>() {
                     @Override
                     public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
-                    	for(String uri: properties.keySet()) {
-                    		if(null != properties.get(uri)) {
-	                    		stmt.setString(1, properties.get(uri));
-		                        stmt.setString(2, identifier.getNodePath().getContainerName());
-		                        stmt.setString(3, identifier.getNodePath().getNodeRelativeStoragePath());
-		                        stmt.setString(4, owner);
-	                    		stmt.setString(5, uri);
-	                    		stmt.setString(6, properties.get(uri));
-	                    		stmt.executeUpdate();
-                    		}
-                    	}
+                    	storeProperties(conn, entry.getUserId(), entry.getNodeId(), properties, propertyIds);
+                    	bumpVersions(conn, entry.getContainerId(), Collections.singletonList(identifier.getNodePath()));
                         return true;
                     }
                 }
         );
-        DbPoolServlet.goSql("Deleting properties",
-        		"DELETE from node_properties WHERE node_id = (SELECT nodes.`node_id` FROM nodes "+
-        		"JOIN containers ON nodes.container_id = containers.container_id "+ 
-        		"JOIN user_identities ON containers.user_id = user_identities.user_id "+ 
-        		"WHERE `container_name` = ? AND `path` = ? AND `identity` = ?) "+
-        		"AND `property_id` = (SELECT property_id FROM properties WHERE property_uri = ? and `property_readonly` = 0)",
+        // the properties are not cached in the MetaCache, only by the node objects
+        NodeIdentityMap.invalidate(owner, identifier.getNodePath());
+	}
+
+	/**
+	 * Upserts the not null properties of the node in one multi-row statement and deletes the null ones in another,
+	 * then updates the properties index.
+	 * Properties missing in propertyIds (read-only) are skipped.
+	 */
+	private static void storeProperties(Connection conn, long userId, long nodeId, Map<String, String> properties, Map<String, Long> propertyIds) throws SQLException {
+		List<Long> upserted = new ArrayList<Long>(), deleted = new ArrayList<Long>();
+		List<String> values = new ArrayList<String>();
+		Map<Long, String> indexed = new HashMap<Long, String>();
+		for(String uri: properties.keySet()) {
+			Long propertyId = propertyIds.get(uri);
+			if(null == propertyId)
+				continue;
+			indexed.put(propertyId, properties.get(uri));
+			if(null == properties.get(uri)) {
+				deleted.add(propertyId);
+			} else {
+				upserted.add(propertyId);
+				values.add(properties.get(uri));
+			}
+		}
+
+		PreparedStatement stmt = null;
+		try {
+			if(!upserted.isEmpty()) {
+				stmt = conn.prepareStatement("INSERT INTO node_properties (node_id, property_id, property_value) VALUES "+placeholders("(?, ?, ?)", upserted.size())+
+						" ON DUPLICATE KEY UPDATE property_value = VALUES(property_value)");
+				int param = 1;
+				for(int i = 0; i < upserted.size(); i++) {
+					stmt.setLong(param++, nodeId);
+					stmt.setLong(param++, upserted.get(i));
+					stmt.setString(param++, values.get(i));
+				}
+				stmt.executeUpdate();
+				DbPoolServlet.close(stmt);
+			}
+			if(!deleted.isEmpty()) {
+				stmt = conn.prepareStatement("DELETE from node_properties WHERE node_id = ? AND property_id IN ("+placeholders("?", deleted.size())+")");
+				int param = 1;
+				stmt.setLong(param++, nodeId);
+				for(Long propertyId: deleted)
+					stmt.setLong(param++, propertyId);
+				stmt.executeUpdate();
+			}
+		} finally {
+			DbPoolServlet.close(stmt);
+		}
+		PropertyIndex.indexNode(conn, userId, nodeId, indexed);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see edu.jhu.pha.vospace.meta.MetaStore#storeUpdate(edu.jhu.pha.vospace.meta.NodeMetaUpdate)
+	 */
+	@Override
+	public void storeUpdate(final NodeMetaUpdate update) {
+		if(update.isEmpty())
+			return;
+		final MetaCache.Entry entry = resolve(update.getUri());
+		if(!entry.isStored())
+			return;
+		final Map<String, Long> propertyIds = PropertyInterner.getWritableIds(update.getProperties().keySet());
+		Boolean stored = DbPoolServlet.goUserSqlTx(owner, "Storing node update", null,
                 new SqlWorker<Boolean>() {
                     @Override
-                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
-                    	for(String uri: properties.keySet()) {
-                    		if(null == properties.get(uri)) {
-		                        stmt.setString(1, identifier.getNodePath().getContainerName());
-		                        stmt.setString(2, identifier.getNodePath().getNodeRelativeStoragePath());
-		                        stmt.setString(3, owner);
-	                    		stmt.setString(4, uri);
-	                    		stmt.executeUpdate();
-                    		}
+                    public Boolean go(Connection conn, PreparedStatement ignored) throws SQLException {
+                    	if(null != update.getNodeInfo() || null != update.getStructured()) {
+                    		storeNodeInfo(conn, entry, update.getNodeInfo(), update.getStructured());
+                    		recordChanges(conn, entry.getUserId(), entry.getContainerId(), Collections.singletonList(update.getUri().getNodePath()), false);
+                    	}
+
+                    	if(!update.getProperties().isEmpty()) {
+                    		storeProperties(conn, entry.getUserId(), entry.getNodeId(), update.getProperties(), propertyIds);
+                    		bumpVersions(conn, entry.getContainerId(), Collections.singletonList(update.getUri().getNodePath()));
                     	}
                         return true;
                     }
                 }
         );
+		MetaCache.invalidate(owner, update.getUri().getNodePath());
+		if(null != update.getNodeInfo())
+			MetaCache.invalidateContainerRoot(owner, update.getUri().getNodePath());
+		if(null == stored)
+			throw new InternalServerErrorException("Error storing the node metadata");
 	}
-	
+
+	/**
+	 * Updates the node info and/or the structured flag, applying the data node size change to the usage counters.
+	 * The size of a container node is only changed by the usage counters.
+	 * New data (a higher revision) is stored where the writer put it: if the object name was changed meanwhile
+	 * by the {@link ObjectNameMigrator}, the node is set back to the object written.
+	 * Has to be called in a transaction.
+	 */
+	private static void storeNodeInfo(Connection conn, MetaCache.Entry entry, NodeInfo info, Boolean structured) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			long oldSize = 0;
+			boolean isContainer = false;
+			boolean moved = false;
+			if(null != info) {
+				stmt = conn.prepareStatement("select size, type, rev, object_name from nodes where node_id = ? for update");
+				stmt.setLong(1, entry.getNodeId());
+				ResultSet rs = stmt.executeQuery();
+				if(!rs.next())
+					return;
+				oldSize = rs.getLong("size");
+				isContainer = NodeType.CONTAINER_NODE.name().equals(rs.getString("type"));
+				moved = !isContainer && info.getRevision() > rs.getInt("rev") &&
+						!StringUtils.equals(info.getObjectName(), rs.getString("object_name"));
+				DbPoolServlet.close(stmt);
+			}
+
+			List<String> columns = new ArrayList<String>();
+			if(null != info) {
+				if(!isContainer)
+					columns.add("size = ?");
+				columns.add("mimetype = ?");
+				columns.add("rev = ?");
+				if(moved)
+					columns.add("object_name = ?");
+			}
+			if(null != structured)
+				columns.add("type = ?");
+			stmt = conn.prepareStatement("update nodes set "+StringUtils.join(columns, ", ")+" where current_rev = 1 and node_id = ?");
+			int param = 1;
+			if(null != info) {
+				if(!isContainer)
+					stmt.setLong(param++, info.getSize());
+				stmt.setString(param++, info.getContentType());
+				stmt.setInt(param++, info.getRevision());
+				if(moved)
+					stmt.setString(param++, info.getObjectName());
+			}
+			if(null != structured)
+				stmt.setString(param++, (structured)?NodeType.STRUCTURED_DATA_NODE.toString():NodeType.UNSTRUCTURED_DATA_NODE.toString());
+			stmt.setLong(param++, entry.getNodeId());
+			stmt.executeUpdate();
+
+			if(null != info && !isContainer)
+				updateUsage(conn, entry.getContainerId(), info.getSize()-oldSize, 0);
+		} finally {
+			DbPoolServlet.close(stmt);
+		}
+	}
+
+	/**
+	 * Bumps the versions of the changed nodes and journals the changes. Has to be called in the transaction changing the nodes.
+	 */
+	private static void recordChanges(Connection conn, long ownerId, long containerId, Collection<NodePath> paths, boolean deleted) throws SQLException {
+		bumpVersions(conn, containerId, paths);
+		ChangeJournal.record(conn, ownerId, paths, deleted);
+	}
+
+	/**
+	 * Bumps the versions of the nodes, of their parents listing them and of their first-level container
+	 * summing their usage. The mtime is kept.
+	 * @param containerId The first-level container of all the nodes
+	 */
+	private static void bumpVersions(Connection conn, long containerId, Collection<NodePath> paths) throws SQLException {
+		Set<String> versionedSet = new HashSet<String>();
+		versionedSet.add("");
+		for(NodePath path: paths) {
+			versionedSet.add(path.getNodeRelativeStoragePath());
+			if(!path.getNodeRelativeStoragePath().isEmpty())
+				versionedSet.add(path.getParentPath().getNodeRelativeStoragePath());
+		}
+
+		List<String> versioned = new ArrayList<String>(versionedSet);
+		for(int from = 0; from < versioned.size(); from += BATCH_SIZE) {
+			List<String> batch = versioned.subList(from, Math.min(from+BATCH_SIZE, versioned.size()));
+			PreparedStatement stmt = conn.prepareStatement("update nodes set version = version + 1, mtime = mtime "+
+					"WHERE container_id = ? AND current_rev = 1 AND path_hash IN ("+placeholders("UNHEX(MD5(?))", batch.size())+")");
+			try {
+				int param = 1;
+				stmt.setLong(param++, containerId);
+				for(String path: batch)
+					stmt.setString(param++, path);
+				stmt.executeUpdate();
+			} finally {
+				DbPoolServlet.close(stmt);
+			}
+		}
+	}
+
+	/**
+	 * Applies the change of the container data size and objects count to the container and user usage counters
+	 * and to the size of the container node. Has to be called in the transaction changing the nodes.
+	 */
+	private static void updateUsage(Connection conn, long containerId, long bytes, long objects) throws SQLException {
+		if(0 == bytes && 0 == objects)
+			return;
+		PreparedStatement stmt = conn.prepareStatement(
+				"update containers JOIN users ON containers.user_id = users.user_id "+
+				"LEFT JOIN nodes ON nodes.container_id = containers.container_id AND nodes.path_hash = UNHEX(MD5('')) AND nodes.path = '' AND nodes.current_rev = 1 "+
+				"set containers.bytes_used = GREATEST(containers.bytes_used + ?, 0), containers.object_count = GREATEST(containers.object_count + ?, 0), "+
+				"users.bytes_used = GREATEST(users.bytes_used + ?, 0), users.object_count = GREATEST(users.object_count + ?, 0), "+
+				"nodes.size = GREATEST(CAST(nodes.size AS SIGNED) + ?, 0) "+
+				"WHERE containers.container_id = ?");
+		try {
+			stmt.setLong(1, bytes);
+			stmt.setLong(2, objects);
+			stmt.setLong(3, bytes);
+			stmt.setLong(4, objects);
+			stmt.setLong(5, bytes);
+			stmt.setLong(6, containerId);
+			stmt.executeUpdate();
+		} finally {
+			DbPoolServlet.close(stmt);
+		}
+	}
+
 	@Override
 	public String createShare(final VospaceId identifier, final String groupId, final boolean write_perm)  {
 		final String shareKey = RandomStringUtils.randomAlphanumeric(15);
+		final MetaCache.Entry contEntry = resolveContainerRoot(identifier.getNodePath().getContainerName());
+		if(!contEntry.isStored())
+			return shareKey;
 		
+		// the shares are looked up across the users, so they are kept in the directory on the default shard
 		if(groupId != null && !groupId.isEmpty()) {
 			DbPoolServlet.goSql("Adding new share for container",
-	        		"insert into container_shares (share_id, container_id, group_id, share_write_permission) select ?, container_id, group_id, ? from containers JOIN user_identities ON containers.user_id = user_identities.user_id JOIN groups WHERE identity = ? AND container_name = ? and group_id = ?",
+	        		"insert into container_shares (share_id, user_id, container_name, group_id, share_write_permission) select ?, ?, ?, group_id, ? from groups WHERE group_id = ?",
 	                new SqlWorker<Integer>() {
 	                    @Override
 	                    public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
 	                        stmt.setString(1, shareKey);
-	                        stmt.setBoolean(2, write_perm);
-	                        stmt.setString(3, owner);
-	                        stmt.setString(4, identifier.getNodePath().getContainerName());
+	                        stmt.setLong(2, contEntry.getUserId());
+	                        stmt.setString(3, identifier.getNodePath().getContainerName());
+	                        stmt.setBoolean(4, write_perm);
 	                        stmt.setString(5, groupId);
 	                        return stmt.executeUpdate();
 	                    }
@@ -630,14 +1867,14 @@ public class MySQLMetaStore2 implements MetaStore{
 	        );
 		} else {
 			DbPoolServlet.goSql("Adding new share for container",
-	        		"insert into container_shares (share_id, container_id, share_write_permission) select ?, container_id, ? from containers JOIN user_identities ON containers.user_id = user_identities.user_id WHERE identity = ? AND container_name = ?",
+	        		"insert into container_shares (share_id, user_id, container_name, share_write_permission) values (?, ?, ?, ?)",
 	                new SqlWorker<Integer>() {
 	                    @Override
 	                    public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
 	                        stmt.setString(1, shareKey);
-	                        stmt.setBoolean(2, write_perm);
-	                        stmt.setString(3, owner);
-	                        stmt.setString(4, identifier.getNodePath().getContainerName());
+	                        stmt.setLong(2, contEntry.getUserId());
+	                        stmt.setString(3, identifier.getNodePath().getContainerName());
+	                        stmt.setBoolean(4, write_perm);
 	                        return stmt.executeUpdate();
 	                    }
 	                }
@@ -648,21 +1885,19 @@ public class MySQLMetaStore2 implements MetaStore{
 
 	@Override
 	public Map<String, String> getProperties(final VospaceId identifier) {
-		return DbPoolServlet.goSql("Get node properties",
+		final MetaCache.Entry entry = resolve(identifier);
+		if(!entry.isStored())
+			return new HashMap<String, String>();
+		return DbPoolServlet.goUserSql(owner, "Get node properties",
         		"select property_uri, property_value from node_properties "+
         		"JOIN properties ON node_properties.property_id = properties.property_id "+
-        		"JOIN nodes ON node_properties.node_id = nodes.node_id " +
-				"JOIN containers ON nodes.container_id = containers.container_id "+
-        		"JOIN user_identities ON containers.user_id = user_identities.user_id "+
-        		"WHERE `current_rev` = 1 AND `container_name` = ? AND `path` = ? AND `identity` = ?",
-                new SqlWorker<Map<String, String>>() {
+        		"WHERE node_properties.node_id = ?",
+                new SqlReader<Map<String, String>>() {
                     @Override
                     public Map<String, String> go(Connection conn, PreparedStatement stmt) throws SQLException {
                     	
                     	Map<String, String> map = new HashMap<String, String>();
-                        stmt.setString(1, identifier.getNodePath().getContainerName());
-                        stmt.setString(2, identifier.getNodePath().getNodeRelativeStoragePath());
-                        stmt.setString(3, owner);
+                        stmt.setLong(1, entry.getNodeId());
                         ResultSet resSet = stmt.executeQuery();
                         while(resSet.next()) {
                         	map.put(resSet.getString("property_uri"), resSet.getString("property_value"));
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.meta;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
+
+/**
+ * Filename search index kept in the node_name_grams table.
+ * The case-folded basename of a node is indexed with all its trigrams, for substring search.
+ * The queries shorter than a trigram can't be narrowed down by the index and are matched by scanning the container.
+ * The grams are removed together with the node by the foreign key.
+ */
+public class NameIndex {
+
+	private static final Logger logger = Logger.getLogger(NameIndex.class);
+
+	private static final int GRAM_LENGTH = 3;
+	private static final int BACKFILL_BATCH = 500;
+
+	private NameIndex() {}
+
+	/**
+	 * Returns the grams of the node basename
+	 */
+	static Set<String> grams(String name) {
+		Set<String> grams = new LinkedHashSet<String>();
+		String folded = name.toLowerCase(Locale.ROOT);
+		for(int i = 0; i + GRAM_LENGTH <= folded.length(); i++)
+			grams.add(folded.substring(i, i + GRAM_LENGTH));
+		return grams;
+	}
+
+	/**
+	 * Returns the grams all the matching names have: the trigrams of the query,
+	 * none for the queries shorter than a trigram
+	 */
+	static List<String> queryGrams(String query) {
+		String folded = query.trim().toLowerCase(Locale.ROOT);
+		List<String> grams = new ArrayList<String>();
+		for(int i = 0; i + GRAM_LENGTH <= folded.length(); i++) {
+			if(!grams.contains(folded.substring(i, i + GRAM_LENGTH)))
+				grams.add(folded.substring(i, i + GRAM_LENGTH));
+		}
+		return grams;
+	}
+
+	/**
+	 * Replaces the indexed grams of the node identified by container and path
+	 */
+	static void indexPath(Connection conn, long containerId, String path) throws SQLException {
+		write(conn, path, "nodes.current_rev = 1 and nodes.container_id = ? and nodes.path_hash = UNHEX(MD5(?)) and nodes.path = ?",
+				containerId, path, path);
+	}
+
+	/**
+	 * Replaces the indexed grams of the node with the given id and (new) path
+	 */
+	static void indexNode(Connection conn, long nodeId, String path) throws SQLException {
+		write(conn, path, "nodes.node_id = ?", nodeId);
+	}
+
+	private static void write(Connection conn, String path, String nodeCondition, Object... nodeParams) throws SQLException {
+		if(path.isEmpty()) // first-level containers are not searched
+			return;
+		Set<String> grams = grams(path.substring(path.lastIndexOf('/')+1));
+
+		PreparedStatement stmt = conn.prepareStatement("DELETE node_name_grams FROM node_name_grams JOIN nodes ON node_name_grams.node_id = nodes.node_id "+
+				"WHERE "+nodeCondition);
+		try {
+			int param = 1;
+			for(Object nodeParam: nodeParams)
+				stmt.setObject(param++, nodeParam);
+			stmt.executeUpdate();
+		} finally {
+			DbPoolServlet.close(stmt);
+		}
+
+		if(grams.isEmpty())
+			return;
+
+		StringBuilder gramsTable = new StringBuilder();
+		for(int i = 0; i < grams.size(); i++)
+			gramsTable.append((i == 0)?"SELECT ? gram":" UNION ALL SELECT ?");
+
+		stmt = conn.prepareStatement("INSERT IGNORE INTO node_name_grams (node_id, container_id, gram) "+
+				"SELECT nodes.node_id, nodes.container_id, g.gram FROM nodes JOIN ("+gramsTable+") g WHERE "+nodeCondition);
+		try {
+			int param = 1;
+			for(String gram: grams)
+				stmt.setString(param++, gram);
+			for(Object nodeParam: nodeParams)
+				stmt.setObject(param++, nodeParam);
+			stmt.executeUpdate();
+		} finally {
+			DbPoolServlet.close(stmt);
+		}
+	}
+
+	/**
+	 * Indexes the nodes stored before the index was introduced on all the shards. Nodes already indexed are skipped.
+	 */
+	public static void backfill() {
+		for(String shard: DbPoolServlet.getShards())
+			backfill(shard);
+	}
+
+	private static void backfill(String shard) {
+		long lastNodeId = 0;
+		int indexed = 0;
+		while(!Thread.currentThread().isInterrupted()) {
+			final long fromNodeId = lastNodeId;
+			Long batchLast = DbPoolServlet.goShardSql(shard, "Backfilling the name index",
+					"select nodes.node_id, nodes.path from nodes "+
+					"LEFT JOIN node_name_grams ON nodes.node_id = node_name_grams.node_id "+
+					"WHERE nodes.node_id > ? and nodes.current_rev = 1 and nodes.path <> '' and node_name_grams.node_id IS NULL "+
+					"order by nodes.node_id limit "+BACKFILL_BATCH,
+					new SqlWorker<Long>() {
+						@Override
+						public Long go(Connection conn, PreparedStatement stmt) throws SQLException {
+							stmt.setLong(1, fromNodeId);
+							List<Object[]> nodes = new ArrayList<Object[]>();
+							ResultSet rs = stmt.executeQuery();
+							while(rs.next())
+								nodes.add(new Object[]{rs.getLong("node_id"), rs.getString("path")});
+							if(nodes.isEmpty())
+								return null;
+
+							for(Object[] node: nodes)
+								indexNode(conn, (Long)node[0], (String)node[1]);
+							return (Long)nodes.get(nodes.size()-1)[0];
+						}
+
+						@Override
+						public void error(String context, SQLException e) {
+							logger.error(context+": "+e.getMessage());
+						}
+					}
+			);
+			if(null == batchLast)
+				break;
+			indexed += BACKFILL_BATCH;
+			lastNodeId = batchLast;
+		}
+		logger.info("Name index backfill finished on the "+shard+" shard, about "+indexed+" nodes indexed");
+	}
+}
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.meta;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.jhu.pha.vospace.node.NodeInfo;
+import edu.jhu.pha.vospace.node.VospaceId;
+
+/**
+ * The class accumulates the metadata changes of a node (info, structured flag, user properties)
+ * to be stored in one transaction by {@link MetaStore#storeUpdate(NodeMetaUpdate)}.
+ * Later changes override the earlier ones, a null property value removes the property.
+ */
+public class NodeMetaUpdate {
+	private final VospaceId uri;
+	private NodeInfo nodeInfo;
+	private Boolean structured;
+	private final Map<String, String> properties = new HashMap<String, String>();
+
+	public NodeMetaUpdate(VospaceId uri) {
+		this.uri = uri;
+	}
+
+	public VospaceId getUri() {
+		return uri;
+	}
+	public NodeInfo getNodeInfo() {
+		return nodeInfo;
+	}
+	public void setNodeInfo(NodeInfo nodeInfo) {
+		this.nodeInfo = nodeInfo;
+	}
+	public Boolean getStructured() {
+		return structured;
+	}
+	public void setStructured(boolean structured) {
+		this.structured = structured;
+	}
+	public Map<String, String> getProperties() {
+		return properties;
+	}
+	public void putProperties(Map<String, String> properties) {
+		this.properties.putAll(properties);
+	}
+
+	public boolean isEmpty() {
+		return null == nodeInfo && null == structured && properties.isEmpty();
+	}
+}
@@ -20,19 +20,26 @@ import java.util.List;
 import edu.jhu.pha.vospace.node.Node;
 
 /**
- * The class provides container for paginated nodes list containing current page of nodes and total amount of results found in the DB
+ * The class provides container for paginated nodes list containing current page of nodes and total amount of results found in the DB.
+ * Lists fetched by cursor have the cursor of the next page (null for the last page) and total count of -1 unless requested.
  * @author dmitry
  *
  */
 public class NodesList {
 	private List<Node> nodesList;
 	private int nodesCount;
+	private String cursor;
 	
 	public NodesList(List<Node> nodesList, int nodesCount) {
 		super();
 		this.nodesList = nodesList;
 		this.nodesCount = nodesCount;
 	}
+
+	public NodesList(List<Node> nodesList, int nodesCount, String cursor) {
+		this(nodesList, nodesCount);
+		this.cursor = cursor;
+	}
 	public List<Node> getNodesList() {
 		return nodesList;
 	}
@@ -45,5 +52,11 @@ public class NodesList {
 	public void setNodesCount(int nodesCount) {
 		this.nodesCount = nodesCount;
 	}
+	public String getCursor() {
+		return cursor;
+	}
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
 
 }
@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.meta;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.PrimaryReader;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
+import edu.jhu.pha.vospace.QueueConnector;
+import edu.jhu.pha.vospace.SettingsServlet;
+import edu.jhu.pha.vospace.node.NodePath;
+import edu.jhu.pha.vospace.node.VospaceId;
+import edu.jhu.pha.vospace.storage.ObjectNames;
+import edu.jhu.pha.vospace.storage.StorageManager;
+import edu.jhu.pha.vospace.storage.StorageManagerFactory;
+
+/**
+ * Moves the data of the nodes stored before the object names were enabled to the immutable object names.
+ * The data is copied to the new object, then the object name is set if the node data was not changed meanwhile.
+ * The servers still having the node cached without the object name read the old object,
+ * so it is removed only after the metadata cache entries expire. A write of the old object racing the migration
+ * sets the node back to the old object (see MySQLMetaStore2.storeNodeInfo), the copy is removed then.
+ * The chunked uploads are not migrated, they get the object names when moved.
+ */
+public class ObjectNameMigrator implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(ObjectNameMigrator.class);
+	private static final Configuration conf = SettingsServlet.getConfig();
+
+	/** The nodes changed recently are likely to be changed again, they are migrated later */
+	private static final int QUIET_PERIOD = 3600;
+
+	private final ScheduledExecutorService scheduler;
+	private final int batchSize;
+	private final int removeDelay = conf.getInt("meta.cache.ttl", 300)+60;
+	/** The last node checked on each shard; the skipped nodes are retried once the shard is walked through */
+	private final Map<String, Long> lastNodeIds = new HashMap<String, Long>();
+
+	/**
+	 * @param scheduler Runs the delayed removals of the old objects
+	 * @param batchSize Max number of nodes migrated per shard and run
+	 */
+	public ObjectNameMigrator(ScheduledExecutorService scheduler, int batchSize) {
+		this.scheduler = scheduler;
+		this.batchSize = batchSize;
+	}
+
+	private static class LegacyNode {
+		long nodeId;
+		long containerId;
+		int revision;
+		String identity;
+		NodePath path;
+		/** The object name the node data is copied to */
+		String objectName;
+	}
+
+	@Override
+	public void run() {
+		if(!ObjectNames.isEnabled())
+			return;
+		for(String shard: DbPoolServlet.getShards()) {
+			if(Thread.currentThread().isInterrupted())
+				return;
+			migrate(shard);
+		}
+	}
+
+	private void migrate(final String shard) {
+		final long fromNodeId = lastNodeIds.containsKey(shard)?lastNodeIds.get(shard):0;
+		List<LegacyNode> nodes = DbPoolServlet.goShardSql(shard, "Getting nodes to migrate to object names",
+				"select nodes.node_id, nodes.container_id, nodes.rev, containers.container_name, nodes.path, "+
+				"(select MIN(identity) from user_identities where user_identities.user_id = containers.user_id) identity from nodes "+
+				"JOIN containers ON nodes.container_id = containers.container_id "+
+				"WHERE nodes.node_id > ? and nodes.current_rev = 1 and nodes.deleted = 0 and nodes.type <> 'CONTAINER_NODE' and nodes.object_name IS NULL "+
+				"and nodes.mtime < (NOW() - INTERVAL "+QUIET_PERIOD+" SECOND) "+
+				"and NOT EXISTS (select 1 from chunked_uploads where chunked_uploads.node_id = nodes.node_id) "+
+				"order by nodes.node_id limit "+batchSize,
+				new PrimaryReader<List<LegacyNode>>() {
+					@Override
+					public List<LegacyNode> go(Connection conn, PreparedStatement stmt) throws SQLException {
+						stmt.setLong(1, fromNodeId);
+						List<LegacyNode> result = new ArrayList<LegacyNode>();
+						ResultSet rs = stmt.executeQuery();
+						while(rs.next()) {
+							LegacyNode node = new LegacyNode();
+							node.nodeId = rs.getLong("node_id");
+							node.containerId = rs.getLong("container_id");
+							node.revision = rs.getInt("rev");
+							node.identity = rs.getString("identity");
+							node.path = new NodePath(rs.getString("container_name")+"/"+rs.getString("path"));
+							result.add(node);
+						}
+						return result;
+					}
+				}
+		);
+		if(null == nodes)
+			return;
+		if(nodes.isEmpty()) {
+			lastNodeIds.remove(shard);
+			return;
+		}
+		lastNodeIds.put(shard, nodes.get(nodes.size()-1).nodeId);
+
+		Map<String, StorageManager> storages = new HashMap<String, StorageManager>();
+		// owner -> changed containers
+		Map<String, Map<String, NodePath>> changed = new LinkedHashMap<String, Map<String, NodePath>>();
+		int migrated = 0;
+		for(final LegacyNode node: nodes) {
+			if(Thread.currentThread().isInterrupted())
+				break;
+			if(null == node.identity)
+				continue;
+			try {
+				if(!storages.containsKey(node.identity))
+					storages.put(node.identity, StorageManagerFactory.getStorageManager(node.identity));
+				final StorageManager storage = storages.get(node.identity);
+
+				final String objectName = UUID.randomUUID().toString();
+				node.objectName = objectName;
+				final NodePath objectPath = ObjectNames.objectPath(node.path, objectName);
+				storage.copyBytes(node.path, objectPath, true);
+
+				Integer updated = DbPoolServlet.goShardSql(shard, "Setting the node object name",
+						"update nodes set object_name = ? WHERE node_id = ? and rev = ? and current_rev = 1 and object_name IS NULL",
+						new SqlWorker<Integer>() {
+							@Override
+							public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
+								stmt.setString(1, objectName);
+								stmt.setLong(2, node.nodeId);
+								stmt.setInt(3, node.revision);
+								return stmt.executeUpdate();
+							}
+						}
+				);
+				if(null == updated || updated == 0) { // the node was changed or removed meanwhile
+					storage.remove(objectPath, false);
+					continue;
+				}
+				migrated++;
+
+				MetaCache.invalidate(node.identity, node.path);
+				if(!changed.containsKey(node.identity))
+					changed.put(node.identity, new LinkedHashMap<String, NodePath>());
+				changed.get(node.identity).put(node.path.getContainerName(), new NodePath(node.path.getContainerName()));
+
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						removeOldObject(shard, node, storage);
+					}
+				}, removeDelay, SECONDS);
+			} catch(Exception ex) {
+				logger.error("Error migrating the node "+node.path.getNodeStoragePath()+" of user "+node.identity+" to object names: "+ex.getMessage());
+			}
+		}
+
+		publishChanges(changed);
+		logger.info("Migrated "+migrated+" nodes to object names on the "+shard+" shard");
+	}
+
+	/**
+	 * Removes the object named by the node path, unless it holds the data of a node stored under its path:
+	 * the migrated node changed meanwhile or a new node at the same path.
+	 * If a write of the old object set the node back to it, the unused copy is removed instead.
+	 */
+	private void removeOldObject(String shard, final LegacyNode node, StorageManager storage) {
+		final String path = node.path.getNodeRelativeStoragePath();
+		long[] used = DbPoolServlet.goShardSql(shard, "Checking the old node object",
+				"select (select count(*) from nodes WHERE container_id = ? and object_name = ?), "+
+				"(select count(*) from nodes WHERE container_id = ? and current_rev = 1 and "+
+				"((node_id = ? and rev <> ?) or (object_name IS NULL and (path = ? or path LIKE ?))))",
+				new PrimaryReader<long[]>() {
+					@Override
+					public long[] go(Connection conn, PreparedStatement stmt) throws SQLException {
+						stmt.setLong(1, node.containerId);
+						stmt.setString(2, node.objectName);
+						stmt.setLong(3, node.containerId);
+						stmt.setLong(4, node.nodeId);
+						stmt.setInt(5, node.revision);
+						stmt.setString(6, path);
+						stmt.setString(7, path.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_")+"/%");
+						ResultSet rs = stmt.executeQuery();
+						rs.next();
+						return new long[]{rs.getLong(1), rs.getLong(2)};
+					}
+				}
+		);
+		if(null == used)
+			return;
+		NodePath unused;
+		if(used[0] == 0)
+			unused = ObjectNames.objectPath(node.path, node.objectName);
+		else if(used[1] == 0)
+			unused = node.path;
+		else
+			return;
+		try {
+			storage.remove(unused, false);
+		} catch(Exception ex) {
+			logger.error("Error removing the migrated object "+unused.getNodeStoragePath()+" of user "+node.identity+": "+ex.getMessage());
+		}
+	}
+
+	/**
+	 * Drops the changed containers from the metadata caches of all the servers
+	 */
+	private static void publishChanges(final Map<String, Map<String, NodePath>> changed) {
+		if(changed.isEmpty())
+			return;
+		QueueConnector.goAMQP("objectNamesMigrated", new QueueConnector.AMQPWorker<Boolean>() {
+			@Override
+			public Boolean go(com.rabbitmq.client.Connection conn, com.rabbitmq.client.Channel channel) throws IOException {
+
+				channel.exchangeDeclare(conf.getString("vospace.exchange.nodechanged"), "fanout", false);
+
+				for(String owner: changed.keySet()) {
+					for(NodePath container: changed.get(owner).values()) {
+						try {
+							Map<String,Object> nodeData = new HashMap<String,Object>();
+							nodeData.put("uri", new VospaceId(container).toString());
+							nodeData.put("owner", owner);
+			    			nodeData.put("container", container.getParentPath().getNodeStoragePath());
+
+			    			byte[] jobSer = (new ObjectMapper()).writeValueAsBytes(nodeData);
+			    			channel.basicPublish(conf.getString("vospace.exchange.nodechanged"), "", null, jobSer);
+						} catch (URISyntaxException e) {
+							logger.error("Error in container URI: "+e.getMessage());
+						}
+					}
+				}
+		    	return true;
+			}
+		});
+	}
+}
@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.meta;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
+
+/**
+ * Typed index of the node property values kept in the node_property_index table.
+ * A value is indexed by its first STRING_PREFIX characters and, when it parses as one, as a number and as a UTC timestamp,
+ * so the property searches are range scans of the (user_id, property_id, value) keys.
+ * The index rows are removed together with the node by the foreign key.
+ */
+public class PropertyIndex {
+
+	private static final Logger logger = Logger.getLogger(PropertyIndex.class);
+
+	static final int STRING_PREFIX = 255;
+	private static final String[] TIME_FORMATS = {"yyyy-MM-dd'T'HH:mm:ss.SSS", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd"};
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+	/** Plain decimal numbers: Double.parseDouble also takes "12d", hex floats and "NaN" */
+	private static final Pattern NUMBER = Pattern.compile("[-+]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][-+]?\\d+)?");
+	private static final int BACKFILL_BATCH = 500;
+
+	private PropertyIndex() {}
+
+	static String toStringPrefix(String value) {
+		return (value.length() > STRING_PREFIX)?value.substring(0, STRING_PREFIX):value;
+	}
+
+	/**
+	 * Returns the value as a number, null if it is not one
+	 */
+	static Double toNumber(String value) {
+		String trimmed = value.trim();
+		if(!NUMBER.matcher(trimmed).matches())
+			return null;
+		try {
+			double number = Double.parseDouble(trimmed);
+			if(Double.isNaN(number) || Double.isInfinite(number))
+				return null;
+			return number;
+		} catch(NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the ISO 8601 (FITS DATE-OBS style) value as a UTC timestamp, null if it is not one
+	 */
+	static Date toTime(String value) {
+		String trimmed = value.trim();
+		if(trimmed.endsWith("Z"))
+			trimmed = trimmed.substring(0, trimmed.length()-1);
+		for(String format: TIME_FORMATS) {
+			SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.ROOT);
+			dateFormat.setLenient(false);
+			dateFormat.setTimeZone(UTC);
+			ParsePosition pos = new ParsePosition(0);
+			Date date = dateFormat.parse(trimmed, pos);
+			if(null != date && pos.getIndex() == trimmed.length())
+				return date;
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces the indexed values of the node with the given id
+	 * @param values property_id to the value, null removes the property
+	 */
+	static void indexNode(Connection conn, long userId, long nodeId, Map<Long, String> values) throws SQLException {
+		write(conn, userId, values, "nodes.node_id = ?", nodeId);
+	}
+
+	/**
+	 * Replaces the indexed values of the node identified by container and path
+	 * @param values property_id to the value, null removes the property
+	 */
+	static void indexPath(Connection conn, long userId, long containerId, String path, Map<Long, String> values) throws SQLException {
+		write(conn, userId, values, "nodes.current_rev = 1 and nodes.container_id = ? and nodes.path_hash = UNHEX(MD5(?)) and nodes.path = ?",
+				containerId, path, path);
+	}
+
+	private static void write(Connection conn, long userId, Map<Long, String> values, String nodeCondition, Object... nodeParams) throws SQLException {
+		List<Long> removed = new ArrayList<Long>(), indexed = new ArrayList<Long>();
+		for(Long propertyId: values.keySet()) {
+			if(null == values.get(propertyId))
+				removed.add(propertyId);
+			else
+				indexed.add(propertyId);
+		}
+
+		PreparedStatement stmt = null;
+		try {
+			if(!removed.isEmpty()) {
+				stmt = conn.prepareStatement("DELETE node_property_index FROM node_property_index JOIN nodes ON node_property_index.node_id = nodes.node_id "+
+						"WHERE "+nodeCondition+" AND node_property_index.property_id IN ("+MySQLMetaStore2.placeholders("?", removed.size())+")");
+				int param = 1;
+				for(Object nodeParam: nodeParams)
+					stmt.setObject(param++, nodeParam);
+				for(Long propertyId: removed)
+					stmt.setLong(param++, propertyId);
+				stmt.executeUpdate();
+				DbPoolServlet.close(stmt);
+			}
+
+			if(!indexed.isEmpty()) {
+				StringBuilder valuesTable = new StringBuilder();
+				for(int i = 0; i < indexed.size(); i++)
+					valuesTable.append((i == 0)?"SELECT ? property_id, ? value_string, ? value_number, ? value_time":" UNION ALL SELECT ?, ?, ?, ?");
+
+				stmt = conn.prepareStatement("INSERT INTO node_property_index (node_id, property_id, user_id, value_string, value_number, value_time) "+
+						"SELECT nodes.node_id, v.property_id, ?, v.value_string, v.value_number, v.value_time FROM nodes JOIN ("+valuesTable+") v WHERE "+nodeCondition+
+						" ON DUPLICATE KEY UPDATE value_string = VALUES(value_string), value_number = VALUES(value_number), value_time = VALUES(value_time)");
+				int param = 1;
+				stmt.setLong(param++, userId);
+				for(Long propertyId: indexed) {
+					String value = values.get(propertyId);
+					stmt.setLong(param++, propertyId);
+					stmt.setString(param++, toStringPrefix(value));
+					Double number = toNumber(value);
+					if(null == number)
+						stmt.setNull(param++, Types.DOUBLE);
+					else
+						stmt.setDouble(param++, number);
+					Date time = toTime(value);
+					if(null == time)
+						stmt.setNull(param++, Types.TIMESTAMP);
+					else
+						stmt.setTimestamp(param++, new Timestamp(time.getTime()));
+				}
+				for(Object nodeParam: nodeParams)
+					stmt.setObject(param++, nodeParam);
+				stmt.executeUpdate();
+			}
+		} finally {
+			DbPoolServlet.close(stmt);
+		}
+	}
+
+	/**
+	 * Returns the index column the predicate value is compared with: the number if the value parses as one,
+	 * then the timestamp, then the string prefix
+	 */
+	static String column(PropertyPredicate predicate) {
+		if(predicate.getOperator() != PropertyPredicate.Operator.PREFIX) {
+			if(null != toNumber(predicate.getValue()))
+				return "value_number";
+			if(null != toTime(predicate.getValue()))
+				return "value_time";
+		}
+		return "value_string";
+	}
+
+	/**
+	 * Returns the SQL condition matching the predicate on the index rows aliased as alias, adding its parameters to params.
+	 * The value is compared in the {@link #column} of the predicate.
+	 */
+	static String condition(String alias, PropertyPredicate predicate, List<Object> params) {
+		String value = predicate.getValue();
+		String operator = predicate.getOperator().getSymbol();
+		if(predicate.getOperator() == PropertyPredicate.Operator.PREFIX) {
+			params.add(escapeLike(toStringPrefix(value))+"%");
+			return alias+".value_string LIKE ?";
+		}
+
+		String column = column(predicate);
+		if(column.equals("value_number")) {
+			params.add(toNumber(value));
+			return alias+".value_number "+operator+" ?";
+		}
+
+		if(column.equals("value_time")) {
+			params.add(new Timestamp(toTime(value).getTime()));
+			return alias+".value_time "+operator+" ?";
+		}
+
+		params.add(toStringPrefix(value));
+		String condition = alias+".value_string "+operator+" ?";
+		// the longer values are only indexed by the prefix
+		if(predicate.getOperator() == PropertyPredicate.Operator.EQ && value.length() > STRING_PREFIX) {
+			params.add(value);
+			condition += " AND EXISTS (SELECT 1 FROM node_properties WHERE node_properties.node_id = "+alias+".node_id "+
+					"AND node_properties.property_id = "+alias+".property_id AND node_properties.property_value = ?)";
+		}
+		return condition;
+	}
+
+	/**
+	 * Returns the column value of the result row as a search cursor key, read back by {@link #parseSortKey}
+	 */
+	static String sortKey(ResultSet rs, String column, String label) throws SQLException {
+		if(column.equals("value_number"))
+			return Double.toString(rs.getDouble(label));
+		if(column.equals("value_time"))
+			return Long.toString(rs.getTimestamp(label).getTime());
+		return rs.getString(label);
+	}
+
+	/**
+	 * Returns the column value of the search cursor key
+	 * @throws NumberFormatException If the key is not a value of the column
+	 */
+	static Object parseSortKey(String column, String key) {
+		if(column.equals("value_number"))
+			return Double.valueOf(key);
+		if(column.equals("value_time"))
+			return new Timestamp(Long.parseLong(key));
+		return key;
+	}
+
+	/**
+	 * Indexes the properties stored before the index was introduced on all the shards. Properties already indexed are skipped.
+	 */
+	public static void backfill() {
+		for(String shard: DbPoolServlet.getShards())
+			backfill(shard);
+	}
+
+	private static void backfill(String shard) {
+		long[] last = new long[]{0, 0};
+		int indexed = 0;
+		while(!Thread.currentThread().isInterrupted()) {
+			final long fromNodeId = last[0], fromPropertyId = last[1];
+			long[] batchLast = DbPoolServlet.goShardSql(shard, "Backfilling the properties index",
+					"select node_properties.node_id, node_properties.property_id, node_properties.property_value, containers.user_id from node_properties "+
+					"JOIN nodes ON node_properties.node_id = nodes.node_id "+
+					"JOIN containers ON nodes.container_id = containers.container_id "+
+					"LEFT JOIN node_property_index ON node_properties.node_id = node_property_index.node_id AND node_properties.property_id = node_property_index.property_id "+
+					"WHERE (node_properties.node_id > ? OR (node_properties.node_id = ? AND node_properties.property_id > ?)) AND node_property_index.node_id IS NULL "+
+					"order by node_properties.node_id, node_properties.property_id limit "+BACKFILL_BATCH,
+					new SqlWorker<long[]>() {
+						@Override
+						public long[] go(Connection conn, PreparedStatement stmt) throws SQLException {
+							stmt.setLong(1, fromNodeId);
+							stmt.setLong(2, fromNodeId);
+							stmt.setLong(3, fromPropertyId);
+							Map<Long, Map<Long, String>> nodes = new LinkedHashMap<Long, Map<Long, String>>();
+							Map<Long, Long> owners = new LinkedHashMap<Long, Long>();
+							long[] lastRow = null;
+							ResultSet rs = stmt.executeQuery();
+							while(rs.next()) {
+								long nodeId = rs.getLong("node_id");
+								if(!nodes.containsKey(nodeId)) {
+									nodes.put(nodeId, new LinkedHashMap<Long, String>());
+									owners.put(nodeId, rs.getLong("user_id"));
+								}
+								nodes.get(nodeId).put(rs.getLong("property_id"), rs.getString("property_value"));
+								lastRow = new long[]{nodeId, rs.getLong("property_id")};
+							}
+
+							for(Long nodeId: nodes.keySet())
+								indexNode(conn, owners.get(nodeId), nodeId, nodes.get(nodeId));
+							return lastRow;
+						}
+
+						@Override
+						public void error(String context, SQLException e) {
+							logger.error(context+": "+e.getMessage());
+						}
+					}
+			);
+			if(null == batchLast)
+				break;
+			indexed += BACKFILL_BATCH;
+			last = batchLast;
+		}
+		logger.info("Properties index backfill finished on the "+shard+" shard, about "+indexed+" values indexed");
+	}
+
+	private static String escapeLike(String str) {
+		return str.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+}
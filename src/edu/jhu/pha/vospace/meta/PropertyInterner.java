@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.meta;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.PrimaryReader;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
+import edu.jhu.pha.vospace.api.exceptions.InternalServerErrorException;
+
+/**
+ * Process-wide property_uri to property_id table. Loaded with all the known properties at startup,
+ * unknown properties are added to the DB and interned on first use.
+ * Read-only properties are interned too, but are never returned as writable.
+ * The properties are interned in the default shard database and copied to the other shards with the same ids,
+ * so the ids are valid on all the shards.
+ */
+public class PropertyInterner {
+
+	private static final Logger logger = Logger.getLogger(PropertyInterner.class);
+
+	/**
+	 * property_uri -> property_id, negative for the read-only properties. property_uri is compared
+	 * case-insensitively by the DB, so a property can be interned under several spellings.
+	 */
+	private static final ConcurrentHashMap<String, Long> ids = new ConcurrentHashMap<String, Long>();
+
+	private PropertyInterner() {}
+
+	/**
+	 * Loads all the properties from the DB
+	 */
+	public static void load() {
+		final List<Object[]> loaded = new ArrayList<Object[]>();
+		DbPoolServlet.goSql("Loading properties",
+				"select property_id, property_uri, property_readonly from properties",
+				new PrimaryReader<Boolean>() {
+					@Override
+					public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+						loaded.addAll(read(stmt.executeQuery(), false));
+						return true;
+					}
+				}
+		);
+		copyToShards(loaded);
+		logger.debug("Loaded "+ids.size()+" properties");
+	}
+
+	/**
+	 * Returns the ids of the writable properties, adding the unknown properties to the DB.
+	 * The read-only properties are left out of the result.
+	 * A property stored with another case is returned under the requested URI.
+	 */
+	public static Map<String, Long> getWritableIds(Collection<String> uris) {
+		final List<String> missing = new ArrayList<String>();
+		for(String uri: uris) {
+			if(!ids.containsKey(uri))
+				missing.add(uri);
+		}
+
+		if(!missing.isEmpty()) {
+			final List<Object[]> added = new ArrayList<Object[]>();
+			Boolean interned = DbPoolServlet.goSql("Interning properties", null,
+					new SqlWorker<Boolean>() {
+						@Override
+						public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+							stmt = conn.prepareStatement("INSERT IGNORE INTO properties (property_uri) VALUES "+MySQLMetaStore2.placeholders("(?)", missing.size()));
+							try {
+								int param = 1;
+								for(String uri: missing)
+									stmt.setString(param++, uri);
+								stmt.executeUpdate();
+							} finally {
+								DbPoolServlet.close(stmt);
+							}
+
+							// the rows are matched to the requested URIs by the DB, ignoring the case like the unique key
+							StringBuilder requested = new StringBuilder();
+							for(int i = 0; i < missing.size(); i++)
+								requested.append((i == 0)?"SELECT ? requested_uri":" UNION ALL SELECT ?");
+							stmt = conn.prepareStatement("select r.requested_uri, property_id, property_uri, property_readonly from properties "+
+									"JOIN ("+requested+") r ON properties.property_uri = r.requested_uri");
+							try {
+								int param = 1;
+								for(String uri: missing)
+									stmt.setString(param++, uri);
+								added.addAll(read(stmt.executeQuery(), true));
+							} finally {
+								DbPoolServlet.close(stmt);
+							}
+							return true;
+						}
+					}
+			);
+			if(null == interned || !copyToShards(added))
+				throw new InternalServerErrorException("Error storing the properties");
+		}
+
+		Map<String, Long> result = new HashMap<String, Long>();
+		for(String uri: uris) {
+			Long id = ids.get(uri);
+			if(null != id && id > 0)
+				result.put(uri, id);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the id of the property, read-only or not, null if the property is not known
+	 */
+	public static Long getId(final String uri) {
+		if(!ids.containsKey(uri)) {
+			// could be added by another server
+			DbPoolServlet.goSql("Reading property",
+					"select ? requested_uri, property_id, property_uri, property_readonly from properties where property_uri = ?",
+					new PrimaryReader<Boolean>() {
+						@Override
+						public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+							stmt.setString(1, uri);
+							stmt.setString(2, uri);
+							read(stmt.executeQuery(), true);
+							return true;
+						}
+					}
+			);
+		}
+		Long id = ids.get(uri);
+		return (null == id)?null:Math.abs(id);
+	}
+
+	/**
+	 * Interns the read properties
+	 * @param requested The rows have the requested_uri column, the property is interned under it too
+	 * @return The read (property_id, property_uri, property_readonly) rows
+	 */
+	private static List<Object[]> read(ResultSet rs, boolean requested) throws SQLException {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		while(rs.next()) {
+			long id = rs.getLong("property_id");
+			Long value = rs.getBoolean("property_readonly")?-id:id;
+			ids.put(rs.getString("property_uri"), value);
+			if(requested)
+				ids.put(rs.getString("requested_uri"), value);
+			rows.add(new Object[]{id, rs.getString("property_uri"), rs.getBoolean("property_readonly")});
+		}
+		return rows;
+	}
+
+	/**
+	 * Adds the properties to the shards other than the default one, keeping the ids
+	 * @return false if failed
+	 */
+	private static boolean copyToShards(final List<Object[]> rows) {
+		if(rows.isEmpty())
+			return true;
+		boolean copied = true;
+		for(String shard: DbPoolServlet.getShards()) {
+			if(shard.equals(DbPoolServlet.DEFAULT_SHARD))
+				continue;
+			Boolean result = DbPoolServlet.goShardSql(shard, "Copying properties to the shard",
+					"INSERT IGNORE INTO properties (property_id, property_uri, property_readonly) VALUES "+MySQLMetaStore2.placeholders("(?, ?, ?)", rows.size()),
+					new SqlWorker<Boolean>() {
+						@Override
+						public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+							int param = 1;
+							for(Object[] row: rows) {
+								stmt.setLong(param++, (Long)row[0]);
+								stmt.setString(param++, (String)row[1]);
+								stmt.setBoolean(param++, (Boolean)row[2]);
+							}
+							stmt.executeUpdate();
+							return true;
+						}
+					}
+			);
+			copied &= null != result;
+		}
+		return copied;
+	}
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.meta;
+
+/**
+ * A condition on a node property for {@link MetaStore#searchProperties}: the property URI, the operator and the value.
+ * The value is compared as a number, as a timestamp or as a string, whichever it parses as first.
+ */
+public class PropertyPredicate {
+
+	public enum Operator {
+		EQ("="), LT("<"), LE("<="), GT(">"), GE(">="), PREFIX("^=");
+
+		private final String symbol;
+
+		Operator(String symbol) {
+			this.symbol = symbol;
+		}
+
+		public String getSymbol() {
+			return symbol;
+		}
+
+		static Operator fromSymbol(String symbol) {
+			for(Operator op: values()) {
+				if(op.symbol.equals(symbol))
+					return op;
+			}
+			return null;
+		}
+	}
+
+	private final String uri;
+	private final Operator operator;
+	private final String value;
+
+	public PropertyPredicate(String uri, Operator operator, String value) {
+		this.uri = uri;
+		this.operator = operator;
+		this.value = value;
+	}
+
+	/**
+	 * Parses the "uri op value" predicate, op being one of = &lt; &lt;= &gt; &gt;= ^= (string prefix)
+	 * @return the predicate, null if it is malformed
+	 */
+	public static PropertyPredicate parse(String predicate) {
+		if(null == predicate)
+			return null;
+		String[] parts = predicate.trim().split("\\s+", 3);
+		if(parts.length < 3)
+			return null;
+		Operator operator = Operator.fromSymbol(parts[1]);
+		if(null == operator)
+			return null;
+		return new PropertyPredicate(parts[0], operator, parts[2]);
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	public Operator getOperator() {
+		return operator;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return uri+" "+operator.getSymbol()+" "+value;
+	}
+}
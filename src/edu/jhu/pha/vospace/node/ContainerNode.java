@@ -21,8 +21,6 @@ import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.net.URISyntaxException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -46,6 +44,7 @@ import edu.jhu.pha.vospace.api.exceptions.InternalServerErrorException;
 import edu.jhu.pha.vospace.api.exceptions.NotFoundException;
 import edu.jhu.pha.vospace.meta.MetaStoreDistributed;
 import edu.jhu.pha.vospace.meta.NodesList;
+import edu.jhu.pha.vospace.meta.PropertyPredicate;
 
 
 public class ContainerNode extends DataNode {
@@ -67,6 +66,14 @@ public class ContainerNode extends DataNode {
 	
 	@Override
 	public void copy(VospaceId newLocationId, boolean keepBytes) {
+		copy(newLocationId, keepBytes, null);
+	}
+
+	/**
+	 * Copies or moves the container with all its descendants
+	 * @param listener Receives the progress of the subtree copy, can be null
+	 */
+	public void copy(final VospaceId newLocationId, final boolean keepBytes, SubtreeCopier.ProgressListener listener) {
 		if(!isStoredMetadata())
 			throw new NotFoundException("NodeNotFound");
 		
@@ -78,52 +85,44 @@ public class ContainerNode extends DataNode {
 			throw new ForbiddenException("Forbidden to copy into itself");
 		}
 
-		Node newDataNode = NodeFactory.createNode(newLocationId, owner, this.getType());
-		newDataNode.setNode(null);
-		newDataNode.getStorage().updateNodeInfo(newLocationId.getNodePath(), newDataNode.getNodeInfo());
-		newDataNode.getMetastore().storeInfo(newLocationId, newDataNode.getNodeInfo());
-		newDataNode.getMetastore().updateUserProperties(newLocationId, getNodeMeta(PropertyType.property));
-		
-		NodesList childrenList = getDirectChildren(false, 0, -1);
-		List<Node> children = childrenList.getNodesList();
+		try {
+			// the subtree stored under immutable object names is moved within its container by changing the paths only
+			if(!keepBytes && getMetastore().moveTree(getUri(), newLocationId))
+				return;
 
-		for(Node child: children) {
-			Node childNode = NodeFactory.getNode(child.getUri(), owner);
-			String relativePath = childNode.getUri().getNodePath().getParentRelativePath(this.getUri().getNodePath());
-			try {
-				VospaceId newChildId = newLocationId.appendPath(new NodePath(relativePath));
-				logger.debug("Copying child "+childNode.getUri()+" with relpath "+relativePath+" to "+newChildId.toString());
-				childNode.copy(newChildId, keepBytes);
-			} catch (URISyntaxException e) {
-				logger.error("Error copying child "+childNode.getUri().toString()+": "+e.getMessage());
-			}
-		}
+			Node newDataNode = NodeFactory.createNode(newLocationId, owner, this.getType());
+			newDataNode.setNode(null);
+			newDataNode.getMetastore().updateUserProperties(newLocationId, getNodeMeta(PropertyType.property));
 
-		if(!keepBytes) {
-			getMetastore().remove(this.getUri());
-			
-			if(this.getUri().getNodePath().getNodeStoragePathArray().length == 1) { // moving first-level container to another one
-				getStorage().remove(this.getUri().getNodePath(), false);
-			}
-		}
-		
-		QueueConnector.goAMQP("movedNode", new QueueConnector.AMQPWorker<Boolean>() {
-			@Override
-			public Boolean go(com.rabbitmq.client.Connection conn, com.rabbitmq.client.Channel channel) throws IOException {
+			new SubtreeCopier(this, newLocationId, keepBytes, listener).copy();
 
-				channel.exchangeDeclare(conf.getString("vospace.exchange.nodechanged"), "fanout", false);
-
-				Map<String,Object> nodeData = new HashMap<String,Object>();
-				nodeData.put("uri", getUri().toString());
-				nodeData.put("owner",getOwner());
-    			nodeData.put("container", getUri().getNodePath().getParentPath().getNodeStoragePath());
+			if(!keepBytes) {
+				getMetastore().remove(this.getUri());
 
-    			byte[] jobSer = (new ObjectMapper()).writeValueAsBytes(nodeData);
-    			channel.basicPublish(conf.getString("vospace.exchange.nodechanged"), "", null, jobSer);
-		    	
-		    	return true;
+				if(this.getUri().getNodePath().getNodeStoragePathArray().length == 1) { // moving first-level container to another one
+					getStorage().remove(this.getUri().getNodePath(), false);
+				}
 			}
-		});
+		} finally {
+			QueueConnector.goAMQP("movedNode", new QueueConnector.AMQPWorker<Boolean>() {
+				@Override
+				public Boolean go(com.rabbitmq.client.Connection conn, com.rabbitmq.client.Channel channel) throws IOException {
+	
+					channel.exchangeDeclare(conf.getString("vospace.exchange.nodechanged"), "fanout", false);
+	
+					for(VospaceId changedId: new VospaceId[]{newLocationId, getUri()}) {
+						Map<String,Object> nodeData = new HashMap<String,Object>();
+						nodeData.put("uri", changedId.toString());
+						nodeData.put("owner",getOwner());
+		    			nodeData.put("container", changedId.getNodePath().getParentPath().getNodeStoragePath());
+	
+		    			byte[] jobSer = (new ObjectMapper()).writeValueAsBytes(nodeData);
+		    			channel.basicPublish(conf.getString("vospace.exchange.nodechanged"), "", null, jobSer);
+					}
+			    	return true;
+				}
+			});
+		}
 	}
 
     @Override
@@ -132,6 +131,26 @@ public class ContainerNode extends DataNode {
     }
     
 	public Object export(String format, Detail detail, int start, int count, boolean includeDeleted) {
+		NodesList childrenList = null;
+		if(detail == Detail.max && (format.equals("json-dropbox") || format.equals("json-dropbox-object")))
+			childrenList = getDirectChildren(includeDeleted, start, count);
+		return export(format, detail, childrenList, false, includeDeleted);
+	}
+
+	/**
+	 * Exports the container with a page of its children starting after the cursor
+	 * @param cursor The cursor returned with the previous page, null or empty for the first page
+	 * @param count Page size
+	 * @param includeCount Add the total number of children to the listing
+	 */
+	public Object export(String format, Detail detail, String cursor, int count, boolean includeCount, boolean includeDeleted) {
+		NodesList childrenList = null;
+		if(detail == Detail.max && (format.equals("json-dropbox") || format.equals("json-dropbox-object")))
+			childrenList = getDirectChildren(includeDeleted, cursor, count, includeCount);
+		return export(format, detail, childrenList, true, includeDeleted);
+	}
+
+	private Object export(String format, Detail detail, NodesList childrenList, boolean paged, boolean includeDeleted) {
 		if(format.equals("json-dropbox") || format.equals("json-dropbox-object")){
 
 	    	TokenBuffer g = new TokenBuffer(null);
@@ -152,10 +171,15 @@ public class ContainerNode extends DataNode {
 				g.writeStringField("root", (getUri().getNodePath().isEnableAppContainer()?"sandbox":"dropbox"));
 
 				if(detail == Detail.max) {
-					NodesList childrenList = getDirectChildren(includeDeleted, start, count);
 					List<Node> childNodesList = childrenList.getNodesList();
 
-					g.writeNumberField("items", childrenList.getNodesCount());
+					if(childrenList.getNodesCount() >= 0)
+						g.writeNumberField("items", childrenList.getNodesCount());
+					if(paged) {
+						g.writeBooleanField("has_more", null != childrenList.getCursor());
+						if(null != childrenList.getCursor())
+							g.writeStringField("cursor", childrenList.getCursor());
+					}
 
 					// contents array
 					g.writeArrayFieldStart("contents");
@@ -171,26 +195,10 @@ public class ContainerNode extends DataNode {
 				//g.writeEndObject(); // not finished yet, add the hash, will close automatically
 	        	
 	        	if(detail == Detail.max){
-			    	ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-					JsonGenerator g2 = f.createJsonGenerator(byteOut);
-					g.serialize(g2);
-					g2.close();
-					byteOut.close();
-
-					byte[] nodeContent = byteOut.toByteArray();
-	        		
-	        		MessageDigest md = MessageDigest.getInstance("MD5");
-	        		byte[] thedigest = md.digest(nodeContent);
-
-	        		g.writeBinaryField("hash",thedigest);
-
-	        		// long way of adding hash, with proper object closing:
-					/*JsonNode rootNode = objMapper.readTree(g.asParser(f.getCodec()));
-					((ObjectNode)rootNode).put("hash",thedigest);
-					
-					g.close();
-					g = new TokenBuffer(null);
-					g.writeTree(rootNode);*/
+	        		// the version changes with the node and its children metadata, so it is the listing hash
+	        		String versionTag = getMetastore().getVersionTag(getUri());
+	        		if(null != versionTag)
+	        			g.writeStringField("hash", versionTag);
 	        	}
 
 			} catch (JsonGenerationException e) {
@@ -199,9 +207,6 @@ public class ContainerNode extends DataNode {
 			} catch (IOException e) {
 				e.printStackTrace();
 				throw new InternalServerErrorException("Error generationg JSON: "+e.getMessage());
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-				throw new InternalServerErrorException("Error generating MD5 hash: "+e.getMessage());
 			} finally {
 				try {
 					g.close();
@@ -308,6 +313,18 @@ public class ContainerNode extends DataNode {
 		return getMetastore().getNodeChildren(getUri(), false, includeDeleted, start, count);
     }
 
+    /**
+     * Retrieves a page of node's children starting after the cursor
+     * @param includeDeleted Include the nodes marked as deleted in the database
+     * @param cursor The cursor returned with the previous page, null or empty for the first page
+     * @param count Page size
+     * @param includeCount Count the total number of children
+     * @return
+     */
+    public NodesList getDirectChildren(boolean includeDeleted, String cursor, int count, boolean includeCount) {
+		return getMetastore().getNodeChildren(getUri(), includeDeleted, cursor, count, includeCount);
+    }
+
     /**
      * Retrieves information about the nodes sync regions from metadata
      * @return Empty list if no regions or list of sync regions
@@ -337,13 +354,8 @@ public class ContainerNode extends DataNode {
 		if(!isStoredMetadata())
 			throw new NotFoundException("NodeNotFound");
 
-		NodesList childrenList = getDirectChildren(false, 0, -1);
-		List<Node> children = childrenList.getNodesList();
-		for(Node child: children) {
-			child.markRemoved(isRemoved);
-		}
-
-		getMetastore().markRemoved(getUri(), isRemoved);
+		// the whole subtree is changed at once and announced with a single event for the subtree root
+		getMetastore().markRemovedTree(getUri(), isRemoved);
 		QueueConnector.goAMQP("mark removed Container", new QueueConnector.AMQPWorker<Boolean>() {
 			@Override
 			public Boolean go(com.rabbitmq.client.Connection conn, com.rabbitmq.client.Channel channel) throws IOException {
@@ -366,6 +378,17 @@ public class ContainerNode extends DataNode {
 	public List<VospaceId> search(String query, int fileLimit, boolean includeDeleted) {
 		return getMetastore().search(getUri(), query, fileLimit, includeDeleted);
     }
+
+	/**
+	 * Finds a page of the descendants having the properties matching all the predicates
+	 * @param predicates
+	 * @param cursor The cursor returned with the previous page, null or empty for the first page
+	 * @param count Page size
+	 * @return
+	 */
+	public NodesList searchProperties(List<PropertyPredicate> predicates, String cursor, int count) {
+		return getMetastore().searchProperties(getUri(), predicates, cursor, count);
+	}
 	
 	/**
 	 * Upload a new file to the container
@@ -375,11 +398,12 @@ public class ContainerNode extends DataNode {
 	public void setData(String filename, InputStream data) {
 		try {
 			VospaceId newNodeUri = getUri().appendPath(new NodePath(filename));
-			getStorage().putBytes(newNodeUri.getNodePath(), data);
+			// the metadata is stored first to assign the object name of the new node
 			if(!getMetastore().isStored(newNodeUri)){
 				DataNode node = NodeFactory.<DataNode>createNode(newNodeUri, owner, NodeType.DATA_NODE);
 				node.setNode(null);
 			}
+			getStorage().putBytes(NodeFactory.getNode(newNodeUri, owner).getObjectPath(), data);
 		} catch (URISyntaxException e) {
 			throw new InternalServerErrorException("InvalidURI");
 		}
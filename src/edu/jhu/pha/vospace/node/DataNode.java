@@ -133,10 +133,10 @@ public class DataNode extends Node implements Cloneable {
 		logger.debug("Updating node "+getUri().toString());
 
 		// put the node data into storage
-		getStorage().putBytes(getUri().getNodePath(), data);
+		getStorage().putBytes(getObjectPath(), data);
 		
 		// update node size from storage to metadata
-		getStorage().updateNodeInfo(getUri().getNodePath(), getNodeInfo());
+		getStorage().updateNodeInfo(getObjectPath(), getNodeInfo());
 		
 		getNodeInfo().setRevision(getNodeInfo().getRevision()+1);//increase revision version to store in DB
 		
@@ -201,13 +201,12 @@ public class DataNode extends Node implements Cloneable {
 		VoSyncMetaStore vosyncMeta = new VoSyncMetaStore(this.owner);
 
 		// put the node data into storage
-		getStorage().putChunkedBytes(getUri().getNodePath(), uploadId);
+		getStorage().putChunkedBytes(getObjectPath(), uploadId);
 
-		vosyncMeta.deleteNodeChunks(this.getUri());
-		vosyncMeta.mapChunkedToNode(this.getUri(), uploadId);
+		vosyncMeta.remapNodeChunks(this.getUri(), uploadId);
 		
 		// update node size from storage to metadata
-		getStorage().updateNodeInfo(getUri().getNodePath(), getNodeInfo());
+		getStorage().updateNodeInfo(getObjectPath(), getNodeInfo());
 		
 		getNodeInfo().setRevision(getNodeInfo().getRevision()+1);//increase revision version to store in DB
 		
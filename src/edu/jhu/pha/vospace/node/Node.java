@@ -44,6 +44,7 @@ import edu.jhu.pha.vospace.api.exceptions.NotFoundException;
 import edu.jhu.pha.vospace.meta.MetaStore;
 import edu.jhu.pha.vospace.meta.MetaStoreFactory;
 import edu.jhu.pha.vospace.meta.NodesList;
+import edu.jhu.pha.vospace.storage.ObjectNames;
 import edu.jhu.pha.vospace.storage.StorageManager;
 import edu.jhu.pha.vospace.storage.StorageManagerFactory;
 import edu.jhu.pha.vosync.meta.VoSyncMetaStore;
@@ -101,37 +102,35 @@ public abstract class Node implements Cloneable {
 		if(getMetastore().isStored(newLocationId))
 			throw new ForbiddenException("DestinationNodeExists");
 
-		getStorage().copyBytes(getUri().getNodePath(), newLocationId.getNodePath(), keepBytes);
-
-		if(!keepBytes) {
-    		// update node's container size metadata
-    		try {
-    			ContainerNode contNode = (ContainerNode)NodeFactory.getNode(
-    					new VospaceId(new NodePath(getUri().getNodePath().getContainerName())), 
-    					getOwner());
-    			getStorage().updateNodeInfo(contNode.getUri().getNodePath(), contNode.getNodeInfo());
-    			getMetastore().storeInfo(contNode.getUri(), contNode.getNodeInfo());
-    		} catch (URISyntaxException e) {
-    			logger.error("Updating root node size failed: "+e.getMessage());
-    		}
-		}
-
-		
 		final Node newDataNode = NodeFactory.createNode(newLocationId, owner, this.getType());
-		newDataNode.setNode(null);
-		newDataNode.getStorage().updateNodeInfo(newLocationId.getNodePath(), newDataNode.getNodeInfo());
-		newDataNode.getMetastore().storeInfo(newLocationId, newDataNode.getNodeInfo());
-		newDataNode.getMetastore().updateUserProperties(newLocationId, getNodeMeta(PropertyType.property));
-
-		// Update chunks table to point to the new node if the node is chunked
-		// copy with keepBytes=true is prohibited for chunked files by swift storage
-		if(null != this.getNodeInfo().getChunkedName()) {
-			VoSyncMetaStore vosyncMeta = new VoSyncMetaStore(this.owner);
-			vosyncMeta.mapChunkedToNode(newDataNode.getUri(), this.getNodeInfo().getChunkedName());
+
+		// a node stored under an immutable object name is moved within its container by changing the path only
+		if(keepBytes || !getMetastore().moveTree(getUri(), newLocationId)) {
+			// the new node object name is assigned with its metadata
+			newDataNode.setNode(null);
+			try {
+				getStorage().copyBytes(getObjectPath(), newDataNode.getObjectPath(), keepBytes);
+			} catch(RuntimeException ex) {
+				newDataNode.getMetastore().remove(newLocationId);
+				throw ex;
+			}
+
+			// server-side copy keeps the object size and type, the containers usage is updated with the new node info
+			newDataNode.getNodeInfo().setSize(getNodeInfo().getSize());
+			newDataNode.getNodeInfo().setContentType(getNodeInfo().getContentType());
+			newDataNode.getMetastore().storeInfo(newLocationId, newDataNode.getNodeInfo());
+			newDataNode.getMetastore().updateUserProperties(newLocationId, getNodeMeta(PropertyType.property));
+	
+			// Update chunks table to point to the new node if the node is chunked
+			// copy with keepBytes=true is prohibited for chunked files by swift storage
+			if(null != this.getNodeInfo().getChunkedName()) {
+				VoSyncMetaStore vosyncMeta = new VoSyncMetaStore(this.owner);
+				vosyncMeta.mapChunkedToNode(newDataNode.getUri(), this.getNodeInfo().getChunkedName());
+			}
+			
+			if(!keepBytes)
+				newDataNode.getMetastore().remove(this.getUri());
 		}
-		
-		if(!keepBytes)
-			newDataNode.getMetastore().remove(this.getUri());
 
 		QueueConnector.goAMQP("copyNode", new QueueConnector.AMQPWorker<Boolean>() {
 			@Override
@@ -184,7 +183,37 @@ public abstract class Node implements Cloneable {
 	public abstract Object export(String format, Detail detail, boolean includeDeleted);
 	
 	public InputStream exportData() {
-		return getStorage().getBytes(this.getUri().getNodePath());
+		return getStorage().getBytes(getObjectPath());
+	}
+
+	/**
+	 * Returns the range of the node data, reading only the requested bytes from the storage
+	 */
+	public InputStream exportData(long offset, long length) {
+		return getStorage().getBytes(getObjectPath(), offset, length);
+	}
+
+	/**
+	 * Returns the storage location of the node data: the object named by the node immutable object name
+	 * or, for the nodes stored before the object names were enabled, by the node path
+	 */
+	public NodePath getObjectPath() {
+		if(getUri().getNodePath().getNodeRelativeStoragePath().isEmpty())
+			return getUri().getNodePath();
+		return ObjectNames.objectPath(getUri().getNodePath(), getNodeInfo().getObjectName());
+	}
+
+	/**
+	 * Removes the storage objects of the node and its descendants
+	 * @param removeChunks Remove the segments of the chunked uploads too
+	 */
+	public void removeData(boolean removeChunks) {
+		// the first-level container is removed with all its objects
+		if(!getUri().getNodePath().getNodeRelativeStoragePath().isEmpty()) {
+			for(String objectName: getMetastore().getObjectNames(getUri()))
+				getStorage().remove(ObjectNames.objectPath(getUri().getNodePath(), objectName), removeChunks);
+		}
+		getStorage().remove(getUri().getNodePath(), removeChunks);
 	}
 	
 	public MetaStore getMetastore() {
@@ -420,6 +449,13 @@ public abstract class Node implements Cloneable {
 	public void setNodeInfo(NodeInfo nodeInfo) {
 		this.nodeInfo = nodeInfo;
 	}
+
+	/**
+	 * Sets the node properties when they were loaded together with the node
+	 */
+	public void setNodeProperties(Map<String, String> properties) {
+		this.properties = properties;
+	}
 	
 	/**
 	 * Set the uri of the node
@@ -15,6 +15,8 @@
  ******************************************************************************/
 package edu.jhu.pha.vospace.node;
 
+import java.util.List;
+
 import edu.jhu.pha.vospace.api.exceptions.InternalServerErrorException;
 import edu.jhu.pha.vospace.api.exceptions.NotFoundException;
 import edu.jhu.pha.vospace.meta.MetaStore;
@@ -36,12 +38,46 @@ public class NodeFactory {
 		return node;
 	}
 	
+	/**
+	 * Loads the node with its metadata, or returns the node already loaded by the current request
+	 * (see {@link NodeIdentityMap})
+	 */
 	public static <T extends Node> T getNode(VospaceId uri, String username) {
-		MetaStore metastore = MetaStoreFactory.getMetaStore(username);
 		if(null == uri)
 			throw new NotFoundException("NodeNotFound");
-		NodeType type = metastore.getType(uri);
-		return createNode(uri, username, type);
+		Node node = NodeIdentityMap.get(username, uri);
+		if(null == node) {
+			MetaStore metastore = MetaStoreFactory.getMetaStore(username);
+			node = metastore.getNode(uri);
+			NodeIdentityMap.put(username, node);
+		}
+		@SuppressWarnings("unchecked")
+		T typedNode = (T)node;
+		return typedNode;
+	}
+
+	/**
+	 * Returns the storage location of the node data, the node path for a node not stored yet
+	 */
+	public static NodePath getObjectPath(VospaceId uri, String username) {
+		if(!MetaStoreFactory.getMetaStore(username).isStored(uri))
+			return uri.getNodePath();
+		return getNode(uri, username).getObjectPath();
+	}
+
+	/**
+	 * Loads the nodes with their metadata in bulk, skipping the ones not found
+	 */
+	public static List<Node> getNodes(List<VospaceId> uris, String username) {
+		return getNodes(uris, username, false);
+	}
+
+	/**
+	 * Loads the nodes with their metadata and optionally properties in bulk, skipping the ones not found
+	 */
+	public static List<Node> getNodes(List<VospaceId> uris, String username, boolean includeProperties) {
+		MetaStore metastore = MetaStoreFactory.getMetaStore(username);
+		return metastore.getNodes(uris, includeProperties);
 	}
 	
 }
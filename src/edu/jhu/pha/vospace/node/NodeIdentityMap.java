@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.node;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Request-scoped identity map of the loaded nodes: within a request {@link NodeFactory#getNode} loads a node once
+ * and returns the same object for the following lookups, e.g. of the node parent or first-level container.
+ * The map is bound to the request thread by {@link edu.jhu.pha.vospace.rest.NodeIdentityMapFilter};
+ * outside of the REST requests every lookup loads the node.
+ * The metadata writes of the request drop the written nodes (and their subtrees) from the map,
+ * together with the local {@link edu.jhu.pha.vospace.meta.MetaCache} invalidation.
+ */
+public class NodeIdentityMap {
+
+	private static final ThreadLocal<Map<String, Node>> requestNodes = new ThreadLocal<Map<String, Node>>();
+
+	private NodeIdentityMap() {}
+
+	/**
+	 * Starts a new empty map for the current request, dropping the one of a previous request on the thread
+	 */
+	public static void begin() {
+		requestNodes.set(new HashMap<String, Node>());
+	}
+
+	/**
+	 * Drops the map of the current request
+	 */
+	public static void end() {
+		requestNodes.remove();
+	}
+
+	/**
+	 * @return The node loaded by the current request, or null if it has to be loaded
+	 */
+	static Node get(String owner, VospaceId uri) {
+		Map<String, Node> nodes = requestNodes.get();
+		if(null == nodes)
+			return null;
+		Node node = nodes.get(key(owner, uri.getNodePath()));
+		// the same node seen through the app folder has another outer path
+		if(null == node || node.getUri().getNodePath().isEnableAppContainer() != uri.getNodePath().isEnableAppContainer())
+			return null;
+		return node;
+	}
+
+	static void put(String owner, Node node) {
+		Map<String, Node> nodes = requestNodes.get();
+		if(null != nodes)
+			nodes.put(key(owner, node.getUri().getNodePath()), node);
+	}
+
+	/**
+	 * Drops the node from the map of the current request
+	 */
+	public static void invalidate(String owner, NodePath path) {
+		Map<String, Node> nodes = requestNodes.get();
+		if(null != nodes)
+			nodes.remove(key(owner, path));
+	}
+
+	/**
+	 * Drops the node and its descendants from the map of the current request
+	 */
+	public static void invalidateTree(String owner, NodePath path) {
+		Map<String, Node> nodes = requestNodes.get();
+		if(null == nodes)
+			return;
+		String key = key(owner, path);
+		Iterator<String> keys = nodes.keySet().iterator();
+		while(keys.hasNext()) {
+			String nodeKey = keys.next();
+			if(nodeKey.equals(key) || nodeKey.startsWith(key+'/'))
+				keys.remove();
+		}
+	}
+
+	/**
+	 * Drops all the nodes from the map of the current request
+	 */
+	public static void invalidateAll() {
+		Map<String, Node> nodes = requestNodes.get();
+		if(null != nodes)
+			nodes.clear();
+	}
+
+	private static String key(String owner, NodePath path) {
+		return owner+'\0'+path.getNodeStoragePath();
+	}
+}
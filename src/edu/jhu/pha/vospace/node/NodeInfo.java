@@ -25,6 +25,23 @@ public class NodeInfo {
 	private long size;
 	private String contentType;
 	private String chunkedName;
+	private String objectName;
+
+	public NodeInfo() {
+	}
+
+	/**
+	 * Copy constructor
+	 */
+	public NodeInfo(NodeInfo info) {
+		this.revision = info.revision;
+		this.isDeleted = info.isDeleted;
+		this.mtime = (null == info.mtime)?null:new Date(info.mtime.getTime());
+		this.size = info.size;
+		this.contentType = info.contentType;
+		this.chunkedName = info.chunkedName;
+		this.objectName = info.objectName;
+	}
 
 	public String getContentType() {
 		return contentType;
@@ -62,4 +79,14 @@ public class NodeInfo {
 	public void setChunkedName(String chunkedName) {
 		this.chunkedName = chunkedName;
 	}
+	/**
+	 * The immutable name of the storage object holding the node data,
+	 * null if the data is stored in the object named by the node path
+	 */
+	public String getObjectName() {
+		return objectName;
+	}
+	public void setObjectName(String objectName) {
+		this.objectName = objectName;
+	}
 }
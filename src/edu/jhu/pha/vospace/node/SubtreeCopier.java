@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.node;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.rabbitmq.client.MessageProperties;
+
+import edu.jhu.pha.vospace.QueueConnector;
+import edu.jhu.pha.vospace.SettingsServlet;
+import edu.jhu.pha.vospace.api.exceptions.InternalServerErrorException;
+import edu.jhu.pha.vospace.node.Node.PropertyType;
+import edu.jhu.pha.vospace.storage.ObjectNames;
+import edu.jhu.pha.vospace.storage.StorageManager;
+import edu.jhu.pha.vospace.storage.StorageManagerFactory;
+import edu.jhu.pha.vosync.meta.VoSyncMetaStore;
+
+/**
+ * Copies or moves the descendants of a container node into an already created destination container.
+ * The subtree is loaded with a single query, the storage objects are copied server-side
+ * with bounded concurrency and the new nodes metadata is stored with batch statements.
+ */
+public class SubtreeCopier {
+
+	private static final Logger logger = Logger.getLogger(SubtreeCopier.class);
+	static Configuration conf = SettingsServlet.getConfig();
+
+	/**
+	 * Receives the copy progress, can be called concurrently from the copying threads
+	 */
+	public interface ProgressListener {
+		public void progress(int copied, int total);
+	}
+
+	private final ContainerNode source;
+	private final VospaceId destination;
+	private final boolean keepBytes;
+	private final ProgressListener listener;
+
+	private final AtomicInteger copied = new AtomicInteger();
+	private int total;
+
+	/** Storage clients are not shared between the copying threads */
+	private final ThreadLocal<StorageManager> storage = new ThreadLocal<StorageManager>() {
+		@Override
+		protected StorageManager initialValue() {
+			return StorageManagerFactory.getStorageManager(source.getOwner());
+		}
+	};
+
+	public SubtreeCopier(ContainerNode source, VospaceId destination, boolean keepBytes, ProgressListener listener) {
+		this.source = source;
+		this.destination = destination;
+		this.keepBytes = keepBytes;
+		this.listener = listener;
+	}
+
+	/**
+	 * Copies the subtree. If some of the nodes fail to copy, the rest is still copied and stored,
+	 * the failed nodes are left in place and the first error is thrown.
+	 * @return The new nodes
+	 */
+	public List<Node> copy() {
+		NodePath sourcePath = source.getUri().getNodePath();
+
+		// source node -> new node, parents before children
+		final Map<Node, Node> newNodes = new LinkedHashMap<Node, Node>();
+		Set<String> copiedContainers = new HashSet<String>();
+		copiedContainers.add(sourcePath.getNodeStoragePath());
+
+		for(Node node: source.getMetastore().getSubtree(source.getUri())) {
+			NodePath path = node.getUri().getNodePath();
+			if(!copiedContainers.contains(path.getParentPath().getNodeStoragePath())) // the parent is removed
+				continue;
+			try {
+				VospaceId newId = destination.appendPath(new NodePath(path.getParentRelativePath(sourcePath)));
+				Node newNode = NodeFactory.createNode(newId, source.getOwner(), node.getType());
+
+				NodeInfo info = new NodeInfo();
+				info.setSize(node.getNodeInfo().getSize());
+				info.setContentType(node.getNodeInfo().getContentType());
+				if(node.getType() != NodeType.CONTAINER_NODE)
+					info.setObjectName(ObjectNames.newName());
+				newNode.setNodeInfo(info);
+				newNode.setNodeProperties(new HashMap<String, String>(node.getNodeMeta(PropertyType.property)));
+
+				newNodes.put(node, newNode);
+				if(node.getType() == NodeType.CONTAINER_NODE)
+					copiedContainers.add(path.getNodeStoragePath());
+			} catch (URISyntaxException e) {
+				logger.error("Error copying child "+node.getUri().toString()+": "+e.getMessage());
+			}
+		}
+
+		total = newNodes.size();
+		RuntimeException failure = null;
+
+		Map<Node, Future<Boolean>> copies = new LinkedHashMap<Node, Future<Boolean>>();
+		ExecutorService executor = Executors.newFixedThreadPool(conf.getInt("copy.threads", 8));
+		try {
+			for(final Map.Entry<Node, Node> entry: newNodes.entrySet()) {
+				if(entry.getKey().getType() == NodeType.CONTAINER_NODE) { // no storage objects for the nested containers
+					progress();
+					continue;
+				}
+				copies.put(entry.getKey(), executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						logger.debug("Copying child "+entry.getKey().getUri()+" to "+entry.getValue().getUri());
+						storage.get().copyBytes(entry.getKey().getObjectPath(), entry.getValue().getObjectPath(), keepBytes);
+						progress();
+						return true;
+					}
+				}));
+			}
+
+			for(Map.Entry<Node, Future<Boolean>> copy: copies.entrySet()) {
+				try {
+					copy.getValue().get();
+				} catch(ExecutionException ex) {
+					logger.error("Error copying child "+copy.getKey().getUri().toString()+": "+ex.getCause().getMessage());
+					newNodes.remove(copy.getKey());
+					if(null == failure)
+						failure = (ex.getCause() instanceof RuntimeException)?(RuntimeException)ex.getCause():new InternalServerErrorException(ex.getCause());
+				} catch(InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					executor.shutdownNow();
+					throw new InternalServerErrorException("Copy interrupted");
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		source.getMetastore().storeNodes(new ArrayList<Node>(newNodes.values()));
+
+		// copy with keepBytes=true is prohibited for chunked files by swift storage
+		Map<VospaceId, String> chunked = new HashMap<VospaceId, String>();
+		for(Map.Entry<Node, Node> entry: newNodes.entrySet()) {
+			if(null != entry.getKey().getNodeInfo().getChunkedName())
+				chunked.put(entry.getValue().getUri(), entry.getKey().getNodeInfo().getChunkedName());
+		}
+		new VoSyncMetaStore(source.getOwner()).mapChunkedToNodes(chunked);
+
+		// on failure the source subtree stays, only the moved nodes are removed from it
+		if(!keepBytes && null != failure) {
+			for(Node node: newNodes.keySet()) {
+				if(node.getType() != NodeType.CONTAINER_NODE)
+					source.getMetastore().remove(node.getUri());
+			}
+		}
+
+		final List<Node> result = new ArrayList<Node>(newNodes.values());
+		QueueConnector.goAMQP("copySubtree", new QueueConnector.AMQPWorker<Boolean>() {
+			@Override
+			public Boolean go(com.rabbitmq.client.Connection conn, com.rabbitmq.client.Channel channel) throws IOException {
+
+				channel.exchangeDeclare(conf.getString("process.exchange.nodeprocess"), "fanout", true);
+
+				for(Node newNode: result) {
+					if(newNode.getType() == NodeType.CONTAINER_NODE)
+						continue;
+
+					Map<String,Object> nodeData = new HashMap<String,Object>();
+					nodeData.put("uri", newNode.getUri().toString());
+					nodeData.put("owner", source.getOwner());
+	    			nodeData.put("container", newNode.getUri().getNodePath().getParentPath().getNodeStoragePath());
+
+	    			byte[] jobSer = (new ObjectMapper()).writeValueAsBytes(nodeData);
+					channel.basicPublish(conf.getString("process.exchange.nodeprocess"), "", MessageProperties.PERSISTENT_TEXT_PLAIN, jobSer);
+				}
+		    	return true;
+			}
+		});
+
+		if(null != failure)
+			throw failure;
+
+		return result;
+	}
+
+	private void progress() {
+		int done = copied.incrementAndGet();
+		if(null != listener)
+			listener.progress(done, total);
+	}
+}
@@ -40,6 +40,8 @@ import org.openid4java.message.ParameterList;
 import org.openid4java.message.ax.FetchRequest;
 
 import edu.jhu.pha.vospace.BaseServlet;
+import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.Workload;
 import edu.jhu.pha.vospace.SettingsServlet;
 import edu.jhu.pha.vospace.api.exceptions.PermissionDeniedException;
 
@@ -60,12 +62,17 @@ public class AuthorizationServlet extends BaseServlet {
     /** Handle GET & POST the same way, because OpenID response may be a URL redirection (GET)
      *  or a form submission (POST). */
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        handle(req, resp);
+        Workload workload = DbPoolServlet.setWorkload(Workload.AUTH);
+        try {
+            handle(req, resp);
+        } finally {
+            DbPoolServlet.setWorkload(workload);
+        }
     }
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        handle(req, resp);
+        doGet(req, resp);
     }
 
     @Override public String getErrorPage() { return "index.jsp"; }
@@ -65,6 +65,9 @@ import com.sun.jersey.oauth.signature.OAuthSignatureException;
 import com.sun.jersey.spi.container.ContainerRequest;
 import com.sun.jersey.spi.container.ContainerRequestFilter;
 
+import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.Workload;
+
 /** OAuth request filter that filters all requests indicating in the Authorization
  * header they use OAuth. Checks if the incoming requests are properly authenticated
  * and populates the security context with the corresponding user principal and roles.
@@ -151,6 +154,8 @@ public class MyOAuthServerFilter implements ContainerRequestFilter {
 
     @Override
     public ContainerRequest filter(ContainerRequest request) {
+        DbPoolServlet.beginRequest(null);
+
         // do not filter requests that do not use OAuth authentication
 
         String authHeader = request.getHeaderValue(OAuthParameters.AUTHORIZATION_HEADER);
@@ -165,6 +170,8 @@ public class MyOAuthServerFilter implements ContainerRequestFilter {
 
         OAuthSecurityContext sc = null;
 
+        // the nonces and tokens lookups don't wait for the connections behind the slow requests
+        Workload workload = DbPoolServlet.setWorkload(Workload.AUTH);
         try {
             sc = getSecurityContext(request);
         } catch (OAuthException e) {
@@ -173,8 +180,12 @@ public class MyOAuthServerFilter implements ContainerRequestFilter {
             } else {
                 throw new WebApplicationException(e.toResponse());
             }
+        } finally {
+            DbPoolServlet.setWorkload(workload);
         }
         request.setSecurityContext(sc);
+        // the nonce write is not read back, only the user writes make the reads sticky
+        DbPoolServlet.beginRequest((null == sc.getUserPrincipal())?null:sc.getUserPrincipal().getName());
         return request;
     }
 
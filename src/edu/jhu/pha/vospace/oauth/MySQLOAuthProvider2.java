@@ -37,6 +37,8 @@ import com.sun.jersey.oauth.server.OAuthException;
 import com.sun.jersey.oauth.server.spi.OAuthConsumer;
 
 import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.PrimaryReader;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlReader;
 import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
 import edu.jhu.pha.vospace.node.Node;
 import edu.jhu.pha.vospace.node.NodeFactory;
@@ -66,11 +68,9 @@ public class MySQLOAuthProvider2 {
         		"select request_token, token_secret, consumer_key, callback_url, identity, container_name, accessor_write_permission "+
         				"from oauth_accessors "+
         				"join oauth_consumers on oauth_consumers.consumer_id = oauth_accessors.consumer_id "+
-        				"left outer join containers on containers.container_id = oauth_accessors.container_id "+
-        				"left outer join users on users.user_id = containers.user_id "+
-        				"left outer join user_identities on users.user_id = user_identities.user_id "+
+        				"left outer join user_identities on oauth_accessors.user_id = user_identities.user_id "+
         				"where request_token = ? limit 1",
-                new SqlWorker<Token>() {
+                new PrimaryReader<Token>() {
                     @Override
                     public Token go(Connection conn, PreparedStatement stmt) throws SQLException {
                         Token token = null;
@@ -99,16 +99,23 @@ public class MySQLOAuthProvider2 {
 
 	
     public static synchronized Token getAccessToken(final String tokenStr) {
+    	Token tokenObj = readAccessToken(tokenStr);
+    	if(null == tokenObj) { // a just issued token can be not replicated yet
+    		DbPoolServlet.stickToPrimary();
+    		tokenObj = readAccessToken(tokenStr);
+    	}
+    	return tokenObj;
+    }
+
+    private static Token readAccessToken(final String tokenStr) {
     	Token tokenObj = DbPoolServlet.goSql("Get oauth token",
-        		"select access_token, token_secret, consumer_key, callback_url, identity, container_name, accessor_write_permission, share_id "+
+        		"select access_token, token_secret, consumer_key, callback_url, identity, oauth_accessors.container_name, accessor_write_permission, share_id "+
         				"from oauth_accessors "+
         				"join oauth_consumers on oauth_consumers.consumer_id = oauth_accessors.consumer_id "+
-        				"left outer join containers on containers.container_id = oauth_accessors.container_id "+
         				"left outer join container_shares on oauth_accessors.share_key = container_shares.share_key "+
-        				"left outer join users on users.user_id = containers.user_id "+
-        				"left outer join user_identities on users.user_id = user_identities.user_id "+
+        				"left outer join user_identities on oauth_accessors.user_id = user_identities.user_id "+
         				"where access_token = ? limit 1",
-                new SqlWorker<Token>() {
+                new SqlReader<Token>() {
                     @Override
                     public Token go(Connection conn, PreparedStatement stmt) throws SQLException {
                         Token token = null;
@@ -155,7 +162,7 @@ public class MySQLOAuthProvider2 {
     public static synchronized OAuthConsumer getConsumer(final String consumer_key) {
     	return DbPoolServlet.goSql("Get oauth consumer",
         		"select callback_url, consumer_key, consumer_secret, consumer_description, container from oauth_consumers where consumer_key = ?",
-                new SqlWorker<Consumer>() {
+                new SqlReader<Consumer>() {
                     @Override
                     public Consumer go(Connection conn, PreparedStatement stmt) throws SQLException {
                         Consumer consumer = null;
@@ -185,7 +192,7 @@ public class MySQLOAuthProvider2 {
     public static synchronized List<String> getShareUsers(final String shareId) {
         return DbPoolServlet.goSql("Get share user logins",
         		"select identity from user_identities JOIN user_groups ON user_groups.user_id = user_identities.user_id JOIN container_shares ON user_groups.group_id = container_shares.group_id AND container_shares.share_id = ?",
-                new SqlWorker<List<String>>() {
+                new SqlReader<List<String>>() {
                     @Override
                     public List<String> go(Connection conn, PreparedStatement stmt) throws SQLException {
             			stmt.setString(1, shareId);
@@ -234,8 +241,8 @@ public class MySQLOAuthProvider2 {
 	        );
         } else {
 	        DbPoolServlet.goSql("Insert new request token",
-	        		"insert into oauth_accessors (request_token, token_secret, consumer_id, container_id, created, accessor_write_permission, share_key) "+
-	        				"select ?, ?, consumer_id , container_id, ?, share_write_permission, share_key "+
+	        		"insert into oauth_accessors (request_token, token_secret, consumer_id, user_id, container_name, created, accessor_write_permission, share_key) "+
+	        				"select ?, ?, consumer_id , user_id, container_name, ?, share_write_permission, share_key "+
 	        				"from oauth_consumers, container_shares "+
 	        				"where consumer_key = ? and share_id = ?",
 	                new SqlWorker<Boolean>() {
@@ -322,7 +329,7 @@ public class MySQLOAuthProvider2 {
 				}
 
 		        DbPoolServlet.goSql("Mark oauth token as authorized",
-		        		"update oauth_accessors set container_id = (select container_id from containers join user_identities on containers.user_id = user_identities.user_id where identity = ? and container_name = ?), authorized = 1 where request_token = ?;",
+		        		"update oauth_accessors set user_id = (select user_id from user_identities where identity = ?), container_name = ?, authorized = 1 where request_token = ?;",
 		                new SqlWorker<Integer>() {
 		                    @Override
 		                    public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
@@ -35,7 +35,10 @@ import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
 
 import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.PrimaryReader;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlReader;
 import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
+import edu.jhu.pha.vospace.ShardMap;
 import edu.jhu.pha.vospace.api.AccountInfo;
 import edu.jhu.pha.vospace.api.exceptions.InternalServerErrorException;
 import edu.jhu.pha.vospace.api.exceptions.PermissionDeniedException;
@@ -45,7 +48,6 @@ import edu.jhu.pha.vospace.node.NodeFactory;
 import edu.jhu.pha.vospace.node.NodePath;
 import edu.jhu.pha.vospace.node.NodeType;
 import edu.jhu.pha.vospace.node.VospaceId;
-import edu.jhu.pha.vospace.storage.StorageManager;
 import edu.jhu.pha.vospace.storage.StorageManagerFactory;
 import edu.jhu.pha.vospace.storage.SwiftJsonCredentials;
 
@@ -134,7 +136,7 @@ public class UserHelper {
     public static Blob getCertificate(final String username) {
         return DbPoolServlet.goSql("retrieving certificate for " + username,
                 "select certificate from users JOIN user_identities ON users.user_id = user_identities.user_id where identity = ?",
-                new SqlWorker<Blob>() {
+                new SqlReader<Blob>() {
                     @Override
                     public Blob go(Connection conn, PreparedStatement stmt) throws SQLException {
                         stmt.setString(1, username);
@@ -149,7 +151,7 @@ public class UserHelper {
 	public static SwiftJsonCredentials getDataStoreCredentials(final String username) {
         return DbPoolServlet.goSql("Retrieving credentials for " + username,
                 "select storage_credentials from users JOIN user_identities ON users.user_id = user_identities.user_id where identity = ?;",
-                new SqlWorker<SwiftJsonCredentials>() {
+                new SqlReader<SwiftJsonCredentials>() {
                     @Override
                     public SwiftJsonCredentials go(Connection conn, PreparedStatement stmt) throws SQLException {
                         stmt.setString(1, username);
@@ -177,7 +179,7 @@ public class UserHelper {
 	public static JsonNode getProcessorCredentials(final String username) {
         return DbPoolServlet.goSql("Retrieving processor credentials for " + username,
                 "select service_credentials from users JOIN user_identities ON users.user_id = user_identities.user_id where identity = ?;",
-                new SqlWorker<JsonNode>() {
+                new SqlReader<JsonNode>() {
                     @Override
                     public JsonNode go(Connection conn, PreparedStatement stmt) throws SQLException {
                         stmt.setString(1, username);
@@ -260,6 +262,8 @@ public class UserHelper {
                 }
         );
 
+		ShardMap.placeNewUser(username);
+
 		try {
 			VospaceId identifier = new VospaceId(new NodePath("/"));
 			Node node = NodeFactory.createNode(identifier, username, NodeType.CONTAINER_NODE);
@@ -279,8 +283,8 @@ public class UserHelper {
     
 	public static AccountInfo getAccountInfo(final String username) {
 		AccountInfo info = DbPoolServlet.goSql("Getting user \"" + username + "\" limits from DB.",
-                "select hardlimit, softlimit from users JOIN user_identities ON users.user_id = user_identities.user_id WHERE identity = ?;",
-                new SqlWorker<AccountInfo>() {
+                "select hardlimit, softlimit, bytes_used from users JOIN user_identities ON users.user_id = user_identities.user_id WHERE identity = ?;",
+                new SqlReader<AccountInfo>() {
                     @Override
                     public AccountInfo go(Connection conn, PreparedStatement stmt) throws SQLException {
                         stmt.setString(1, username);
@@ -290,6 +294,7 @@ public class UserHelper {
                             info.setUsername(username);
                             info.setHardLimit(rs.getInt("hardlimit"));
                             info.setSoftLimit(rs.getInt("softlimit"));
+                            info.setBytesUsed(rs.getLong("bytes_used"));
                         	return info;
                         } else {
                             throw new IllegalStateException("No result from query.");
@@ -298,9 +303,23 @@ public class UserHelper {
                 }
         );
 
-		StorageManager storage = StorageManagerFactory.getStorageManager(username); 
-		info.setBytesUsed(storage.getBytesUsed());
-		
+		if(null != info && DbPoolServlet.isSharded()) {
+			// the usage is counted on the user shard
+			Long bytesUsed = DbPoolServlet.goUserSql(username, "Getting user \"" + username + "\" usage from DB.",
+	                "select bytes_used from users JOIN user_identities ON users.user_id = user_identities.user_id WHERE identity = ?;",
+	                new SqlReader<Long>() {
+	                    @Override
+	                    public Long go(Connection conn, PreparedStatement stmt) throws SQLException {
+	                        stmt.setString(1, username);
+	                        ResultSet rs = stmt.executeQuery();
+	                        return rs.next()?rs.getLong("bytes_used"):null;
+	                    }
+	                }
+	        );
+			if(null != bytesUsed)
+				info.setBytesUsed(bytesUsed);
+		}
+
 		return info;
 	}
     
@@ -308,7 +327,7 @@ public class UserHelper {
     public static boolean userExists(final String username) {
         return DbPoolServlet.goSql("Checking whether user \"" + username + "\" exists in DB.",
                 "select count(identity) from user_identities where identity = ?;",
-                new SqlWorker<Boolean>() {
+                new PrimaryReader<Boolean>() {
                     @Override
                     public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
                         stmt.setString(1, username);
@@ -332,7 +351,7 @@ public class UserHelper {
     public static boolean updateUserService(final String username, final String processorId, JsonNode updateNode) {
         byte[] curNode = DbPoolServlet.goSql("Retrieving user's service credentials from db",
                 "select service_credentials from users JOIN user_identities ON users.user_id = user_identities.user_id where identity = ?;",
-                new SqlWorker<byte[]>() {
+                new PrimaryReader<byte[]>() {
                     @Override
                     public byte[] go(Connection conn, PreparedStatement stmt) throws SQLException {
                         stmt.setString(1, username);
@@ -378,7 +397,7 @@ public class UserHelper {
 	public static JsonNode getUserServices(final String username) {
         byte[] curNode = DbPoolServlet.goSql("Retrieving user's service credentials from db",
                 "select service_credentials from users JOIN user_identities ON users.user_id = user_identities.user_id where identity = ?;",
-                new SqlWorker<byte[]>() {
+                new PrimaryReader<byte[]>() {
                     @Override
                     public byte[] go(Connection conn, PreparedStatement stmt) throws SQLException {
                         stmt.setString(1, username);
@@ -23,12 +23,14 @@ import javax.servlet.http.HttpServlet;
 
 import org.apache.log4j.Logger;
 
+import edu.jhu.pha.vospace.DbPoolServlet;
+
 public class NodeProcessingServlet extends HttpServlet {
 
 	private static final long serialVersionUID = -2827132663634842769L;
     private static final Logger logger = Logger.getLogger(NodeProcessingServlet.class);
 
-	ExecutorService executor = Executors.newSingleThreadExecutor();
+	ExecutorService executor = Executors.newSingleThreadExecutor(DbPoolServlet.backgroundThreads("nodeProcessor"));
 
     @Override
 	public void init() {
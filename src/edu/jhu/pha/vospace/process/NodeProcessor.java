@@ -54,11 +54,10 @@ import com.rabbitmq.client.QueueingConsumer;
 
 import edu.jhu.pha.vospace.QueueConnector;
 import edu.jhu.pha.vospace.SettingsServlet;
-import edu.jhu.pha.vospace.node.ContainerNode;
+import edu.jhu.pha.vospace.meta.NodeMetaUpdate;
 import edu.jhu.pha.vospace.node.DataNode;
 import edu.jhu.pha.vospace.node.Node;
 import edu.jhu.pha.vospace.node.NodeFactory;
-import edu.jhu.pha.vospace.node.NodePath;
 import edu.jhu.pha.vospace.node.NodeType;
 import edu.jhu.pha.vospace.node.VospaceId;
 import edu.jhu.pha.vospace.oauth.UserHelper;
@@ -99,6 +98,7 @@ public class NodeProcessor implements Runnable {
 				while (!Thread.currentThread().isInterrupted()) {
 
 					Node node = null;
+					NodeMetaUpdate update = null; // the node metadata changes are stored at once at the end of processing
 					
 	            	try {
 				    	QueueingConsumer.Delivery delivery = consumer.nextDelivery();
@@ -109,6 +109,7 @@ public class NodeProcessor implements Runnable {
 						node = NodeFactory.getNode(new VospaceId((String)nodeData.get("uri")), (String)nodeData.get("owner"));
 
 		            	logger.debug("Node changed: "+nodeData.get("uri")+" "+nodeData.get("owner")+" "+node.getType());
+		            	update = new NodeMetaUpdate(node.getUri());
 		            	
 		            	switch(node.getType()) {
 			            	case DATA_NODE: case STRUCTURED_DATA_NODE: case UNSTRUCTURED_DATA_NODE: {
@@ -125,7 +126,7 @@ public class NodeProcessor implements Runnable {
 
 			            			MediaType type = detector.detect(inp, detectTikaMeta);
 				            		node.getNodeInfo().setContentType(type.toString());
-				            		node.getMetastore().storeInfo(node.getUri(), node.getNodeInfo());
+				            		update.setNodeInfo(node.getNodeInfo());
 
 			            			JsonNode credentials = UserHelper.getProcessorCredentials(node.getOwner());
 			            			
@@ -171,7 +172,7 @@ public class NodeProcessor implements Runnable {
 				        				} catch (Exception e) {
 				        					logger.error("Error processing the node. "+e.getMessage());
 				        					e.printStackTrace();
-				                			processError(node, e);
+				                			processError(update, e);
 				        				}
 
 					        			String[] links = nodeTikaMeta.getValues("EXTERNAL_LINKS");
@@ -191,7 +192,7 @@ public class NodeProcessor implements Runnable {
 			        						makeStructured = true;
 			            			}
 
-		            				node.makeNodeStructured(makeStructured);
+		            				update.setStructured(makeStructured);
 			            		
 			            			Map<String, String> properties = new HashMap<String, String>();
 		        			        properties.put(PROCESSING_PROPERTY, "done");
@@ -199,22 +200,11 @@ public class NodeProcessor implements Runnable {
 			        			        properties.put(EXTERNAL_LINK_PROPERTY, StringUtils.join(externalLinks, ' '));
 			            			}
 				            		node.getNodeInfo().setContentType(type.toString());
+				            		update.putProperties(properties);
 
-				            		node.getMetastore().updateUserProperties(node.getUri(), properties);
-				            		node.getMetastore().storeInfo(node.getUri(), node.getNodeInfo());
-
+				            		storeUpdate(node, update);
+				            		update = null;
 				            		logger.debug("Updated node "+node.getUri().toString()+" to "+node.getNodeInfo().getContentType()+" and "+node.getNodeInfo().getSize());
-
-				            		// update node's container size metadata
-				            		try {
-				            			ContainerNode contNode = (ContainerNode)NodeFactory.getNode(
-				            					new VospaceId(new NodePath(node.getUri().getNodePath().getContainerName())), 
-				            					node.getOwner());
-				            			node.getStorage().updateNodeInfo(contNode.getUri().getNodePath(), contNode.getNodeInfo());
-				            			node.getMetastore().storeInfo(contNode.getUri(), contNode.getNodeInfo());
-				            		} catch (URISyntaxException e) {
-				            			logger.error("Updating root node size failed: "+e.getMessage());
-				            		}
 				            		
 				            		try {
 					        			nodeData.put("container", node.getUri().getNodePath().getParentPath().getNodeStoragePath());
@@ -225,14 +215,14 @@ public class NodeProcessor implements Runnable {
 					        		}
 			            		} catch(TikaException ex) {
 			            			logger.error("Error parsing the node "+node.getUri().toString()+": "+ex.getMessage());
-			            			processError(node, ex);
+			            			processError(update, ex);
 			            			ex.printStackTrace();
 			            		} catch(SAXException ex) {
 			            			logger.error("Error SAX parsing the node "+node.getUri().toString()+": "+ex.getMessage());
-			            			processError(node, ex);
+			            			processError(update, ex);
 			            		} catch(IOException ex) {
 			            			logger.error("Error reading the node "+node.getUri().toString()+": "+ex.getMessage());
-			            			processError(node, ex);
+			            			processError(update, ex);
 			            		} finally {
 			            			try {inp.close();} catch(Exception ex2) {};
 			            		}
@@ -274,14 +264,17 @@ public class NodeProcessor implements Runnable {
 		            	
 	            	} catch(InterruptedException ex) {
 	            		logger.error("Sleeping interrupted. "+ex.getMessage());
-            			processError(node, ex);
+            			processError(update, ex);
 	            	} catch (IOException ex) {
 	            		ex.printStackTrace();
 	            		logger.error("Error reading the changed node JSON: "+ex.getMessage());
-            			processError(node, ex);
+            			processError(update, ex);
 					} catch (URISyntaxException ex) {
 	            		logger.error("Error parsing VospaceId from changed node JSON: "+ex.getMessage());
-            			processError(node, ex);
+            			processError(update, ex);
+					} finally {
+						if(null != update)
+							storeUpdate(node, update);
 					}
 	            }
 
@@ -292,18 +285,22 @@ public class NodeProcessor implements Runnable {
 
     }
     
-    private void processError(Node node, Exception ex) {
-    	if(null != node) {
-    		try {
-				Map<String, String> properties = new HashMap<String, String>();
-		        properties.put(PROCESSING_PROPERTY, "error");
-		        properties.put(ERROR_MESSAGE_PROPERTY, ex.getMessage());
-		        node.getMetastore().updateUserProperties(node.getUri(), properties);
-    		} catch(Exception ex2) {
-    			logger.error("Error setting error node props: "+ex2.getMessage());
-    		}
+    private void processError(NodeMetaUpdate update, Exception ex) {
+    	if(null != update) {
+			Map<String, String> properties = new HashMap<String, String>();
+	        properties.put(PROCESSING_PROPERTY, "error");
+	        properties.put(ERROR_MESSAGE_PROPERTY, ex.getMessage());
+	        update.putProperties(properties);
     	}
     }
+
+    private void storeUpdate(Node node, NodeMetaUpdate update) {
+		try {
+			node.getMetastore().storeUpdate(update);
+		} catch(Exception ex) {
+			logger.error("Error storing the node metadata: "+ex.getMessage());
+		}
+    }
     
 }
 
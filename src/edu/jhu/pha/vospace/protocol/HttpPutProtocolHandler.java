@@ -56,7 +56,7 @@ public class HttpPutProtocolHandler implements ProtocolHandler {
 		StorageManager backend = StorageManagerFactory.getStorageManager(job.getUsername());
 
 		HttpClient client = MyHttpConnectionPoolProvider.getHttpClient();
-		InputStream fileInp = backend.getBytes(job.getTargetId().getNodePath());
+		InputStream fileInp = backend.getBytes(NodeFactory.getObjectPath(job.getTargetId(), job.getUsername()));
 
 		HttpPut put = new HttpPut(putFileUrl);
 		
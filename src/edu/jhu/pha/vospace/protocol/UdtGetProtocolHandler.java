@@ -27,6 +27,7 @@ import udt.UDTClient;
 import edu.jhu.pha.vospace.SettingsServlet;
 import edu.jhu.pha.vospace.api.SizeLimitInputStream;
 import edu.jhu.pha.vospace.jobs.JobException;
+import edu.jhu.pha.vospace.node.NodeFactory;
 import edu.jhu.pha.vospace.rest.JobDescription;
 import edu.jhu.pha.vospace.storage.StorageManager;
 import edu.jhu.pha.vospace.storage.StorageManagerFactory;
@@ -84,7 +85,7 @@ public class UdtGetProtocolHandler implements ProtocolHandler {
 			}
 			long size=decode(sizeInfo, 0);
 
-			backend.putBytes(job.getTargetId().getNodePath(), new SizeLimitInputStream(inp, size));
+			backend.putBytes(NodeFactory.getObjectPath(job.getTargetId(), job.getUsername()), new SizeLimitInputStream(inp, size));
 			logger.debug("Got the file");
 		} catch(IOException ex) {
 			ex.printStackTrace();
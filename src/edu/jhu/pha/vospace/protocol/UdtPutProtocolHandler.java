@@ -89,7 +89,7 @@ public class UdtPutProtocolHandler implements ProtocolHandler {
 			
 			long start=System.currentTimeMillis();
 
-			Util.copy(backend.getBytes(job.getTargetId().getNodePath()), outp, size, false);
+			Util.copy(backend.getBytes(NodeFactory.getObjectPath(job.getTargetId(), job.getUsername())), outp, size, false);
 			JobsProcessor.modifyJobState(job, STATE.COMPLETED);
 
 			logger.debug("[SendFile] Finished sending data.");
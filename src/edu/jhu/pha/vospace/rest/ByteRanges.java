@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.commons.io.IOUtils;
+
+import com.sun.jersey.core.header.reader.HttpHeaderReader;
+
+import edu.jhu.pha.vospace.node.Node;
+
+/**
+ * Byte range requests (RFC 7233) of the node data.
+ * Each range is read from the storage with its own ranged request, so the bytes not requested are never read.
+ * The lengths are taken from the node size; a stored object shorter than that fails the read and aborts the response.
+ */
+public class ByteRanges {
+
+	private static final int PARTIAL_CONTENT = 206;
+	private static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
+	/** The requests with more ranges are answered with the whole data */
+	private static final int MAX_RANGES = 50;
+
+	private static class Range {
+		long first, last;
+
+		Range(long first, long last) {
+			this.first = first;
+			this.last = last;
+		}
+
+		long length() {
+			return last-first+1;
+		}
+
+		String contentRange(long size) {
+			return "bytes "+first+"-"+last+"/"+size;
+		}
+	}
+
+	private ByteRanges() {}
+
+	/**
+	 * Builds the response with the node data: the requested ranges or, when the Range header is missing, invalid
+	 * or the If-Range validator doesn't match, the whole data
+	 * @param node The data node
+	 * @param rangeHeader The Range request header
+	 * @param ifRangeHeader The If-Range request header
+	 * @param etag The ETag of the node data, can be null
+	 * @param contentType The data content type, can be null
+	 * @return The response with the entity, Content-Length and Content-Type set
+	 */
+	public static ResponseBuilder dataResponse(final Node node, String rangeHeader, String ifRangeHeader, EntityTag etag, String contentType) {
+		final long size = node.getNodeInfo().getSize();
+
+		List<Range> ranges = null;
+		if(null != rangeHeader && isCurrent(ifRangeHeader, etag, node.getNodeInfo().getMtime()))
+			ranges = parse(rangeHeader, size);
+
+		if(null == ranges) {
+			ResponseBuilder response = Response.ok(node.exportData()).header("Accept-Ranges", "bytes");
+			response.header("Content-Length", Long.toString(size));
+			if(null != contentType)
+				response.type(contentType);
+			return response;
+		}
+
+		if(ranges.isEmpty()) {
+			return Response.status(REQUESTED_RANGE_NOT_SATISFIABLE)
+					.header("Accept-Ranges", "bytes")
+					.header("Content-Range", "bytes */"+size);
+		}
+
+		if(ranges.size() == 1) {
+			Range range = ranges.get(0);
+			ResponseBuilder response = Response.status(PARTIAL_CONTENT).entity(node.exportData(range.first, range.length()));
+			response.header("Accept-Ranges", "bytes");
+			response.header("Content-Range", range.contentRange(size));
+			response.header("Content-Length", Long.toString(range.length()));
+			if(null != contentType)
+				response.type(contentType);
+			return response;
+		}
+
+		final String boundary = UUID.randomUUID().toString().replace("-", "");
+		final List<Range> parts = ranges;
+		final List<byte[]> partHeaders = new ArrayList<byte[]>();
+		final byte[] closing;
+		long length = 0;
+		try {
+			for(Range range: parts) {
+				StringBuilder partHeader = new StringBuilder();
+				partHeader.append("\r\n--").append(boundary).append("\r\n");
+				if(null != contentType)
+					partHeader.append("Content-Type: ").append(contentType).append("\r\n");
+				partHeader.append("Content-Range: ").append(range.contentRange(size)).append("\r\n\r\n");
+				byte[] partHeaderBytes = partHeader.toString().getBytes("UTF-8");
+				partHeaders.add(partHeaderBytes);
+				length += partHeaderBytes.length + range.length();
+			}
+			closing = ("\r\n--"+boundary+"--\r\n").getBytes("UTF-8");
+			length += closing.length;
+		} catch(UnsupportedEncodingException ex) {
+			throw new edu.jhu.pha.vospace.api.exceptions.InternalServerErrorException(ex);
+		}
+
+		StreamingOutput multipart = new StreamingOutput() {
+			@Override
+			public void write(OutputStream output) throws IOException, WebApplicationException {
+				for(int i = 0; i < parts.size(); i++) {
+					output.write(partHeaders.get(i));
+					InputStream partInp = node.exportData(parts.get(i).first, parts.get(i).length());
+					try {
+						IOUtils.copyLarge(partInp, output);
+					} finally {
+						IOUtils.closeQuietly(partInp);
+					}
+				}
+				output.write(closing);
+			}
+		};
+
+		ResponseBuilder response = Response.status(PARTIAL_CONTENT).entity(multipart);
+		response.header("Accept-Ranges", "bytes");
+		response.header("Content-Length", Long.toString(length));
+		response.type("multipart/byteranges; boundary="+boundary);
+		return response;
+	}
+
+	/**
+	 * Checks the If-Range validator: the strong ETag or the exact Last-Modified date of the node
+	 * @return true if the ranges can be served
+	 */
+	private static boolean isCurrent(String ifRangeHeader, EntityTag etag, Date mtime) {
+		if(null == ifRangeHeader || ifRangeHeader.trim().isEmpty())
+			return true;
+		String validator = ifRangeHeader.trim();
+		if(validator.startsWith("\"") || validator.startsWith("W/")) {
+			if(null == etag || etag.isWeak() || validator.startsWith("W/"))
+				return false;
+			return validator.equals("\""+etag.getValue()+"\"");
+		}
+		if(null == mtime)
+			return false;
+		try {
+			return HttpHeaderReader.readDate(validator).getTime() == mtime.getTime()/1000*1000;
+		} catch(java.text.ParseException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Parses the byte ranges, sorted and with the overlapping ones merged
+	 * @return null if the header is to be ignored, empty list if no range is satisfiable
+	 */
+	private static List<Range> parse(String rangeHeader, long size) {
+		String header = rangeHeader.trim();
+		int eq = header.indexOf('=');
+		if(eq < 0 || !header.substring(0, eq).trim().equalsIgnoreCase("bytes"))
+			return null;
+
+		String[] specs = header.substring(eq+1).split(",");
+		if(specs.length > MAX_RANGES)
+			return null;
+
+		List<Range> ranges = new ArrayList<Range>();
+		boolean hasSpecs = false;
+		for(String spec: specs) {
+			spec = spec.trim();
+			if(spec.isEmpty())
+				continue;
+			hasSpecs = true;
+			int dash = spec.indexOf('-');
+			if(dash < 0)
+				return null;
+			String firstStr = spec.substring(0, dash).trim(), lastStr = spec.substring(dash+1).trim();
+			try {
+				if(firstStr.isEmpty()) {
+					// the suffix range
+					long suffix = Long.parseLong(lastStr);
+					if(suffix < 0)
+						return null;
+					if(suffix > 0 && size > 0)
+						ranges.add(new Range(Math.max(0, size-suffix), size-1));
+				} else {
+					long first = Long.parseLong(firstStr);
+					long last = lastStr.isEmpty()?Long.MAX_VALUE:Long.parseLong(lastStr);
+					if(first < 0 || last < first)
+						return null;
+					if(first < size)
+						ranges.add(new Range(first, Math.min(last, size-1)));
+				}
+			} catch(NumberFormatException ex) {
+				return null;
+			}
+		}
+		if(!hasSpecs)
+			return null;
+
+		Collections.sort(ranges, new Comparator<Range>() {
+			@Override
+			public int compare(Range r1, Range r2) {
+				return r1.first < r2.first?-1:(r1.first == r2.first?0:1);
+			}
+		});
+		List<Range> merged = new ArrayList<Range>();
+		for(Range range: ranges) {
+			Range prev = merged.isEmpty()?null:merged.get(merged.size()-1);
+			if(null != prev && range.first <= prev.last+1)
+				prev.last = Math.max(prev.last, range.last);
+			else
+				merged.add(range);
+		}
+		return merged;
+	}
+}
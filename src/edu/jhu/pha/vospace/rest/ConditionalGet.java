@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.rest;
+
+import javax.ws.rs.core.EntityTag;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import edu.jhu.pha.vospace.node.VospaceId;
+
+/**
+ * Strong ETags of the node metadata, listings and data built from the node version.
+ * The version is read with a single primary key lookup, so the conditional GETs are answered with 304
+ * before the node is loaded, its children listed or its data read from the storage.
+ */
+public class ConditionalGet {
+
+	private ConditionalGet() {}
+
+	/**
+	 * Returns the ETag of the node representation
+	 * @param versionTag The {@link edu.jhu.pha.vospace.meta.MetaStore#getVersionTag(VospaceId)} of the node
+	 * @param identifier The node
+	 * @param variant The request parameters changing the representation of the same node version
+	 * @return The ETag, or null if the node is not stored
+	 */
+	public static EntityTag entityTag(String versionTag, VospaceId identifier, Object... variant) {
+		if(null == versionTag)
+			return null;
+		StringBuilder variantStr = new StringBuilder(identifier.getNodePath().isEnableAppContainer()?"sandbox":"dropbox");
+		for(Object param: variant)
+			variantStr.append('\n').append(param);
+		return new EntityTag(versionTag+"-"+DigestUtils.md5Hex(variantStr.toString()).substring(0, 8));
+	}
+}
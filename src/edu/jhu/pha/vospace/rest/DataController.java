@@ -18,6 +18,7 @@ package edu.jhu.pha.vospace.rest;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.Date;
 import java.util.UUID;
 
 import javax.mail.internet.MimeUtility;
@@ -27,7 +28,10 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.SecurityContext;
 
 import org.apache.log4j.Logger;
@@ -54,6 +58,7 @@ public class DataController {
 	
 	private static final Logger logger = Logger.getLogger(DataController.class);
 	private @Context SecurityContext security; 
+	private @Context Request request;
 	
 	/**
 	 * Returns the data of a transfer
@@ -61,7 +66,8 @@ public class DataController {
 	 * @return transfer representation
 	 */
 	@GET @Path("{jobid}")
-	public Response getTransferData(@HeaderParam("user-agent") String userAgent, @PathParam("jobid") String jobId) {
+	public Response getTransferData(@HeaderParam("user-agent") String userAgent, @PathParam("jobid") String jobId,
+			@HeaderParam("Range") String range, @HeaderParam("If-Range") String ifRange) {
 		JobDescription job = JobsProcessor.getJob(UUID.fromString(jobId));
 		if(null == job)
 			throw new NotFoundException("The job "+jobId+" is not found.");
@@ -76,10 +82,8 @@ public class DataController {
 			
 			logger.debug("Downloading node "+targetId.toString());
 			
-			Response.ResponseBuilder resp = Response.ok();
-			
 			try {
-				InputStream dataInp = node.exportData();
+				Response.ResponseBuilder resp;
 				
 				String fileName;
 				boolean isInternetExplorer = (userAgent.indexOf("MSIE") > -1);
@@ -90,15 +94,31 @@ public class DataController {
 				}
 				
 				if(!node.getType().equals(NodeType.CONTAINER_NODE)) {
+					// the resumed downloads of the same job are validated against the node data version
+					EntityTag etag = ConditionalGet.entityTag(MetaStoreFactory.getMetaStore(job.getUsername()).getVersionTag(targetId), targetId, "data");
+					Date lastModified = node.getNodeInfo().getMtime();
+					ResponseBuilder notModified = null;
+					if(null != etag && null != lastModified)
+						notModified = request.evaluatePreconditions(lastModified, etag);
+					else if(null != etag)
+						notModified = request.evaluatePreconditions(etag);
+					if(null != notModified) {
+						JobsProcessor.modifyJobState(job, STATE.COMPLETED);
+						return notModified.build();
+					}
+
+					resp = ByteRanges.dataResponse(node, range, ifRange, etag, node.getNodeInfo().getContentType());
 					resp.header("Content-Disposition", "attachment; filename=\""+fileName+"\"");
-					resp.header("Content-Length", Long.toString(node.getNodeInfo().getSize()));
-					resp.header("Content-Type", node.getNodeInfo().getContentType());
+					if(null != etag)
+						resp.tag(etag);
+					if(null != lastModified)
+						resp.lastModified(lastModified);
 				} else {
+					resp = Response.ok(node.exportData());
 					resp.header("Content-Disposition", "attachment; filename=\""+fileName+".tar\"");
 					resp.header("Content-Type", "application/tar");
 				}
 				JobsProcessor.modifyJobState(job, STATE.COMPLETED);
-				resp.entity(dataInp);
 				return resp.build();
 			} catch(InternalServerErrorException ex) {
 				JobsProcessor.modifyJobState(job, STATE.ERROR);
@@ -32,6 +32,7 @@ import org.apache.log4j.Logger;
 import com.generationjava.io.xml.SimpleXmlWriter;
 
 import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlReader;
 import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
 import edu.jhu.pha.vospace.SettingsServlet;
 import edu.jhu.pha.vospace.api.exceptions.InternalServerErrorException;
@@ -137,7 +138,7 @@ public class MetadataController {
 			xw.writeEntity("accepts");
 	        DbPoolServlet.goSql("Retrieving accepts properties",
 	                "SELECT property_uri from properties where property_accepts = 1",
-	                new SqlWorker<Boolean>() {
+	                new SqlReader<Boolean>() {
 	                    @Override
 	                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
 	                        ResultSet rs = stmt.executeQuery();
@@ -155,7 +156,7 @@ public class MetadataController {
 			xw.writeEntity("provides");
 	        DbPoolServlet.goSql("Retrieving provides properties",
 	                "SELECT property_uri from properties where property_provides = 1",
-	                new SqlWorker<Boolean>() {
+	                new SqlReader<Boolean>() {
 	                    @Override
 	                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
 	                        ResultSet rs = stmt.executeQuery();
@@ -174,7 +175,7 @@ public class MetadataController {
 			
 	        DbPoolServlet.goSql("Retrieving all properties",
 	                "SELECT property_uri from properties",
-	                new SqlWorker<Boolean>() {
+	                new SqlReader<Boolean>() {
 	                    @Override
 	                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
 	                        ResultSet rs = stmt.executeQuery();
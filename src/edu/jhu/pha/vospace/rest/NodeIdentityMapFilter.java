@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.rest;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import edu.jhu.pha.vospace.node.NodeIdentityMap;
+
+/**
+ * Binds a new {@link NodeIdentityMap} to each REST request and drops it when the request is done,
+ * so the nodes are loaded once per request and never shared between requests.
+ * The map is dropped even if the request fails, so it never stays on the pooled container thread.
+ */
+public class NodeIdentityMapFilter implements Filter {
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		NodeIdentityMap.begin();
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			NodeIdentityMap.end();
+		}
+	}
+
+	@Override
+	public void destroy() {}
+}
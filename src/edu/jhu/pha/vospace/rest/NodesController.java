@@ -31,9 +31,12 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.SecurityContext;
 
 import nu.xom.Builder;
@@ -41,10 +44,13 @@ import nu.xom.Serializer;
 
 import org.apache.log4j.Logger;
 
+import edu.jhu.pha.vospace.DbPoolServlet;
 import edu.jhu.pha.vospace.api.exceptions.BadRequestException;
 import edu.jhu.pha.vospace.api.exceptions.ConflictException;
 import edu.jhu.pha.vospace.api.exceptions.InternalServerErrorException;
 import edu.jhu.pha.vospace.api.exceptions.NotFoundException;
+import edu.jhu.pha.vospace.meta.ListingCache;
+import edu.jhu.pha.vospace.meta.MetaStoreFactory;
 import edu.jhu.pha.vospace.node.ContainerNode;
 import edu.jhu.pha.vospace.node.DataNode;
 import edu.jhu.pha.vospace.node.Node;
@@ -65,6 +71,7 @@ import edu.jhu.pha.vospace.oauth.SciDriveUser;
 public class NodesController {
 	private static final Logger logger = Logger.getLogger(NodesController.class);
 	private @Context SecurityContext security; 
+	private @Context Request request;
 
 	@GET
 	@RolesAllowed({"user", "rwshareuser", "roshareuser"})
@@ -93,6 +100,24 @@ public class NodesController {
 			type = MediaType.APPLICATION_JSON_TYPE;
 		else if(view.equals("xml"))
 			type = MediaType.TEXT_XML_TYPE;
+
+		String versionTag = MetaStoreFactory.getMetaStore(user.getName()).getVersionTag(identifier);
+		EntityTag etag = ConditionalGet.entityTag(versionTag, identifier, detail, view);
+		if(null != etag) {
+			ResponseBuilder notModified = request.evaluatePreconditions(etag);
+			if(null != notModified)
+				return notModified.build();
+		}
+
+		// the listings of the hot folders are served pre-serialized
+		boolean cacheListing = !"data".equals(view) && null != etag && ListingCache.isEnabled();
+		if(cacheListing) {
+			byte[] cachedData = ListingCache.get(user.getName(), identifier.getNodePath(), versionTag, etag.getValue());
+			if(null != cachedData)
+				return Response.ok(cachedData).type(type).tag(etag).build();
+			// the listing cached with the version can't be older than it
+			DbPoolServlet.readFromPrimary();
+		}
 		
 		Node node = NodeFactory.getNode(identifier, user.getName());
 		
@@ -100,6 +125,7 @@ public class NodesController {
 			return Response.ok(node.exportData()).
 					header("Content-Disposition", "attachment; filename="+identifier.getNodePath().getNodeName()).
 					header("Content-Length", Long.toString(node.getNodeInfo().getSize())).
+					tag(etag).
 					build();
 		} else {
 			byte[] nodeBytes = (byte[])((DataNode)node).export(view, Node.Detail.valueOf(Node.Detail.class, detail));
@@ -112,7 +138,9 @@ public class NodesController {
 		    try {
 				serializer.write(new Builder().build(xmlStream));
 			    byte[] outData = out.toByteArray();
-				return Response.ok(outData).type(type).build();
+			    if(cacheListing && node.getType() == NodeType.CONTAINER_NODE)
+			    	ListingCache.put(user.getName(), identifier.getNodePath(), versionTag, etag.getValue(), outData);
+				return Response.ok(outData).type(type).tag(etag).build();
 			} catch (Exception e) {
 				logger.error("Error parsing the output node XML document: "+e.getMessage());
 				throw new InternalServerErrorException("InternalFault");
@@ -12,25 +12,46 @@ import com.sun.jersey.oauth.server.spi.OAuthConsumer;
 import com.sun.jersey.oauth.server.spi.OAuthProvider;
 import com.sun.jersey.oauth.server.spi.OAuthToken;
 
+import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.Workload;
 import edu.jhu.pha.vospace.oauth.MySQLOAuthProvider2;
 import edu.jhu.pha.vospace.oauth.Token;
 
+/**
+ * The OAuth provider of the Jersey OAuth filter and token endpoints. The tokens are stored in the DB
+ * with the {@link Workload#AUTH} connection pools.
+ */
 @Provider
 public class SciDriveOAuthProvider implements OAuthProvider {
 
     @Override
     public OAuthConsumer getConsumer(String consumerKey) {
-    	return MySQLOAuthProvider2.getConsumer(consumerKey);
+    	Workload workload = DbPoolServlet.setWorkload(Workload.AUTH);
+    	try {
+    		return MySQLOAuthProvider2.getConsumer(consumerKey);
+    	} finally {
+    		DbPoolServlet.setWorkload(workload);
+    	}
     }
 
     @Override
     public Token getRequestToken(String token) {
-        return MySQLOAuthProvider2.getRequestToken(token);
+    	Workload workload = DbPoolServlet.setWorkload(Workload.AUTH);
+    	try {
+    		return MySQLOAuthProvider2.getRequestToken(token);
+    	} finally {
+    		DbPoolServlet.setWorkload(workload);
+    	}
     }
 
     @Override
     public OAuthToken newRequestToken(String consumerKey, String callbackUrl, Map<String, List<String>> attributes) {
-        return MySQLOAuthProvider2.generateRequestToken(consumerKey, callbackUrl, mapToMulti(attributes));
+    	Workload workload = DbPoolServlet.setWorkload(Workload.AUTH);
+    	try {
+    		return MySQLOAuthProvider2.generateRequestToken(consumerKey, callbackUrl, mapToMulti(attributes));
+    	} finally {
+    		DbPoolServlet.setWorkload(workload);
+    	}
     }
 
     private static MultivaluedMap<String, String> mapToMulti(Map<String, List<String>> map) {
@@ -46,12 +67,22 @@ public class SciDriveOAuthProvider implements OAuthProvider {
     
     @Override
     public OAuthToken newAccessToken(OAuthToken requestToken, String verifier) {
-    	return MySQLOAuthProvider2.generateAccessToken((Token)requestToken, verifier);
+    	Workload workload = DbPoolServlet.setWorkload(Workload.AUTH);
+    	try {
+    		return MySQLOAuthProvider2.generateAccessToken((Token)requestToken, verifier);
+    	} finally {
+    		DbPoolServlet.setWorkload(workload);
+    	}
     }
 
     @Override
     public OAuthToken getAccessToken(String token) {
-        return MySQLOAuthProvider2.getAccessToken(token);
+    	Workload workload = DbPoolServlet.setWorkload(Workload.AUTH);
+    	try {
+    		return MySQLOAuthProvider2.getAccessToken(token);
+    	} finally {
+    		DbPoolServlet.setWorkload(workload);
+    	}
     }
 
     public static class Consumer implements OAuthConsumer {
@@ -54,6 +54,7 @@ import org.jdom.input.SAXBuilder;
 import com.generationjava.io.xml.SimpleXmlWriter;
 
 import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlReader;
 import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
 import edu.jhu.pha.vospace.SettingsServlet;
 import edu.jhu.pha.vospace.api.exceptions.BadRequestException;
@@ -461,9 +462,9 @@ public class TransfersController {
 	@RolesAllowed({"user"})
 	public String getTransfersQueue() {
 		final SciDriveUser user = ((SciDriveUser)security.getUserPrincipal());
-	    return DbPoolServlet.goSql("Get transfers queue",
+	    return DbPoolServlet.goUserSql(user.getName(), "Get transfers queue",
 	    		"select id, state, direction, starttime, endtime, target from jobs where login = ?",
-	            new SqlWorker<String>() {
+	            new SqlReader<String>() {
 	                @Override
 	                public String go(Connection conn, PreparedStatement stmt) throws SQLException {
 	            		StringBuffer resultBuf = new StringBuffer();
@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace.storage;
+
+import java.util.UUID;
+
+import edu.jhu.pha.vospace.SettingsServlet;
+import edu.jhu.pha.vospace.node.NodePath;
+
+/**
+ * Immutable names of the storage objects holding the data of the nodes.
+ * With storage.object_names the new data nodes are stored in the objects of their container named by a UUID
+ * recorded in the node metadata, so a node is moved or renamed within the container without copying its data.
+ * The nodes having no object name are stored in the objects named by the node path.
+ */
+public class ObjectNames {
+
+	private static final boolean enabled = SettingsServlet.getConfig().getBoolean("storage.object_names", false);
+
+	private ObjectNames() {}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return The object name of a new data node, null if the data is stored under the node path
+	 */
+	public static String newName() {
+		return enabled?UUID.randomUUID().toString():null;
+	}
+
+	/**
+	 * Returns the storage location of the node data
+	 * @param nodePath The node path
+	 * @param objectName The node object name, can be null
+	 * @return The object in the node container, or the node path for the nodes having no object name
+	 */
+	public static NodePath objectPath(NodePath nodePath, String objectName) {
+		if(null == objectName)
+			return nodePath;
+		return new NodePath(nodePath.getContainerName()+"/"+objectName);
+	}
+}
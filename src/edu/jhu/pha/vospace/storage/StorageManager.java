@@ -46,6 +46,17 @@ public interface StorageManager {
      */
     public InputStream getBytes(NodePath nodePath);
 
+    /**
+     * Get a range of the bytes from the specified location in the current backend storage.
+     * Only the requested range is read from the storage.
+     * @param nodePath The location of the bytes
+     * @param offset The first byte position
+     * @param length The number of bytes
+     * @return a stream containing the requested bytes; its read fails if the stored object ends before the range
+     * @throws edu.jhu.pha.vospace.api.exceptions.NotFoundException if the object is not stored
+     */
+    public InputStream getBytes(NodePath nodePath, long offset, long length);
+
     /**
      * Returns the SWIFT storage URL for current account
      * @return
@@ -16,6 +16,7 @@
 package edu.jhu.pha.vospace.storage;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -30,6 +31,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.configuration.Configuration;
+import org.apache.commons.io.input.ProxyInputStream;
 import org.apache.http.HttpException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.conn.scheme.PlainSocketFactory;
@@ -279,6 +281,24 @@ public class SwiftStorageManager implements StorageManager {
 		}
 	}
 
+	@Override
+	public InputStream getBytes(NodePath npath, long offset, long length) {
+		try {
+			return new RangeInputStream(getClient().getKsObjectAsRangedStream(npath.getContainerName(), npath.getNodeRelativeStoragePath(), offset, length), length);
+		} catch (FilesAuthorizationException e) {
+			throw new InternalServerErrorException(e);
+		} catch (FilesInvalidNameException e) {
+			throw new InternalServerErrorException(e);
+		} catch (FilesNotFoundException e) {
+			// the range length is already promised to the client
+			throw new NotFoundException("Node Not Found");
+		} catch (HttpException e) {
+			throw new InternalServerErrorException(e);
+		} catch (IOException e) {
+			throw new InternalServerErrorException(e);
+		}
+	}
+
 	@Override
 	public long getBytesUsed() {
 		try {
@@ -566,4 +586,25 @@ public class SwiftStorageManager implements StorageManager {
 				
 	}
 	
+
+	/**
+	 * Fails the read of a range ending before its expected length, so the response promising the length
+	 * is aborted instead of being silently truncated
+	 */
+	private static class RangeInputStream extends ProxyInputStream {
+		private long remaining;
+
+		RangeInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		protected void afterRead(int n) throws IOException {
+			if(n > 0)
+				remaining -= n;
+			else if(n < 0 && remaining > 0)
+				throw new EOFException("The stored object is "+remaining+" bytes shorter than the requested range");
+		}
+	}
 }
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vosync.meta;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+
+import com.rabbitmq.client.QueueingConsumer;
+
+import edu.jhu.pha.vospace.QueueConnector;
+import edu.jhu.pha.vospace.SettingsServlet;
+
+/**
+ * Single subscription to the node changed exchange waking the listeners of the changed nodes owner.
+ * All the listeners are woken each time the subscription is (re)established, as the events could have been missed.
+ */
+public class ChangeNotifier implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(ChangeNotifier.class);
+	static Configuration conf = SettingsServlet.getConfig();
+
+	private static final long RECONNECT_DELAY = 10*1000;
+
+	/** Woken once on the owner change; the listeners are removed before being woken */
+	public interface Listener {
+		public void changed();
+	}
+
+	private static final ConcurrentHashMap<String, Set<Listener>> listeners = new ConcurrentHashMap<String, Set<Listener>>();
+	private static final AtomicInteger listenersCount = new AtomicInteger();
+
+	public static void addListener(String owner, Listener listener) {
+		while(true) {
+			Set<Listener> ownerListeners = listeners.get(owner);
+			if(null == ownerListeners) {
+				Set<Listener> newListeners = Collections.newSetFromMap(new ConcurrentHashMap<Listener, Boolean>());
+				ownerListeners = listeners.putIfAbsent(owner, newListeners);
+				if(null == ownerListeners)
+					ownerListeners = newListeners;
+			}
+			ownerListeners.add(listener);
+			// the set could be dropped as empty meanwhile
+			if(listeners.get(owner) == ownerListeners)
+				break;
+			ownerListeners.remove(listener);
+		}
+		listenersCount.incrementAndGet();
+	}
+
+	/**
+	 * @return false if the listener was already removed
+	 */
+	public static boolean removeListener(String owner, Listener listener) {
+		Set<Listener> ownerListeners = listeners.get(owner);
+		if(null == ownerListeners || !ownerListeners.remove(listener))
+			return false;
+		listenersCount.decrementAndGet();
+		if(ownerListeners.isEmpty())
+			listeners.remove(owner, ownerListeners);
+		return true;
+	}
+
+	public static int getListenersCount() {
+		return listenersCount.get();
+	}
+
+	private static void wake(String owner) {
+		Set<Listener> ownerListeners = listeners.get(owner);
+		if(null == ownerListeners)
+			return;
+		for(Listener listener: new ArrayList<Listener>(ownerListeners)) {
+			if(removeListener(owner, listener))
+				listener.changed();
+		}
+	}
+
+	private static void wakeAll() {
+		List<String> owners = new ArrayList<String>(listeners.keySet());
+		for(String owner: owners)
+			wake(owner);
+	}
+
+	@Override
+	public void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				QueueConnector.goAMQP("changeNotifier", new QueueConnector.AMQPWorker<Boolean>() {
+					@Override
+					public Boolean go(com.rabbitmq.client.Connection conn, com.rabbitmq.client.Channel channel) throws IOException {
+
+						channel.exchangeDeclare(conf.getString("vospace.exchange.nodechanged"), "fanout", false);
+
+						String queueName = channel.queueDeclare().getQueue();
+						channel.queueBind(queueName, conf.getString("vospace.exchange.nodechanged"), "");
+
+						QueueingConsumer consumer = new QueueingConsumer(channel);
+						channel.basicConsume(queueName, true, consumer);
+
+						wakeAll();
+
+						while (!Thread.currentThread().isInterrupted()) {
+							try {
+						    	QueueingConsumer.Delivery delivery = consumer.nextDelivery();
+
+						    	Map<String,Object> nodeData = (new ObjectMapper()).readValue(delivery.getBody(), 0, delivery.getBody().length, new TypeReference<HashMap<String,Object>>() {});
+						    	if(null != nodeData.get("owner"))
+						    		wake((String)nodeData.get("owner"));
+							} catch(InterruptedException ex) {
+								Thread.currentThread().interrupt();
+							} catch (IOException ex) {
+			            		logger.error("Error reading the changed node JSON: "+ex.getMessage());
+							}
+						}
+						return true;
+					}
+				});
+			} catch(Exception ex) {
+				logger.error("Change notification channel failed: "+ex.getMessage());
+			}
+
+			// Events could be missed while we are not subscribed
+			wakeAll();
+
+			try {
+				Thread.sleep(RECONNECT_DELAY);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
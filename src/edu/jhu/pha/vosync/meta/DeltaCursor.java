@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vosync.meta;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+
+import edu.jhu.pha.vospace.SettingsServlet;
+import edu.jhu.pha.vospace.node.NodePath;
+import edu.jhu.pha.vosync.exception.InternalServerErrorException;
+
+/**
+ * The /delta cursor: the owner, the last returned journal change and, while the nodes are listed after a reset,
+ * the last listed node. The cursor is signed with delta.cursor_secret, so the unauthenticated long-poll requests
+ * can trust the owner.
+ */
+public class DeltaCursor {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String MAC_ALGORITHM = "HmacSHA1";
+
+	private static final Logger logger = Logger.getLogger(DeltaCursor.class);
+
+	private static final byte[] secret = loadSecret();
+
+	private final String owner;
+	private final long seq;
+	private final NodePath walkPosition;
+
+	/**
+	 * @param walkPosition the last listed node, null when reading the journal
+	 */
+	public DeltaCursor(String owner, long seq, NodePath walkPosition) {
+		this.owner = owner;
+		this.seq = seq;
+		this.walkPosition = walkPosition;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public NodePath getWalkPosition() {
+		return walkPosition;
+	}
+
+	public String encode() {
+		byte[] payload = (owner+"\n"+seq+((null == walkPosition)?"":":"+walkPosition.getNodeStoragePath())).getBytes(UTF8);
+		return Base64.encodeBase64URLSafeString(payload)+"."+Base64.encodeBase64URLSafeString(sign(payload));
+	}
+
+	/**
+	 * Returns the cursor, null if it is malformed or its signature does not match
+	 */
+	public static DeltaCursor decode(String cursor) {
+		if(null == cursor)
+			return null;
+		int sigIndex = cursor.indexOf('.');
+		if(sigIndex < 0)
+			return null;
+		byte[] payload = Base64.decodeBase64(cursor.substring(0, sigIndex));
+		if(!MessageDigest.isEqual(sign(payload), Base64.decodeBase64(cursor.substring(sigIndex+1))))
+			return null;
+
+		String decoded = new String(payload, UTF8);
+		int seqIndex = decoded.indexOf('\n');
+		if(seqIndex < 0)
+			return null;
+		String seqStr = decoded.substring(seqIndex+1);
+		NodePath walkPosition = null;
+		int posIndex = seqStr.indexOf(':');
+		if(posIndex >= 0) {
+			walkPosition = new NodePath(seqStr.substring(posIndex+1));
+			seqStr = seqStr.substring(0, posIndex);
+		}
+		try {
+			return new DeltaCursor(decoded.substring(0, seqIndex), Long.parseLong(seqStr), walkPosition);
+		} catch(NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Without a configured secret a random one is used: the cursors are then reset on restart
+	 * and are not accepted by the other servers
+	 */
+	private static byte[] loadSecret() {
+		String configured = SettingsServlet.getConfig().getString("delta.cursor_secret", "");
+		if(!configured.isEmpty())
+			return configured.getBytes(UTF8);
+		logger.warn("delta.cursor_secret is not set, the delta cursors will not survive a restart");
+		byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		return random;
+	}
+
+	private static byte[] sign(byte[] payload) {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+			return mac.doFinal(payload);
+		} catch (GeneralSecurityException e) {
+			throw new InternalServerErrorException(e);
+		}
+	}
+}
@@ -4,13 +4,23 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Map;
 
 import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.PrimaryReader;
 import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
+import edu.jhu.pha.vospace.meta.MetaCache;
 import edu.jhu.pha.vospace.node.VospaceId;
 
 public class VoSyncMetaStore {
 	
+	private static final String MAP_CHUNKED_SQL = "update chunked_uploads set node_id = "+
+    		"(SELECT nodes.node_id FROM nodes "+
+    		"JOIN containers ON nodes.container_id = containers.container_id "+
+    		"JOIN user_identities ON containers.user_id = user_identities.user_id "+
+    		"WHERE `container_name` = ? AND `path_hash` = UNHEX(MD5(?)) AND `path` = ? AND `identity` = ?) "+
+    		"WHERE chunked_name = ?";
+
 	private String owner;
 	
 	public VoSyncMetaStore(String owner) {
@@ -18,11 +28,11 @@ public class VoSyncMetaStore {
 	}
 
 	public Chunk getLastChunk(final String chunkedId) {
-        return DbPoolServlet.goSql("Retrieving last chunk from DB",
+        return DbPoolServlet.goUserSql(owner, "Retrieving last chunk from DB",
                 "select max(chunked_num), sum(size) from `chunked_uploads` "+
         		"JOIN `user_identities` ON chunked_uploads.user_id = user_identities.user_id "+
         		"WHERE identity = ? and chunked_name = ?",
-                new SqlWorker<Chunk>() {
+                new PrimaryReader<Chunk>() {
                     @Override
                     public Chunk go(Connection conn, PreparedStatement stmt) throws SQLException {
                         stmt.setString(1, owner);
@@ -46,7 +56,7 @@ public class VoSyncMetaStore {
 	}
 	
 	public boolean putNewChunk(final Chunk chunk) {
-        return DbPoolServlet.goSql("Adding new chunk to the database",
+        return DbPoolServlet.goUserSql(owner, "Adding new chunk to the database",
                 "insert into chunked_uploads (chunked_name, chunked_num, user_id, size) select ?, ?, user_identities.user_id, ? from `user_identities` "+
         		"WHERE user_identities.identity = ?",
                 new SqlWorker<Boolean>() {
@@ -63,11 +73,11 @@ public class VoSyncMetaStore {
 	}
 
 	public boolean chunkedExists(final String uploadId) {
-        return DbPoolServlet.goSql("Checking chunked upload to exist in DB",
+        return DbPoolServlet.goUserSql(owner, "Checking chunked upload to exist in DB",
                 "select count(chunked_name) from `chunked_uploads` "+
            		"JOIN `user_identities` ON chunked_uploads.user_id = user_identities.user_id "+
         		"WHERE identity = ? and chunked_name = ?",
-                new SqlWorker<Boolean>() {
+                new PrimaryReader<Boolean>() {
                     @Override
                     public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
                         stmt.setString(1, owner);
@@ -84,43 +94,105 @@ public class VoSyncMetaStore {
 	}
 	
 	public boolean mapChunkedToNode(final VospaceId identifier, final String chunkedId) {
-        return DbPoolServlet.goSql("Mapping chunked to node",
-        		"update chunked_uploads set node_id = "+
+        boolean result = DbPoolServlet.goUserSql(owner, "Mapping chunked to node",
+        		MAP_CHUNKED_SQL,
+                new SqlWorker<Boolean>() {
+                    @Override
+                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+                        setMapParams(stmt, identifier, chunkedId);
+                        return stmt.execute();
+                    }
+                }
+        );
+        MetaCache.invalidate(owner, identifier.getNodePath());
+        return result;
+	}
+	
+	/**
+	 * Replaces the chunks of the node with the chunked upload in one transaction
+	 */
+	public boolean remapNodeChunks(final VospaceId identifier, final String chunkedId) {
+        Boolean result = DbPoolServlet.goUserSqlTx(owner, "Remapping node chunks",
+        		"delete from chunked_uploads where node_id = "+
         		"(SELECT nodes.node_id FROM nodes "+
         		"JOIN containers ON nodes.container_id = containers.container_id "+
         		"JOIN user_identities ON containers.user_id = user_identities.user_id "+
-        		"WHERE `container_name` = ? AND `path` = ? AND `identity` = ?) "+
-        		"WHERE chunked_name = ?",
+        		"WHERE `container_name` = ? AND `path_hash` = UNHEX(MD5(?)) AND `path` = ? AND `identity` = ?) ",
                 new SqlWorker<Boolean>() {
                     @Override
                     public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
                         stmt.setString(1, identifier.getNodePath().getContainerName());
                         stmt.setString(2, identifier.getNodePath().getNodeRelativeStoragePath());
-                        stmt.setString(3, owner);
-                        stmt.setString(4, chunkedId);
-                        return stmt.execute();
+                        stmt.setString(3, identifier.getNodePath().getNodeRelativeStoragePath());
+                        stmt.setString(4, owner);
+                        stmt.executeUpdate();
+
+                        PreparedStatement mapStmt = conn.prepareStatement(MAP_CHUNKED_SQL);
+                        try {
+                        	setMapParams(mapStmt, identifier, chunkedId);
+                        	return mapStmt.executeUpdate() > 0;
+                        } finally {
+                        	DbPoolServlet.close(mapStmt);
+                        }
                     }
                 }
         );
+        MetaCache.invalidate(owner, identifier.getNodePath());
+        return null != result && result;
 	}
-	
+
+	/**
+	 * Maps the chunked uploads to the nodes in one transaction
+	 * @param chunked node -> chunked upload name
+	 */
+	public void mapChunkedToNodes(final Map<VospaceId, String> chunked) {
+		if(chunked.isEmpty())
+			return;
+        DbPoolServlet.goUserSqlTx(owner, "Mapping chunked to nodes", MAP_CHUNKED_SQL,
+                new SqlWorker<Boolean>() {
+                    @Override
+                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
+                    	for(Map.Entry<VospaceId, String> entry: chunked.entrySet()) {
+                    		setMapParams(stmt, entry.getKey(), entry.getValue());
+                    		stmt.addBatch();
+                    	}
+                    	stmt.executeBatch();
+                    	return true;
+                    }
+                }
+        );
+        for(VospaceId identifier: chunked.keySet())
+        	MetaCache.invalidate(owner, identifier.getNodePath());
+	}
+
+	private void setMapParams(PreparedStatement stmt, VospaceId identifier, String chunkedId) throws SQLException {
+        stmt.setString(1, identifier.getNodePath().getContainerName());
+        stmt.setString(2, identifier.getNodePath().getNodeRelativeStoragePath());
+        stmt.setString(3, identifier.getNodePath().getNodeRelativeStoragePath());
+        stmt.setString(4, owner);
+        stmt.setString(5, chunkedId);
+	}
+
 	public boolean deleteNodeChunks(final VospaceId identifier) {
-        return DbPoolServlet.goSql("Deleting node chunks",
+        boolean result = DbPoolServlet.goUserSql(owner, "Deleting node chunks",
         		"delete from chunked_uploads where node_id = "+
         		"(SELECT nodes.node_id FROM nodes "+
         		"JOIN containers ON nodes.container_id = containers.container_id "+
         		"JOIN user_identities ON containers.user_id = user_identities.user_id "+
-        		"WHERE `container_name` = ? AND `path` = ? AND `identity` = ?) ",
+        		"WHERE `container_name` = ? AND `path_hash` = UNHEX(MD5(?)) AND `path` = ? AND `identity` = ?) ",
                 new SqlWorker<Boolean>() {
                     @Override
                     public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
                         stmt.setString(1, identifier.getNodePath().getContainerName());
                         stmt.setString(2, identifier.getNodePath().getNodeRelativeStoragePath());
-                        stmt.setString(3, owner);
+                        stmt.setString(3, identifier.getNodePath().getNodeRelativeStoragePath());
+                        stmt.setString(4, owner);
                         return stmt.execute();
                     }
                 }
         );
+        MetaCache.invalidate(owner, identifier.getNodePath());
+        return result;
 	}
 	
 }
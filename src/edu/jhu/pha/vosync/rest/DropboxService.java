@@ -26,9 +26,16 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.annotation.security.RolesAllowed;
@@ -37,6 +44,7 @@ import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
@@ -44,7 +52,9 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.SecurityContext;
@@ -75,13 +85,18 @@ import com.sun.jersey.core.header.FormDataContentDisposition;
 import com.sun.jersey.multipart.FormDataParam;
 
 import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlReader;
 import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
 import edu.jhu.pha.vospace.SettingsServlet;
 import edu.jhu.pha.vospace.api.AccountInfo;
 import edu.jhu.pha.vospace.jobs.JobsProcessor;
+import edu.jhu.pha.vospace.meta.ChangeJournal;
+import edu.jhu.pha.vospace.meta.ListingCache;
 import edu.jhu.pha.vospace.meta.MetaStore;
 import edu.jhu.pha.vospace.meta.MetaStoreDistributed;
 import edu.jhu.pha.vospace.meta.MetaStoreFactory;
+import edu.jhu.pha.vospace.meta.NodesList;
+import edu.jhu.pha.vospace.meta.PropertyPredicate;
 import edu.jhu.pha.vospace.meta.RegionsInfo;
 import edu.jhu.pha.vospace.node.ContainerNode;
 import edu.jhu.pha.vospace.node.DataNode;
@@ -97,12 +112,15 @@ import edu.jhu.pha.vospace.oauth.SciDriveUser;
 import edu.jhu.pha.vospace.process.NodeProcessor;
 import edu.jhu.pha.vospace.process.ProcessorConfig;
 import edu.jhu.pha.vospace.process.ProcessingFactory;
+import edu.jhu.pha.vospace.rest.ByteRanges;
+import edu.jhu.pha.vospace.rest.ConditionalGet;
 import edu.jhu.pha.vospace.rest.JobDescription;
 import edu.jhu.pha.vosync.exception.BadRequestException;
 import edu.jhu.pha.vosync.exception.ForbiddenException;
 import edu.jhu.pha.vosync.exception.InternalServerErrorException;
 import edu.jhu.pha.vosync.exception.NotFoundException;
 import edu.jhu.pha.vosync.meta.Chunk;
+import edu.jhu.pha.vosync.meta.DeltaCursor;
 import edu.jhu.pha.vosync.meta.VoSyncMetaStore;
 
 /**
@@ -113,6 +131,7 @@ public class DropboxService {
 	
 	private static final Logger logger = Logger.getLogger(DropboxService.class);
 	private @Context SecurityContext security; 
+	private @Context Request request;
 	private static final Configuration conf = SettingsServlet.getConfig();
 
 	private static final JsonFactory f = new JsonFactory();
@@ -319,7 +338,8 @@ public class DropboxService {
 	
 	@GET @Path("files/{root:dropbox|sandbox}/{path:.+}")
 	@RolesAllowed({"user", "rwshareuser", "roshareuser"})
-	public Response getFile(@PathParam("root") String root, @PathParam("path") String fullPath) {
+	public Response getFile(@PathParam("root") String root, @PathParam("path") String fullPath,
+			@HeaderParam("Range") String range, @HeaderParam("If-Range") String ifRange) {
 		SciDriveUser user = ((SciDriveUser)security.getUserPrincipal());
 		VospaceId identifier;
 		try {
@@ -328,6 +348,13 @@ public class DropboxService {
 			throw new BadRequestException("InvalidURI");
 		}
 
+		EntityTag etag = ConditionalGet.entityTag(MetaStoreFactory.getMetaStore(user.getName()).getVersionTag(identifier), identifier, "data");
+		if(null != etag) {
+			ResponseBuilder notModified = request.evaluatePreconditions(etag);
+			if(null != notModified)
+				return notModified.build();
+		}
+
 		Node node;
 		try {
 			node = NodeFactory.getNode(identifier, user.getName());
@@ -335,9 +362,21 @@ public class DropboxService {
 			throw new NotFoundException(identifier.getNodePath().getNodeStoragePath());
 		}
 
-		InputStream nodeInputStream;
+		Date lastModified = node.getNodeInfo().getMtime();
+		if(null != etag && null != lastModified) {
+			ResponseBuilder notModified = request.evaluatePreconditions(lastModified, etag);
+			if(null != notModified)
+				return notModified.build();
+		}
+
+		ResponseBuilder response;
 		try {
-			nodeInputStream = node.exportData(); 
+			if(node.getType() == NodeType.CONTAINER_NODE) {
+				response = Response.ok(node.exportData());
+				response.header("Content-Length", Long.toString(node.getNodeInfo().getSize()));
+			} else {
+				response = ByteRanges.dataResponse(node, range, ifRange, etag, null);
+			}
 		} catch(edu.jhu.pha.vospace.api.exceptions.NotFoundException ex) {
 			logger.error("Node "+node.getUri().toString()+" data  not found.");
 			throw new NotFoundException(identifier.getId().toASCIIString());
@@ -345,10 +384,12 @@ public class DropboxService {
 		
 		logger.debug("Node "+node.getUri().toString()+" size: "+node.getNodeInfo().getSize());
 		
-		ResponseBuilder response = Response.ok(nodeInputStream);
 		response.header("x-dropbox-metadata", new String((byte[])(node.export("json-dropbox", Detail.min))));
 		response.header("Content-Disposition", "attachment; filename="+identifier.getNodePath().getNodeName());
-		response.header("Content-Length", Long.toString(node.getNodeInfo().getSize()));
+		if(null != etag)
+			response.tag(etag);
+		if(null != lastModified)
+			response.lastModified(lastModified);
 		
 		return response.build();
 	}
@@ -399,8 +440,18 @@ public class DropboxService {
 			@QueryParam("file_limit") @DefaultValue("25000") int file_limit,  
 			@QueryParam("start") @DefaultValue("0") int start, 
 			@QueryParam("count") @DefaultValue("-1") int count,
-			@QueryParam("include_deleted") @DefaultValue("false") boolean includeDeleted) {
+			@QueryParam("cursor") String cursor,
+			@QueryParam("include_count") @DefaultValue("false") boolean includeCount,
+			@QueryParam("include_deleted") @DefaultValue("false") boolean includeDeleted,
+			@QueryParam("hash") String hash) {
 		logger.debug(includeDeleted);
+		if(file_limit <= 0) {
+			throw new BadRequestException("Wrong file_limit parameter");
+		}
+		// -1 is for the whole listing
+		if(count == 0 || count < -1) {
+			throw new BadRequestException("Wrong count parameter");
+		}
 		SciDriveUser user = ((SciDriveUser)security.getUserPrincipal());
 		VospaceId identifier;
 		try {
@@ -410,6 +461,28 @@ public class DropboxService {
 			throw new BadRequestException("InvalidURI");
 		}
 
+		// answered before loading the node and listing its children
+		String versionTag = MetaStoreFactory.getMetaStore(user.getName()).getVersionTag(identifier);
+		EntityTag etag = null;
+		if(null != versionTag) {
+			if(list && versionTag.equals(hash))
+				return Response.notModified().build();
+			etag = ConditionalGet.entityTag(versionTag, identifier, list, file_limit, start, count, cursor, includeCount, includeDeleted);
+			ResponseBuilder notModified = request.evaluatePreconditions(etag);
+			if(null != notModified)
+				return notModified.build();
+		}
+
+		// the listings of the hot folders are served pre-serialized
+		boolean cacheListing = list && null != etag && ListingCache.isEnabled();
+		if(cacheListing) {
+			byte[] cachedExport = ListingCache.get(user.getName(), identifier.getNodePath(), versionTag, etag.getValue());
+			if(null != cachedExport)
+				return Response.ok(cachedExport).tag(etag).build();
+			// the listing cached with the version can't be older than it
+			DbPoolServlet.readFromPrimary();
+		}
+
 		Node node;
 		try {
 			node = NodeFactory.getNode(identifier, user.getName());
@@ -422,7 +495,11 @@ public class DropboxService {
 		long time = System.currentTimeMillis();
 		byte[] nodeExport;
 		try {
-			if(node.getType() == NodeType.CONTAINER_NODE) {
+			if(node.getType() == NodeType.CONTAINER_NODE && null != cursor) {
+				// keyset pagination: the page size is limited by file_limit
+				int pageSize = (count > 0)?Math.min(count, file_limit):file_limit;
+				nodeExport = (byte[])(((ContainerNode)node).export("json-dropbox", detailLevel, cursor, pageSize, includeCount, includeDeleted));
+			} else if(node.getType() == NodeType.CONTAINER_NODE) {
 				nodeExport = (byte[])(((ContainerNode)node).export("json-dropbox", detailLevel, start, count, includeDeleted));
 			} else {
 				nodeExport = (byte[])(node.export("json-dropbox", detailLevel));
@@ -431,16 +508,26 @@ public class DropboxService {
 			throw new NotFoundException(identifier.getId().toASCIIString());
 		}
 		logger.debug("Generated node contents in "+(System.currentTimeMillis()-time)/1000.0);
+
+		if(cacheListing && node.getType() == NodeType.CONTAINER_NODE)
+			ListingCache.put(user.getName(), identifier.getNodePath(), versionTag, etag.getValue(), nodeExport);
 		
-		return Response.ok(nodeExport).build();
+		ResponseBuilder response = Response.ok(nodeExport);
+		if(null != etag)
+			response.tag(etag);
+		return response.build();
 	}
 
 	@GET @Path("metadata/{root:dropbox|sandbox}")
 	@RolesAllowed({"user", "rwshareuser", "roshareuser"})
 	public Response getRootMetadata(@PathParam("root") String root, 
 			@QueryParam("list") @DefaultValue("true") Boolean list,
-			@QueryParam("include_deleted") @DefaultValue("false") boolean includeDeleted) {
-		return getFileMetadata(root, "", list, 25000, 0, -1, includeDeleted);
+			@QueryParam("count") @DefaultValue("-1") int count,
+			@QueryParam("cursor") String cursor,
+			@QueryParam("include_count") @DefaultValue("false") boolean includeCount,
+			@QueryParam("include_deleted") @DefaultValue("false") boolean includeDeleted,
+			@QueryParam("hash") String hash) {
+		return getFileMetadata(root, "", list, 25000, 0, (null != cursor)?count:-1, cursor, includeCount, includeDeleted, hash);
 	}
 	
 	@GET @Path("transfers/info")
@@ -449,9 +536,9 @@ public class DropboxService {
 	public byte[] getTransfersInfo() {
 		final SciDriveUser user = ((SciDriveUser)security.getUserPrincipal());
 
-		return DbPoolServlet.goSql("Get transfers queue",
+		return DbPoolServlet.goUserSql(user.getName(), "Get transfers queue",
 	    		"select state, direction, starttime, endtime, target from jobs JOIN user_identities ON jobs.user_id = user_identities.user_id WHERE identity = ? order by starttime DESC",
-	            new SqlWorker<byte[]>() {
+	            new SqlReader<byte[]>() {
 	                @Override
 	                public byte[] go(Connection conn, PreparedStatement stmt) throws SQLException {
 	                	
@@ -634,14 +721,14 @@ public class DropboxService {
 					node.setNode(null);
 				}
 			} else {
+				node = (DataNode)NodeFactory.createNode(identifier, user.getName(), NodeType.DATA_NODE);
 				if(metastore.isStored(identifier)){
 					Node tmpNode = NodeFactory.getNode(identifier, user.getName());
-					tmpNode.getStorage().remove(tmpNode.getUri().getNodePath(), true);
-					tmpNode.getMetastore().remove(tmpNode.getUri());
+					tmpNode.removeData(true);
+					metastore.replaceData(identifier, NodeType.DATA_NODE);
+				} else {
+					node.createParent();
 				}
-				
-				node = (DataNode)NodeFactory.createNode(identifier, user.getName(), NodeType.DATA_NODE);
-				node.createParent();
 				node.setNode(null);
 			}
 		}
@@ -691,8 +778,7 @@ public class DropboxService {
 		try {
 			g.writeStartArray();
 
-			for(VospaceId childNodeId: nodesList) {
-				Node childNode = NodeFactory.getNode(childNodeId, user.getName());
+			for(Node childNode: NodeFactory.getNodes(nodesList, user.getName())) {
 				JsonNode jnode = (JsonNode)childNode.export("json-dropbox-object", Detail.min); 
 				g.writeTree(jnode);
 
@@ -725,6 +811,224 @@ public class DropboxService {
 		
 	}
 
+	@Path("search_properties/{root:dropbox|sandbox}")
+	@GET
+	@RolesAllowed({"user", "rwshareuser", "roshareuser"})
+	public byte[] searchRootProperties(@PathParam("root") String root, @QueryParam("q") List<String> query, @QueryParam("cursor") String cursor, @QueryParam("file_limit") @DefaultValue("1000") int fileLimit) {
+		return searchProperties(root, "", query, cursor, fileLimit);
+	}
+
+	/**
+	 * Finds the nodes by the values of their properties.
+	 * Each q parameter is a predicate "property_uri op value", op being one of = &lt; &lt;= &gt; &gt;= ^= (prefix);
+	 * the numbers and ISO dates are compared by value, the other values as strings.
+	 * The nodes matching all the predicates are returned page by page in the node creation order.
+	 */
+	@Path("search_properties/{root:dropbox|sandbox}/{path:.+}")
+	@GET
+	@RolesAllowed({"user", "rwshareuser", "roshareuser"})
+	public byte[] searchProperties(@PathParam("root") String root, @PathParam("path") String fullPath, @QueryParam("q") List<String> query, @QueryParam("cursor") String cursor, @QueryParam("file_limit") @DefaultValue("1000") int fileLimit) {
+		SciDriveUser user = ((SciDriveUser)security.getUserPrincipal());
+
+		if(null == query || query.isEmpty()) {
+			throw new BadRequestException("Wrong query parameter");
+		}
+
+		List<PropertyPredicate> predicates = new ArrayList<PropertyPredicate>();
+		for(String predicateStr: query) {
+			PropertyPredicate predicate = PropertyPredicate.parse(predicateStr);
+			if(null == predicate)
+				throw new BadRequestException("Wrong query parameter: "+predicateStr);
+			predicates.add(predicate);
+		}
+
+		if(fileLimit <= 0 || fileLimit > 25000) {
+			throw new BadRequestException("Wrong file_limit parameter");
+		}
+
+		VospaceId identifier;
+		try {
+			identifier = new VospaceId(new NodePath(fullPath, user.getRootContainer()));
+		} catch (URISyntaxException e) {
+			throw new BadRequestException("InvalidURI");
+		}
+
+		Node node;
+		try {
+			node = NodeFactory.getNode(identifier, user.getName());
+		} catch(edu.jhu.pha.vospace.api.exceptions.NotFoundException ex) {
+			throw new NotFoundException(identifier.getNodePath().getNodeStoragePath());
+		}
+
+		if(!(node instanceof ContainerNode)) {
+			throw new NotFoundException("Not a container");
+		}
+
+		NodesList nodesList = ((ContainerNode)node).searchProperties(predicates, cursor, fileLimit);
+
+		TokenBuffer g = new TokenBuffer(null);
+
+		try {
+			g.writeStartObject();
+
+			g.writeArrayFieldStart("contents");
+			for(Node childNode: nodesList.getNodesList()) {
+				g.writeTree((JsonNode)childNode.export("json-dropbox-object", Detail.min));
+			}
+			g.writeEndArray();
+
+			g.writeBooleanField("has_more", null != nodesList.getCursor());
+			if(null != nodesList.getCursor())
+				g.writeStringField("cursor", nodesList.getCursor());
+
+			g.writeEndObject();
+
+			ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+			MappingJsonFactory f = new MappingJsonFactory();
+			JsonGenerator g2 = f.createJsonGenerator(byteOut).useDefaultPrettyPrinter();
+			g.serialize(g2);
+			g2.close();
+			byteOut.close();
+
+			return byteOut.toByteArray();
+		} catch (JsonGenerationException e) {
+			e.printStackTrace();
+			throw new InternalServerErrorException("Error generationg JSON: "+e.getMessage());
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new InternalServerErrorException("Error generationg JSON: "+e.getMessage());
+		} finally {
+			try { g.close(); } catch(IOException ex) {}
+		}
+	}
+
+	/**
+	 * Returns the changes of the user nodes since the cursor.
+	 * Without a cursor, with a cursor that can't be verified (e.g. signed with another delta.cursor_secret),
+	 * or when the cursor changes are no longer journaled, the reset is set and the entries
+	 * list all the nodes page by page before switching to the journal.
+	 */
+	@Path("delta")
+	@POST
+	@RolesAllowed({"user", "rwshareuser", "roshareuser"})
+	@Produces(MediaType.APPLICATION_JSON)
+	public byte[] delta(@FormParam("cursor") String cursor) {
+		SciDriveUser user = ((SciDriveUser)security.getUserPrincipal());
+		int pageSize = conf.getInt("delta.page_size", 1000);
+		String rootContainer = user.getRootContainer();
+
+		// an unverifiable cursor or a cursor of another user starts over
+		DeltaCursor deltaCursor = DeltaCursor.decode(cursor);
+		long seq = -1;
+		NodePath walkPosition = null;
+		if(null != deltaCursor && deltaCursor.getOwner().equals(user.getName())) {
+			seq = deltaCursor.getSeq();
+			walkPosition = deltaCursor.getWalkPosition();
+		}
+
+		boolean reset = false;
+		List<NodePath> paths = new ArrayList<NodePath>();
+		Set<String> deleted = new HashSet<String>();
+		boolean hasMore;
+		DeltaCursor nextCursor;
+
+		ChangeJournal.Changes changes = null;
+		if(seq >= 0 && null == walkPosition) {
+			changes = ChangeJournal.read(user.getName(), seq, pageSize);
+			// the cursor is ahead of a lagging replica
+			if(seq > changes.getLastSeq()) {
+				DbPoolServlet.readFromPrimary();
+				changes = ChangeJournal.read(user.getName(), seq, pageSize);
+			}
+			List<ChangeJournal.Change> page = changes.getChanges();
+			// the sequence has no gaps: a missing next change was pruned
+			if(seq > changes.getLastSeq() || (page.isEmpty() && seq < changes.getLastSeq()) || (!page.isEmpty() && page.get(0).getSeq() != seq+1))
+				changes = null;
+		}
+
+		if(null != changes) {
+			// the latest change of a node wins
+			Map<String, ChangeJournal.Change> latest = new LinkedHashMap<String, ChangeJournal.Change>();
+			for(ChangeJournal.Change change: changes.getChanges()) {
+				latest.remove(change.getPath().getNodeStoragePath());
+				latest.put(change.getPath().getNodeStoragePath(), change);
+				seq = change.getSeq();
+			}
+			for(ChangeJournal.Change change: latest.values()) {
+				paths.add(change.getPath());
+				if(change.isDeleted())
+					deleted.add(change.getPath().getNodeStoragePath());
+			}
+			hasMore = seq < changes.getLastSeq();
+			nextCursor = new DeltaCursor(user.getName(), seq, null);
+		} else {
+			if(null == walkPosition) {
+				reset = true;
+				seq = ChangeJournal.lastSeq(user.getName());
+				walkPosition = new NodePath("");
+			}
+			paths = ChangeJournal.listNodes(user.getName(), rootContainer,
+					walkPosition.getContainerName(), walkPosition.getNodeRelativeStoragePath(), pageSize);
+			// the changes made during the walk are replayed from the journal afterwards
+			hasMore = true;
+			nextCursor = new DeltaCursor(user.getName(), seq, (paths.size() == pageSize)?paths.get(paths.size()-1):null);
+		}
+
+		List<VospaceId> identifiers = new ArrayList<VospaceId>();
+		for(Iterator<NodePath> it = paths.iterator(); it.hasNext();) {
+			NodePath path = it.next();
+			if(!rootContainer.isEmpty()) {
+				path.setEnableAppContainer(true);
+				if(!path.getContainerName().equals(rootContainer) || path.isRoot(true)) {
+					it.remove();
+					continue;
+				}
+			}
+			if(!deleted.contains(path.getNodeStoragePath())) {
+				try {
+					identifiers.add(new VospaceId(path));
+				} catch (URISyntaxException e) {
+					logger.error("Error in changed node URI: "+e.getMessage());
+				}
+			}
+		}
+
+		Map<String, Node> nodes = new HashMap<String, Node>();
+		for(Node node: NodeFactory.getNodes(identifiers, user.getName())) {
+			if(!node.getNodeInfo().isDeleted())
+				nodes.put(node.getUri().getNodePath().getNodeStoragePath(), node);
+		}
+
+		try {
+	    	ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+			JsonGenerator g = new MappingJsonFactory().createJsonGenerator(byteOut).useDefaultPrettyPrinter();
+
+			g.writeStartObject();
+			g.writeArrayFieldStart("entries");
+			for(NodePath path: paths) {
+				g.writeStartArray();
+				g.writeString(path.getNodeOuterPath().toLowerCase(Locale.ROOT));
+				Node node = nodes.get(path.getNodeStoragePath());
+				if(null != node)
+					g.writeTree((JsonNode)node.export("json-dropbox-object", Detail.min));
+				else
+					g.writeNull();
+				g.writeEndArray();
+			}
+			g.writeEndArray();
+			g.writeBooleanField("reset", reset);
+			g.writeStringField("cursor", nextCursor.encode());
+			g.writeBooleanField("has_more", hasMore);
+			g.writeEndObject();
+
+			g.close();
+			byteOut.close();
+			return byteOut.toByteArray();
+		} catch (IOException e) {
+			throw new InternalServerErrorException("Error generationg JSON: "+e.getMessage());
+		}
+	}
+
 	@Path("cont_search")
 	@GET
 	@RolesAllowed({"user", "rwshareuser"})
@@ -888,9 +1192,8 @@ public class DropboxService {
 			DbPoolServlet.goSql("Get shares",
 	        		"select share_id, container_name, group_name, share_write_permission FROM container_shares "+
 	        		"LEFT JOIN groups ON container_shares.group_id = groups.group_id "+
-	        		"JOIN containers ON container_shares.container_id = containers.container_id "+
-	        		"JOIN user_identities ON containers.user_id = user_identities.user_id WHERE identity = ?",
-	                new SqlWorker<Boolean>() {
+	        		"JOIN user_identities ON container_shares.user_id = user_identities.user_id WHERE identity = ?",
+	                new SqlReader<Boolean>() {
 	                    @Override
 	                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
 	                    	stmt.setString(1, user.getName());
@@ -926,8 +1229,7 @@ public class DropboxService {
 
 		DbPoolServlet.goSql("Remove share",
         		"delete container_shares from container_shares "+
-        		"JOIN containers ON container_shares.container_id = containers.container_id "+
-        		"JOIN user_identities ON containers.user_id = user_identities.user_id WHERE share_id = ? AND identity = ?;",
+        		"JOIN user_identities ON container_shares.user_id = user_identities.user_id WHERE share_id = ? AND identity = ?;",
                 new SqlWorker<Boolean>() {
                     @Override
                     public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
@@ -954,7 +1256,7 @@ public class DropboxService {
 
 			DbPoolServlet.goSql("Get share groups",
 	        		"select group_id, group_name from groups order by group_name;",
-	                new SqlWorker<Boolean>() {
+	                new SqlReader<Boolean>() {
 	                    @Override
 	                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
 	            			ResultSet rs = stmt.executeQuery();
@@ -995,7 +1297,7 @@ public class DropboxService {
 
 			DbPoolServlet.goSql("Get share group members",
 	        		"select identity from user_identities JOIN user_groups ON user_identities.user_id = user_groups.user_id WHERE group_id = ? order by identity;",
-	                new SqlWorker<Boolean>() {
+	                new SqlReader<Boolean>() {
 	                    @Override
 	                    public Boolean go(Connection conn, PreparedStatement stmt) throws SQLException {
 	                    	stmt.setInt(1, group_id);
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vosync.rest;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import edu.jhu.pha.vospace.DbPoolServlet;
+import edu.jhu.pha.vospace.SettingsServlet;
+import edu.jhu.pha.vospace.meta.ChangeJournal;
+import edu.jhu.pha.vosync.meta.ChangeNotifier;
+import edu.jhu.pha.vosync.meta.DeltaCursor;
+
+/**
+ * Dropbox-style longpoll_delta: parks the request until the owner of the delta cursor changes a node
+ * or the timeout expires, then tells the client whether to call /delta.
+ * The requests are parked asynchronously and woken by the single {@link ChangeNotifier} subscription,
+ * so the idle waiters hold no threads. Like in Dropbox, the request is not authenticated: the signed cursor
+ * identifies the user and only the fact of a change is disclosed.
+ */
+public class LongPollDeltaServlet extends HttpServlet {
+
+	private static final long serialVersionUID = -2465094125766373905L;
+	private static final Logger logger = Logger.getLogger(LongPollDeltaServlet.class);
+	private static final Configuration conf = SettingsServlet.getConfig();
+
+	private static final int MIN_TIMEOUT = 30, MAX_TIMEOUT = 480;
+
+	private static final JsonFactory f = new JsonFactory();
+	private static final Random random = new Random();
+
+	private final int maxWaiters = conf.getInt("longpoll.max_waiters", 50000);
+	private final int backoff = conf.getInt("longpoll.backoff", 60);
+
+	private final ExecutorService notifierExecutor = Executors.newSingleThreadExecutor();
+	/** Writes the woken requests responses off the notifier thread */
+	private final ExecutorService responseExecutor = Executors.newFixedThreadPool(conf.getInt("longpoll.threads", 4));
+
+	private class Waiter implements ChangeNotifier.Listener, AsyncListener {
+		private final AsyncContext async;
+		private final String owner;
+		private final AtomicBoolean done = new AtomicBoolean();
+
+		Waiter(AsyncContext async, String owner) {
+			this.async = async;
+			this.owner = owner;
+		}
+
+		@Override
+		public void changed() {
+			responseExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					respond(true);
+				}
+			});
+		}
+
+		void respond(boolean changes) {
+			if(!done.compareAndSet(false, true))
+				return;
+			ChangeNotifier.removeListener(owner, this);
+			try {
+				writeResponse((HttpServletResponse)async.getResponse(), changes, 0);
+			} catch(IOException ex) {
+				logger.debug("Error writing the long-poll response: "+ex.getMessage());
+			} finally {
+				async.complete();
+			}
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			respond(false);
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			if(done.compareAndSet(false, true))
+				ChangeNotifier.removeListener(owner, this);
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			if(done.compareAndSet(false, true))
+				ChangeNotifier.removeListener(owner, this);
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {}
+	}
+
+	@Override
+	public void init() throws ServletException {
+		notifierExecutor.submit(new ChangeNotifier());
+	}
+
+	@Override
+	public void destroy() {
+		notifierExecutor.shutdownNow();
+		responseExecutor.shutdownNow();
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if(null == request.getParameter("cursor")) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "InvalidCursor");
+			return;
+		}
+		// a cursor signed with another secret: the client gets the reset from /delta
+		DeltaCursor cursor = DeltaCursor.decode(request.getParameter("cursor"));
+		if(null == cursor) {
+			writeResponse(response, true, 0);
+			return;
+		}
+
+		int timeout = MIN_TIMEOUT;
+		if(null != request.getParameter("timeout")) {
+			try {
+				timeout = Integer.parseInt(request.getParameter("timeout"));
+			} catch(NumberFormatException ex) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Wrong timeout parameter");
+				return;
+			}
+			timeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+		}
+
+		// the listing after a reset is not finished
+		if(null != cursor.getWalkPosition()) {
+			writeResponse(response, true, 0);
+			return;
+		}
+
+		if(ChangeNotifier.getListenersCount() >= maxWaiters) {
+			writeResponse(response, false, backoff);
+			return;
+		}
+
+		AsyncContext async = request.startAsync();
+		// the jitter spreads the reconnects of the clients started together
+		async.setTimeout((timeout+random.nextInt(timeout/10+1))*1000L);
+		Waiter waiter = new Waiter(async, cursor.getOwner());
+		async.addListener(waiter);
+		ChangeNotifier.addListener(cursor.getOwner(), waiter);
+
+		// registered before the check, so a change committed meanwhile is not missed;
+		// read from the primary, a lagging replica would park the request past the change
+		DbPoolServlet.beginRequest(cursor.getOwner());
+		DbPoolServlet.readFromPrimary();
+		try {
+			if(ChangeJournal.lastSeq(cursor.getOwner()) > cursor.getSeq())
+				waiter.respond(true);
+		} catch(Exception ex) {
+			logger.error("Error checking the changes of "+cursor.getOwner()+": "+ex.getMessage());
+			waiter.respond(true);
+		} finally {
+			DbPoolServlet.beginRequest(null);
+		}
+	}
+
+	private static void writeResponse(HttpServletResponse response, boolean changes, int backoff) throws IOException {
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		JsonGenerator g = f.createJsonGenerator(response.getOutputStream());
+		g.writeStartObject();
+		g.writeBooleanField("changes", changes);
+		if(backoff > 0)
+			g.writeNumberField("backoff", backoff);
+		g.writeEndObject();
+		g.close();
+	}
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright 2013 Johns Hopkins University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package edu.jhu.pha.vospace;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.jhu.pha.vospace.DbPoolServlet.PrimaryReader;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlReader;
+import edu.jhu.pha.vospace.DbPoolServlet.SqlWorker;
+
+/**
+ * Checks which workers make the following reads stick to the primary
+ */
+public class DbPoolServletTest {
+
+	/** Like the node resolve */
+	private static final SqlWorker<String> resolve = new PrimaryReader<String>() {
+		@Override
+		public String go(Connection conn, PreparedStatement stmt) throws SQLException {
+			return null;
+		}
+	};
+
+	/** Like the container listing */
+	private static final SqlWorker<String> listing = new SqlReader<String>() {
+		@Override
+		public String go(Connection conn, PreparedStatement stmt) throws SQLException {
+			return null;
+		}
+	};
+
+	private static final SqlWorker<Integer> update = new SqlWorker<Integer>() {
+		@Override
+		public Integer go(Connection conn, PreparedStatement stmt) throws SQLException {
+			return 1;
+		}
+	};
+
+	@Before
+	public void setUp() {
+		DbPoolServlet.hasReplicas = true;
+		DbPoolServlet.stickyPeriod = 60000;
+	}
+
+	@After
+	public void tearDown() {
+		DbPoolServlet.beginRequest(null);
+	}
+
+	@Test
+	public void listingAfterResolveGoesToReplica() {
+		DbPoolServlet.beginRequest("reader");
+		assertFalse(DbPoolServlet.isReplicaRead(resolve));
+		DbPoolServlet.afterWorker(resolve);
+		assertTrue(DbPoolServlet.isReplicaRead(listing));
+	}
+
+	@Test
+	public void readsAfterWriteGoToPrimary() {
+		DbPoolServlet.beginRequest("writer");
+		DbPoolServlet.afterWorker(resolve);
+		DbPoolServlet.afterWorker(update);
+		assertFalse(DbPoolServlet.isReplicaRead(listing));
+
+		// the next request of the same user
+		DbPoolServlet.beginRequest("writer");
+		assertFalse(DbPoolServlet.isReplicaRead(listing));
+
+		// other users are not affected
+		DbPoolServlet.beginRequest("other");
+		assertTrue(DbPoolServlet.isReplicaRead(listing));
+	}
+
+	@Test
+	public void readersDontStick() {
+		DbPoolServlet.beginRequest("readers");
+		DbPoolServlet.afterWorker(listing);
+		DbPoolServlet.afterWorker(resolve);
+		assertTrue(DbPoolServlet.isReplicaRead(listing));
+	}
+}